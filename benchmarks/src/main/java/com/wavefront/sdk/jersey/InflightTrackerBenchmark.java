@@ -0,0 +1,52 @@
+package com.wavefront.sdk.jersey;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Measures the cost of a request in flight (an increment and a decrement) on the timed
+ * {@link InflightTracker} the filter uses with a WavefrontJerseyReporter, against the plain
+ * AtomicInteger gauge it replaces, with every thread updating the same tracker like concurrent
+ * requests of a route. It lives in the package of the tracker, which is not public.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class InflightTrackerBenchmark {
+
+  private final AtomicInteger atomicInteger = new AtomicInteger();
+  private final InflightTracker timed = InflightTracker.timed();
+
+  // Both read the clock, which the filter does at the start and end of every request anyway for
+  // the latency, and hands to the tracker.
+
+  @Benchmark
+  public long atomicInteger() {
+    long nowNanos = System.nanoTime();
+    atomicInteger.incrementAndGet();
+    return atomicInteger.decrementAndGet() + nowNanos;
+  }
+
+  @Benchmark
+  public long timed() {
+    long nowNanos = System.nanoTime();
+    timed.increment(nowNanos);
+    timed.decrement(nowNanos);
+    return timed.getCurrent();
+  }
+}
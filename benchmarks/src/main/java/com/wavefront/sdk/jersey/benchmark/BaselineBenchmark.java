@@ -0,0 +1,54 @@
+package com.wavefront.sdk.jersey.benchmark;
+
+import org.glassfish.jersey.server.ApplicationHandler;
+import org.glassfish.jersey.server.ContainerResponse;
+import org.glassfish.jersey.server.ResourceConfig;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the per request cost of dispatching the requests of
+ * {@link WavefrontJerseyFilterBenchmark} through the same in-memory Jersey application, without
+ * the filter registered. It depends on none of the params of the filter benchmark, so it is run
+ * once instead of once per param combination.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BaselineBenchmark {
+
+  private ApplicationHandler handler;
+  private URI requestUri;
+
+  @Setup
+  public void setup() {
+    handler = new ApplicationHandler(new ResourceConfig(
+        WavefrontJerseyFilterBenchmark.BenchmarkResource.class));
+    requestUri = WavefrontJerseyFilterBenchmark.BASE_URI.resolve("benchmark/orders/200");
+  }
+
+  @TearDown
+  public void tearDown() {
+    handler = null;
+  }
+
+  @Benchmark
+  public ContainerResponse baseline() throws Exception {
+    return handler.apply(WavefrontJerseyFilterBenchmark.newRequest(requestUri)).get();
+  }
+}
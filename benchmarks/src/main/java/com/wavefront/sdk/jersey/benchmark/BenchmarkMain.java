@@ -0,0 +1,23 @@
+package com.wavefront.sdk.jersey.benchmark;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Entry point of the benchmarks jar. Accepts the regular JMH command line options and always
+ * enables the GC profiler so that bytes allocated per operation (gc.alloc.rate.norm) are
+ * reported next to ns/op.
+ */
+public class BenchmarkMain {
+
+  public static void main(String[] args) throws Exception {
+    Options options = new OptionsBuilder().
+        parent(new CommandLineOptions(args)).
+        addProfiler(GCProfiler.class).
+        build();
+    new Runner(options).run();
+  }
+}
@@ -0,0 +1,58 @@
+package com.wavefront.sdk.jersey.benchmark;
+
+import com.wavefront.internal.reporter.SdkReporter;
+import com.wavefront.internal_reporter_java.io.dropwizard.metrics5.MetricName;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * An {@link SdkReporter} that keeps everything in memory and never reports. Keeps a map lookup
+ * per update so that the registry cost of a real reporter is still accounted for.
+ */
+public class InMemorySdkReporter implements SdkReporter {
+
+  private final ConcurrentMap<MetricName, LongAdder> counters = new ConcurrentHashMap<>();
+  private final ConcurrentMap<MetricName, AtomicInteger> gauges = new ConcurrentHashMap<>();
+
+  @Override
+  public void incrementCounter(MetricName metricName) {
+    counter(metricName).increment();
+  }
+
+  @Override
+  public void incrementCounter(MetricName metricName, long n) {
+    counter(metricName).add(n);
+  }
+
+  @Override
+  public void incrementDeltaCounter(MetricName metricName) {
+    counter(metricName).increment();
+  }
+
+  @Override
+  public void registerGauge(MetricName metricName, AtomicInteger value) {
+    gauges.put(metricName, value);
+  }
+
+  @Override
+  public void updateHistogram(MetricName metricName, long latencyMillis) {
+    counter(metricName).add(latencyMillis);
+  }
+
+  @Override
+  public void start() {
+    // no-op
+  }
+
+  @Override
+  public void stop() {
+    // no-op
+  }
+
+  private LongAdder counter(MetricName metricName) {
+    return counters.computeIfAbsent(metricName, key -> new LongAdder());
+  }
+}
@@ -0,0 +1,184 @@
+package com.wavefront.sdk.jersey.benchmark;
+
+import com.wavefront.opentracing.WavefrontSpan;
+import com.wavefront.opentracing.WavefrontTracer;
+import com.wavefront.opentracing.reporting.Reporter;
+import com.wavefront.internal.reporter.SdkReporter;
+import com.wavefront.sdk.common.WavefrontSender;
+import com.wavefront.sdk.common.application.ApplicationTags;
+import com.wavefront.sdk.jersey.RecordingPolicy;
+import com.wavefront.sdk.jersey.WavefrontJerseyFilter;
+import com.wavefront.sdk.jersey.reporter.WavefrontJerseyReporter;
+
+import org.glassfish.jersey.internal.MapPropertiesDelegate;
+import org.glassfish.jersey.server.ApplicationHandler;
+import org.glassfish.jersey.server.ContainerRequest;
+import org.glassfish.jersey.server.ContainerResponse;
+import org.glassfish.jersey.server.ResourceConfig;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.reflect.Proxy;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.concurrent.TimeUnit;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.core.Response;
+
+/**
+ * Measures the per request cost of dispatching synthetic {@link ContainerRequest}s through an
+ * in-memory Jersey {@link ApplicationHandler} with {@link WavefrontJerseyFilter} registered. The
+ * overhead of the filter is the difference between the {@code filtered} score and the score of
+ * {@link BaselineBenchmark}, which dispatches the same requests without the filter.
+ *
+ * The {@code reporter} param compares an in-memory {@link SdkReporter} ({@code memory}) with the
+ * registered counter and histogram handles of the {@link WavefrontJerseyReporter}
+ * ({@code handles}), with and without striped counters ({@code striped}). The
+ * {@code recording} param records the response metrics on the request thread ({@code sync}) or
+ * through the recording buffer ({@code async}).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class WavefrontJerseyFilterBenchmark {
+
+  static final URI BASE_URI = URI.create("http://localhost:8080/");
+
+  @Param({"false", "true"})
+  public boolean tracing;
+
+  @Param({"false", "true"})
+  public boolean headerTags;
+
+  @Param({"200", "500"})
+  public int status;
+
+  @Param({"memory", "handles", "striped"})
+  public String reporter;
+
+  @Param({"sync", "async"})
+  public String recording;
+
+  private ApplicationHandler filteredHandler;
+  private WavefrontJerseyFilter filter;
+  private SdkReporter sdkReporter;
+  private URI requestUri;
+
+  @Setup
+  public void setup() {
+    ApplicationTags applicationTags = new ApplicationTags.Builder("benchmark", "jersey").
+        cluster("us-west").shard("primary").build();
+    if (reporter.equals("memory")) {
+      sdkReporter = new InMemorySdkReporter();
+    } else {
+      // Never started, so nothing is sent: only the registry is exercised.
+      sdkReporter = new WavefrontJerseyReporter.Builder(applicationTags).
+          preAggregateCounters(reporter.equals("striped")).build(discardingSender());
+    }
+    WavefrontJerseyFilter.Builder builder =
+        new WavefrontJerseyFilter.Builder(sdkReporter, applicationTags);
+    if (tracing) {
+      builder.withTracer(new WavefrontTracer.Builder(new DiscardingReporter(),
+          applicationTags).build());
+    }
+    if (headerTags) {
+      builder.headerTags(new HashSet<>(Arrays.asList("X-Tenant-Id", "X-Request-Id")));
+    }
+    if (recording.equals("async")) {
+      builder.recordingPolicy(RecordingPolicy.asyncDropping(8192));
+    }
+    filter = builder.build();
+    filteredHandler = new ApplicationHandler(new ResourceConfig(BenchmarkResource.class).
+        register(filter));
+    requestUri = BASE_URI.resolve("benchmark/orders/" + status);
+  }
+
+  @TearDown
+  public void tearDown() {
+    filter.close();
+    sdkReporter.stop();
+    filteredHandler = null;
+  }
+
+  @Benchmark
+  public ContainerResponse filtered() throws Exception {
+    return filteredHandler.apply(newRequest(requestUri)).get();
+  }
+
+  static ContainerRequest newRequest(URI requestUri) {
+    ContainerRequest request = new ContainerRequest(BASE_URI, requestUri, "GET", null,
+        new MapPropertiesDelegate());
+    request.header("Accept", "text/plain");
+    request.header("User-Agent", "jmh");
+    request.header("X-Tenant-Id", "tenant-42");
+    request.header("X-Request-Id", "5d0c6f5e-8d1f-4e6a-a0a5-3b6a1b7e4c2d");
+    return request;
+  }
+
+  @Path("/benchmark")
+  public static class BenchmarkResource {
+
+    @GET
+    @Path("/orders/{status}")
+    public Response orders(@PathParam("status") int status) {
+      return Response.status(status).entity("don't care").build();
+    }
+  }
+
+  /**
+   * @return a sender that discards everything, whatever the methods of the sender version.
+   */
+  private static WavefrontSender discardingSender() {
+    return (WavefrontSender) Proxy.newProxyInstance(WavefrontSender.class.getClassLoader(),
+        new Class<?>[]{WavefrontSender.class},
+        (proxy, method, args) -> {
+          Class<?> returnType = method.getReturnType();
+          if (returnType == int.class) {
+            return 0;
+          } else if (returnType == boolean.class) {
+            return false;
+          }
+          return null;
+        });
+  }
+
+  private static class DiscardingReporter implements Reporter {
+
+    @Override
+    public void report(WavefrontSpan span) {
+      // no-op
+    }
+
+    @Override
+    public int getFailureCount() {
+      return 0;
+    }
+
+    @Override
+    public void close() {
+      // no-op
+    }
+
+    @Override
+    public void flush() {
+      // no-op
+    }
+  }
+}
@@ -0,0 +1,149 @@
+package com.wavefront.sdk.jersey;
+
+import com.google.common.base.Preconditions;
+
+import com.wavefront.internal.reporter.SdkReporter;
+import com.wavefront.internal_reporter_java.io.dropwizard.metrics5.MetricName;
+import com.wavefront.sdk.common.application.ApplicationTags;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nullable;
+
+import static com.wavefront.sdk.common.Constants.CLUSTER_TAG_KEY;
+import static com.wavefront.sdk.common.Constants.SERVICE_TAG_KEY;
+import static com.wavefront.sdk.common.Constants.SHARD_TAG_KEY;
+import static com.wavefront.sdk.jersey.RouteDescriptor.clusterOrDefault;
+import static com.wavefront.sdk.jersey.RouteDescriptor.shardOrDefault;
+
+/**
+ * Enforces {@link CardinalityLimits} for the route descriptors of a {@link RouteDescriptorCache}.
+ */
+final class CardinalityGuard {
+
+  static final String OVERFLOW_ROUTE = "_overflow_";
+  static final String OTHER_STATUS = "other";
+
+  private final int maxRoutes;
+  private final int maxStatusesPerRoute;
+  private final AtomicInteger routes = new AtomicInteger();
+  // Admitted routes by metric name, never released since their series stay registered.
+  private final ConcurrentMap<String, RouteStatuses> routeStatuses = new ConcurrentHashMap<>();
+  private final RouteStatuses overflowStatuses = new RouteStatuses();
+  @Nullable
+  private final LazyCounter rejectedRoutes;
+  @Nullable
+  private final LazyCounter rejectedStatuses;
+
+  /**
+   * @param reportRejections false if another guard with the same limits already reports the
+   *                         rejected series, so that they are not counted twice.
+   */
+  CardinalityGuard(CardinalityLimits limits, ApplicationTags applicationTags,
+                   SdkReporter reporter, boolean reportRejections) {
+    this.maxRoutes = limits.getMaxRoutes();
+    this.maxStatusesPerRoute = limits.getMaxStatusesPerRoute();
+    if (reportRejections) {
+      this.rejectedRoutes = rejected(applicationTags, reporter, "route");
+      this.rejectedStatuses = rejected(applicationTags, reporter, "status");
+    } else {
+      this.rejectedRoutes = null;
+      this.rejectedStatuses = null;
+    }
+  }
+
+  private static LazyCounter rejected(ApplicationTags applicationTags, SdkReporter reporter,
+                                      String family) {
+    Map<String, String> tags = new HashMap<>();
+    tags.put(CLUSTER_TAG_KEY, clusterOrDefault(applicationTags));
+    tags.put(SERVICE_TAG_KEY, applicationTags.getService());
+    tags.put(SHARD_TAG_KEY, shardOrDefault(applicationTags));
+    tags.put("family", family);
+    return LazyCounter.counter(reporter, new MetricName("cardinality.rejected", tags));
+  }
+
+  /**
+   * Admit a route by its metric name. A route keeps its slot once admitted, even if its
+   * descriptor is evicted, since the reporter keeps its series registered: evicted routes that
+   * are rebuilt reuse their slot and their series, and new routes can't take over the slot.
+   *
+   * @param metricName metric friendly API path of the route.
+   * @return true if the route gets its own series, false if it has to use the overflow route.
+   */
+  boolean admitRoute(String metricName) {
+    if (routeStatuses.containsKey(metricName)) {
+      return true;
+    }
+    if (tryAcquire(routes, maxRoutes)) {
+      if (routeStatuses.putIfAbsent(metricName, new RouteStatuses()) != null) {
+        // Another thread admitted the same route first.
+        routes.decrementAndGet();
+      }
+      return true;
+    }
+    if (rejectedRoutes != null) {
+      rejectedRoutes.inc();
+    }
+    return false;
+  }
+
+  /**
+   * @param metricName metric friendly API path of an admitted route, or the overflow route.
+   * @return the statuses admitted for the route, shared by every descriptor of the route.
+   */
+  RouteStatuses statusesOf(String metricName) {
+    if (OVERFLOW_ROUTE.equals(metricName)) {
+      return overflowStatuses;
+    }
+    RouteStatuses statuses = routeStatuses.get(metricName);
+    Preconditions.checkState(statuses != null, "Route not admitted: %s", metricName);
+    return statuses;
+  }
+
+  /**
+   * @param statuses statuses admitted so far for the route.
+   * @param status   HTTP response status.
+   * @return true if the status gets its own series, false if it has to use the other status.
+   */
+  boolean admitStatus(RouteStatuses statuses, int status) {
+    if (statuses.admitted.contains(status)) {
+      return true;
+    }
+    if (tryAcquire(statuses.count, maxStatusesPerRoute)) {
+      if (!statuses.admitted.add(status)) {
+        // Another thread admitted the same status first.
+        statuses.count.decrementAndGet();
+      }
+      return true;
+    }
+    if (rejectedStatuses != null) {
+      rejectedStatuses.inc();
+    }
+    return false;
+  }
+
+  private static boolean tryAcquire(AtomicInteger count, int max) {
+    while (true) {
+      int current = count.get();
+      if (current >= max) {
+        return false;
+      }
+      if (count.compareAndSet(current, current + 1)) {
+        return true;
+      }
+    }
+  }
+
+  /**
+   * Statuses with their own series for a route.
+   */
+  static final class RouteStatuses {
+    private final Set<Integer> admitted = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger count = new AtomicInteger();
+  }
+}
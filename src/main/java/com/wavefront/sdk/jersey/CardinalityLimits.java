@@ -0,0 +1,52 @@
+package com.wavefront.sdk.jersey;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Bounds the number of series the Jersey SDK creates. Every route creates its own inflight gauge
+ * and error counters, and every (route, HTTP status) pair its own counters, delta counters and
+ * WavefrontHistograms. Routes over the limit are reported under the {@code _overflow_} route and
+ * statuses over the per route limit under the {@code other} status. Every rejected series is
+ * counted in jersey.server.cardinality.rejected, tagged with the family (route or status).
+ */
+public final class CardinalityLimits {
+
+  private static final CardinalityLimits UNLIMITED =
+      new CardinalityLimits(Integer.MAX_VALUE, Integer.MAX_VALUE);
+
+  private final int maxRoutes;
+  private final int maxStatusesPerRoute;
+
+  private CardinalityLimits(int maxRoutes, int maxStatusesPerRoute) {
+    this.maxRoutes = maxRoutes;
+    this.maxStatusesPerRoute = maxStatusesPerRoute;
+  }
+
+  /**
+   * @return limits that never collapse any series (default).
+   */
+  public static CardinalityLimits unlimited() {
+    return UNLIMITED;
+  }
+
+  /**
+   * @param maxRoutes           maximum number of routes (resource method and HTTP method) with
+   *                            their own series, must be positive.
+   * @param maxStatusesPerRoute maximum number of HTTP statuses with their own series per route,
+   *                            must be positive.
+   * @return cardinality limits.
+   */
+  public static CardinalityLimits of(int maxRoutes, int maxStatusesPerRoute) {
+    Preconditions.checkArgument(maxRoutes > 0, "Invalid maxRoutes");
+    Preconditions.checkArgument(maxStatusesPerRoute > 0, "Invalid maxStatusesPerRoute");
+    return new CardinalityLimits(maxRoutes, maxStatusesPerRoute);
+  }
+
+  int getMaxRoutes() {
+    return maxRoutes;
+  }
+
+  int getMaxStatusesPerRoute() {
+    return maxStatusesPerRoute;
+  }
+}
@@ -0,0 +1,98 @@
+package com.wavefront.sdk.jersey;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Configures the adaptive concurrency limit of {@link WavefrontJerseyFilter}. The limit on the
+ * number of requests in flight is adjusted from the latency the filter measures, TCP Vegas
+ * style: it grows while the latency stays close to the minimum observed latency and shrinks when
+ * requests start queuing. Requests over the limit are rejected with HTTP 503 before reaching the
+ * resource method.
+ */
+public final class ConcurrencyLimitPolicy {
+
+  private final int initialLimit;
+  private final int minLimit;
+  private final int maxLimit;
+  private final boolean perRoute;
+
+  private ConcurrencyLimitPolicy(int initialLimit, int minLimit, int maxLimit,
+                                 boolean perRoute) {
+    this.initialLimit = initialLimit;
+    this.minLimit = minLimit;
+    this.maxLimit = maxLimit;
+    this.perRoute = perRoute;
+  }
+
+  int getInitialLimit() {
+    return initialLimit;
+  }
+
+  int getMinLimit() {
+    return minLimit;
+  }
+
+  int getMaxLimit() {
+    return maxLimit;
+  }
+
+  boolean isPerRoute() {
+    return perRoute;
+  }
+
+  public static final class Builder {
+
+    private int initialLimit = 20;
+    private int minLimit = 1;
+    private int maxLimit = 1000;
+    private boolean perRoute = false;
+
+    /**
+     * @param initialLimit limit before any latency is measured, defaults to 20.
+     * @return {@code this}.
+     */
+    public Builder initialLimit(int initialLimit) {
+      this.initialLimit = initialLimit;
+      return this;
+    }
+
+    /**
+     * @param minLimit lowest the limit can go, defaults to 1.
+     * @return {@code this}.
+     */
+    public Builder minLimit(int minLimit) {
+      this.minLimit = minLimit;
+      return this;
+    }
+
+    /**
+     * @param maxLimit highest the limit can go, defaults to 1000.
+     * @return {@code this}.
+     */
+    public Builder maxLimit(int maxLimit) {
+      this.maxLimit = maxLimit;
+      return this;
+    }
+
+    /**
+     * Routes over the {@link CardinalityLimits} are measured as a single overflow route, so
+     * with a limit per route they also share a single limit.
+     *
+     * @param perRoute true to limit every route independently, false (default) for a single
+     *                 limit across all routes.
+     * @return {@code this}.
+     */
+    public Builder perRoute(boolean perRoute) {
+      this.perRoute = perRoute;
+      return this;
+    }
+
+    public ConcurrencyLimitPolicy build() {
+      Preconditions.checkArgument(minLimit > 0, "Invalid minLimit");
+      Preconditions.checkArgument(maxLimit >= minLimit, "Invalid maxLimit");
+      Preconditions.checkArgument(initialLimit >= minLimit && initialLimit <= maxLimit,
+          "Invalid initialLimit");
+      return new ConcurrencyLimitPolicy(initialLimit, minLimit, maxLimit, perRoute);
+    }
+  }
+}
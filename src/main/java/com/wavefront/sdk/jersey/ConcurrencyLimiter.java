@@ -0,0 +1,88 @@
+package com.wavefront.sdk.jersey;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * TCP Vegas style adaptive concurrency limiter. Every completed request is a latency sample: the
+ * queue estimate {@code limit * (1 - minLatency / latency)} tells how many requests are waiting
+ * rather than being served. The limit grows while the estimate is below alpha and shrinks when it
+ * is above beta, both scaled with log10(limit) so that large limits move faster.
+ */
+final class ConcurrencyLimiter {
+
+  // Forget the minimum latency every that many samples, so that the baseline can follow a
+  // slower steady state instead of holding on to a lucky sample forever.
+  private static final long MIN_LATENCY_RESET_SAMPLES = 1000;
+
+  private final int minLimit;
+  private final int maxLimit;
+  // Registered as the limit gauge.
+  private final AtomicInteger limit;
+  private final LazyCounter rejected;
+  private final AtomicInteger inflight = new AtomicInteger();
+  private final AtomicLong samples = new AtomicLong();
+  private volatile long minLatencyNanos = Long.MAX_VALUE;
+
+  ConcurrencyLimiter(ConcurrencyLimitPolicy policy, LazyCounter rejected) {
+    this.minLimit = policy.getMinLimit();
+    this.maxLimit = policy.getMaxLimit();
+    this.limit = new AtomicInteger(policy.getInitialLimit());
+    this.rejected = rejected;
+  }
+
+  AtomicInteger getLimit() {
+    return limit;
+  }
+
+  LazyCounter getRejected() {
+    return rejected;
+  }
+
+  /**
+   * @return true if the request may proceed, in which case {@link #release} must be called once
+   * it completes.
+   */
+  boolean tryAcquire() {
+    while (true) {
+      int current = inflight.get();
+      if (current >= limit.get()) {
+        return false;
+      }
+      if (inflight.compareAndSet(current, current + 1)) {
+        return true;
+      }
+    }
+  }
+
+  /**
+   * @param latencyNanos latency of the completed request.
+   */
+  void release(long latencyNanos) {
+    int releasedInflight = inflight.getAndDecrement();
+    if (latencyNanos <= 0) {
+      return;
+    }
+    if (samples.incrementAndGet() % MIN_LATENCY_RESET_SAMPLES == 0 ||
+        latencyNanos < minLatencyNanos) {
+      minLatencyNanos = latencyNanos;
+    }
+    int currentLimit = limit.get();
+    double queue = currentLimit * (1 - (double) minLatencyNanos / latencyNanos);
+    int step = Math.max(1, (int) Math.log10(currentLimit));
+    int newLimit;
+    if (queue < 3 * step) {
+      // Low latency while far below the limit says nothing about the capacity.
+      if (releasedInflight * 2 < currentLimit) {
+        return;
+      }
+      newLimit = currentLimit + step;
+    } else if (queue > 6 * step) {
+      newLimit = currentLimit - step;
+    } else {
+      return;
+    }
+    // Losing a race with another sample just skips this adjustment.
+    limit.compareAndSet(currentLimit, Math.max(minLimit, Math.min(maxLimit, newLimit)));
+  }
+}
@@ -11,4 +11,21 @@ public class Constants {
    * Name of the jersey server component.
    */
   public final static String JERSEY_SERVER_COMPONENT = "jersey-server";
+
+  /**
+   * Name of the request property holding the per request stats of the jersey server filter.
+   */
+  public final static String STATS_CONTEXT_PROPERTY_NAME = "wavefront.jersey.statsContext";
+
+  /**
+   * Name of the request property holding the streamed response of the jersey server filter.
+   */
+  public final static String STREAMED_RESPONSE_PROPERTY_NAME =
+      "wavefront.jersey.streamedResponse";
+
+  /**
+   * Name of the request property marking the requests rejected by the concurrency limit of the
+   * jersey server filter.
+   */
+  public final static String REJECTED_PROPERTY_NAME = "wavefront.jersey.rejected";
 }
@@ -0,0 +1,142 @@
+package com.wavefront.sdk.jersey;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.annotation.Nullable;
+
+/**
+ * Tracks the requests in flight for a route, or overall. The timed variant also tracks the peak
+ * number of requests in flight and the time weighted mean concurrency (Little's law: time spent
+ * by requests / elapsed time) between two reads, i.e. per reporting interval. The exact variant
+ * only maintains a plain {@link AtomicInteger}, for reporters that can only report AtomicInteger
+ * gauges.
+ *
+ * The timed variant keeps the number of requests in flight and the time of its last change in a
+ * single {@link AtomicLong}, so that every increment, decrement and read swaps both with one CAS
+ * and accumulates the requests in flight times the time elapsed since the previous swap: each
+ * elapsed slice is accounted for exactly once, without a lock, and requests still in flight
+ * count in every interval they span. The peak is derived from the count the CAS installed.
+ */
+final class InflightTracker {
+
+  // Low bits: requests in flight, up to 2^20 - 1. High bits: microseconds since the tracker was
+  // built, modulo 2^44 (about 200 days). Differences are taken modulo too, the state is swapped
+  // at least every reporting interval.
+  private static final int COUNT_BITS = 20;
+  private static final long COUNT_MASK = (1L << COUNT_BITS) - 1;
+  private static final long TIME_MASK = (1L << (Long.SIZE - COUNT_BITS)) - 1;
+
+  @Nullable
+  private final AtomicInteger exact;
+  @Nullable
+  private final AtomicLong state;
+  @Nullable
+  private final AtomicLong peak;
+  @Nullable
+  private final LongAdder inflightMicros;
+  private final long originNanos;
+  // Guarded by this.
+  private long lastReadMicros;
+
+  private InflightTracker(@Nullable AtomicInteger exact) {
+    this.exact = exact;
+    this.originNanos = System.nanoTime();
+    if (exact == null) {
+      this.state = new AtomicLong();
+      this.peak = new AtomicLong();
+      this.inflightMicros = new LongAdder();
+    } else {
+      this.state = null;
+      this.peak = null;
+      this.inflightMicros = null;
+    }
+  }
+
+  static InflightTracker timed() {
+    return new InflightTracker(null);
+  }
+
+  static InflightTracker exact(AtomicInteger value) {
+    return new InflightTracker(value);
+  }
+
+  /**
+   * @param nowNanos System.nanoTime() of the start of the request, read once for every tracker.
+   */
+  void increment(long nowNanos) {
+    if (exact != null) {
+      exact.incrementAndGet();
+      return;
+    }
+    long current = update(1, nowNanos) & COUNT_MASK;
+    // The peak is only written when it actually grows.
+    if (current > peak.get()) {
+      peak.accumulateAndGet(current, Math::max);
+    }
+  }
+
+  /**
+   * @param nowNanos System.nanoTime() of the end of the request, read once for every tracker.
+   */
+  void decrement(long nowNanos) {
+    if (exact != null) {
+      exact.decrementAndGet();
+      return;
+    }
+    update(-1, nowNanos);
+  }
+
+  long getCurrent() {
+    return exact != null ? exact.get() : state.get() & COUNT_MASK;
+  }
+
+  /**
+   * @return the peak number of requests in flight since the last call.
+   */
+  long getAndResetPeak() {
+    return Math.max(peak.getAndSet(getCurrent()), 0);
+  }
+
+  /**
+   * @return the mean number of requests in flight since the last call.
+   */
+  synchronized double getAndResetMeanConcurrency() {
+    // The elapsed time is measured on the time of the swaps, like the slices.
+    long nowMicros = update(0, System.nanoTime()) >>> COUNT_BITS;
+    long elapsedMicros = (nowMicros - lastReadMicros) & TIME_MASK;
+    lastReadMicros = nowMicros;
+    long micros = inflightMicros.sumThenReset();
+    return elapsedMicros == 0 ? 0 : micros / (double) elapsedMicros;
+  }
+
+  /**
+   * Swaps the count and time, and accumulates the time spent at the previous count.
+   *
+   * @return the state after the update, with the number of requests in flight in the low bits.
+   */
+  private long update(int delta, long nowNanos) {
+    long timeMicros = TimeUnit.NANOSECONDS.toMicros(nowNanos - originNanos) & TIME_MASK;
+    while (true) {
+      long current = state.get();
+      long count = current & COUNT_MASK;
+      long lastMicros = current >>> COUNT_BITS;
+      long nowMicros = timeMicros;
+      long elapsedMicros = (nowMicros - lastMicros) & TIME_MASK;
+      if (elapsedMicros > TIME_MASK / 2) {
+        // Another thread read a later time and swapped first, the time never goes back.
+        nowMicros = lastMicros;
+        elapsedMicros = 0;
+      }
+      long updated = ((count + delta) & COUNT_MASK) | (nowMicros << COUNT_BITS);
+      if (state.compareAndSet(current, updated)) {
+        if (count > 0 && elapsedMicros > 0) {
+          inflightMicros.add(count * elapsedMicros);
+        }
+        return updated;
+      }
+    }
+  }
+}
@@ -0,0 +1,99 @@
+package com.wavefront.sdk.jersey;
+
+import com.wavefront.internal.reporter.SdkReporter;
+import com.wavefront.internal_reporter_java.io.dropwizard.metrics5.MetricName;
+import com.wavefront.sdk.jersey.reporter.CounterHandle;
+import com.wavefront.sdk.jersey.reporter.WavefrontJerseyReporter;
+
+import javax.annotation.Nullable;
+
+/**
+ * A counter or delta counter that is resolved to a {@link CounterHandle} on first use, so that
+ * no series is registered before it is incremented and no lookup happens afterwards. Reporters
+ * other than {@link WavefrontJerseyReporter} are updated by {@link MetricName}.
+ */
+final class LazyCounter {
+
+  private final SdkReporter reporter;
+  private final MetricName metricName;
+  private final boolean delta;
+  @Nullable
+  private volatile CounterHandle handle;
+
+  private LazyCounter(SdkReporter reporter, MetricName metricName, boolean delta) {
+    this.reporter = reporter;
+    this.metricName = metricName;
+    this.delta = delta;
+  }
+
+  static LazyCounter counter(SdkReporter reporter, MetricName metricName) {
+    return new LazyCounter(reporter, metricName, false);
+  }
+
+  static LazyCounter deltaCounter(SdkReporter reporter, MetricName metricName) {
+    return new LazyCounter(reporter, metricName, true);
+  }
+
+  MetricName getMetricName() {
+    return metricName;
+  }
+
+  void inc() {
+    handle().inc();
+  }
+
+  void inc(long n) {
+    handle().inc(n);
+  }
+
+  /**
+   * Register the counter ahead of its first update. Reporters other than
+   * {@link WavefrontJerseyReporter} only create a counter when it is incremented, so it is
+   * incremented by zero, which they can't do for a delta counter.
+   */
+  void preRegister() {
+    CounterHandle counterHandle = handle();
+    if (!delta && !(reporter instanceof WavefrontJerseyReporter)) {
+      counterHandle.inc(0);
+    }
+  }
+
+  private CounterHandle handle() {
+    CounterHandle counterHandle = handle;
+    if (counterHandle == null) {
+      // Racing threads resolve the same registered counter, so no need to synchronize.
+      counterHandle = resolve();
+      handle = counterHandle;
+    }
+    return counterHandle;
+  }
+
+  private CounterHandle resolve() {
+    if (reporter instanceof WavefrontJerseyReporter) {
+      WavefrontJerseyReporter wfJerseyReporter = (WavefrontJerseyReporter) reporter;
+      return delta ? wfJerseyReporter.newDeltaCounterHandle(metricName) :
+          wfJerseyReporter.newCounterHandle(metricName);
+    }
+    return new CounterHandle() {
+      @Override
+      public void inc() {
+        if (delta) {
+          reporter.incrementDeltaCounter(metricName);
+        } else {
+          reporter.incrementCounter(metricName);
+        }
+      }
+
+      @Override
+      public void inc(long n) {
+        if (delta) {
+          for (long i = 0; i < n; i++) {
+            reporter.incrementDeltaCounter(metricName);
+          }
+        } else {
+          reporter.incrementCounter(metricName, n);
+        }
+      }
+    };
+  }
+}
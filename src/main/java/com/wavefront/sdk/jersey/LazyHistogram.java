@@ -0,0 +1,79 @@
+package com.wavefront.sdk.jersey;
+
+import com.wavefront.internal.reporter.SdkReporter;
+import com.wavefront.internal_reporter_java.io.dropwizard.metrics5.MetricName;
+import com.wavefront.sdk.jersey.reporter.HistogramHandle;
+import com.wavefront.sdk.jersey.reporter.WavefrontJerseyReporter;
+
+import javax.annotation.Nullable;
+
+/**
+ * A WavefrontHistogram that is resolved to a {@link HistogramHandle} on first use, so that no
+ * series is registered before it is updated and no lookup happens afterwards. Reporters other
+ * than {@link WavefrontJerseyReporter} are updated by {@link MetricName}.
+ */
+final class LazyHistogram {
+
+  private final SdkReporter reporter;
+  private final MetricName metricName;
+  @Nullable
+  private volatile HistogramHandle handle;
+
+  LazyHistogram(SdkReporter reporter, MetricName metricName) {
+    this.reporter = reporter;
+    this.metricName = metricName;
+  }
+
+  MetricName getMetricName() {
+    return metricName;
+  }
+
+  void update(long value) {
+    handle().update(value);
+  }
+
+  /**
+   * Update with a value that stands for {@code count} observations. Reporters other than
+   * {@link WavefrontJerseyReporter} can't weigh values and get a single update, so the filter
+   * only samples measurements with a WavefrontJerseyReporter, see {@link MeasurementPolicy}.
+   */
+  void update(long value, int count) {
+    handle().update(value, count);
+  }
+
+  /**
+   * Register the histogram ahead of its first update. Reporters other than
+   * {@link WavefrontJerseyReporter} can't register a histogram without updating it, so this
+   * only resolves the handle for them.
+   */
+  void preRegister() {
+    handle();
+  }
+
+  private HistogramHandle handle() {
+    HistogramHandle histogramHandle = handle;
+    if (histogramHandle == null) {
+      // Racing threads resolve the same registered histogram, so no need to synchronize.
+      histogramHandle = resolve();
+      handle = histogramHandle;
+    }
+    return histogramHandle;
+  }
+
+  private HistogramHandle resolve() {
+    if (reporter instanceof WavefrontJerseyReporter) {
+      return ((WavefrontJerseyReporter) reporter).newHistogramHandle(metricName);
+    }
+    return new HistogramHandle() {
+      @Override
+      public void update(long value) {
+        reporter.updateHistogram(metricName, value);
+      }
+
+      @Override
+      public void update(long value, int count) {
+        reporter.updateHistogram(metricName, value);
+      }
+    };
+  }
+}
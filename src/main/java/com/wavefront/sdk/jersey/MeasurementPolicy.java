@@ -0,0 +1,74 @@
+package com.wavefront.sdk.jersey;
+
+import com.google.common.base.Preconditions;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Controls how often {@link WavefrontJerseyFilter} takes a per request measurement that has a
+ * cost on every measured request, i.e. the CPU time of a request for the {@code cpu_ns}
+ * histograms and the heap it allocated for the {@code allocated_bytes} histograms. Sampling
+ * keeps the attribution per route while paying the cost only for 1 in N requests on average.
+ * Each request is sampled independently with a probability of 1/N, which needs no state
+ * shared between the threads serving a route.
+ *
+ * Sampled measurements are reported with a weight of N, which only a
+ * {@link com.wavefront.sdk.jersey.reporter.WavefrontJerseyReporter} supports: the filter
+ * rejects a sampled policy with any other reporter, whose histogram counts would only reflect
+ * 1 in N requests.
+ */
+public final class MeasurementPolicy {
+
+  private static final MeasurementPolicy OFF = new MeasurementPolicy(0);
+  private static final MeasurementPolicy ALWAYS = new MeasurementPolicy(1);
+
+  private final int sampleRate;
+
+  private MeasurementPolicy(int sampleRate) {
+    this.sampleRate = sampleRate;
+  }
+
+  /**
+   * @return policy that never measures, no histograms are reported.
+   */
+  public static MeasurementPolicy off() {
+    return OFF;
+  }
+
+  /**
+   * @return policy that measures every request.
+   */
+  public static MeasurementPolicy always() {
+    return ALWAYS;
+  }
+
+  /**
+   * Measure 1 in {@code sampleRate} requests on average, each sample is reported with a
+   * weight of {@code sampleRate} so that the histogram counts still reflect the number of
+   * requests. Requires a {@link com.wavefront.sdk.jersey.reporter.WavefrontJerseyReporter} if
+   * {@code sampleRate} is greater than 1.
+   *
+   * @param sampleRate sample 1 in sampleRate requests, must be positive.
+   * @return sampling policy.
+   */
+  public static MeasurementPolicy sampled(int sampleRate) {
+    Preconditions.checkArgument(sampleRate > 0, "Invalid sampleRate");
+    return sampleRate == 1 ? ALWAYS : new MeasurementPolicy(sampleRate);
+  }
+
+  /**
+   * @return 0 if requests are never measured, otherwise 1 in how many requests are measured.
+   */
+  int getSampleRate() {
+    return sampleRate;
+  }
+
+  /**
+   * @param sampleRate 0 to never sample, otherwise sample 1 in sampleRate requests.
+   * @return true if the current request should be measured.
+   */
+  static boolean sample(int sampleRate) {
+    return sampleRate == 1 ||
+        (sampleRate > 1 && ThreadLocalRandom.current().nextInt(sampleRate) == 0);
+  }
+}
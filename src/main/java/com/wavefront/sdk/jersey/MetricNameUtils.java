@@ -6,8 +6,12 @@ import org.apache.commons.lang3.StringUtils;
 import org.glassfish.jersey.server.ContainerRequest;
 import org.glassfish.jersey.server.model.Resource;
 
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.Optional;
 
+import javax.annotation.Nullable;
+
 /**
  * A utils class to generate metric name for Jersey based application requests/responses.
  *
@@ -25,19 +29,30 @@ abstract class MetricNameUtils {
    * @return API path for use in metric name.
    */
   static Optional<Pair<String, String>> metricNameAndPath(ContainerRequest request) {
-    Resource matchedResource = request.getUriInfo().getMatchedModelResource();
+    return metricNameAndPath(request.getUriInfo().getMatchedModelResource(),
+        request.getMethod());
+  }
+
+  /**
+   * Provides the api path which is metric name friendly and the matching api path of a resource
+   * of the application resource model.
+   *
+   * @param matchedResource resource handling the request, null if none.
+   * @param httpMethod      HTTP request method.
+   * @return API path for use in metric name.
+   */
+  static Optional<Pair<String, String>> metricNameAndPath(@Nullable Resource matchedResource,
+                                                          String httpMethod) {
     if (matchedResource != null) {
-      StringBuilder matchingPath = new StringBuilder(stripLeadingAndTrailingSlashes(
-          matchedResource.getPath()));
-      // prepend the path for every parent
-      while (matchedResource.getParent() != null) {
-        matchedResource = matchedResource.getParent();
-        matchingPath.insert(0, stripLeadingAndTrailingSlashes(matchedResource.getPath()) + "/");
+      // collect the path of every parent first, so the matching path is built in one go
+      Deque<String> paths = new ArrayDeque<>();
+      for (Resource resource = matchedResource; resource != null;
+           resource = resource.getParent()) {
+        paths.addFirst(stripLeadingAndTrailingSlashes(resource.getPath()));
       }
-      Optional<String> optionalMetricName = metricName(request.getMethod(),
-          matchingPath.toString());
-      return optionalMetricName.map(
-          metricName -> new Pair<>(metricName, matchingPath.toString()));
+      String matchingPath = String.join("/", paths);
+      return metricName(httpMethod, matchingPath).map(
+          metricName -> new Pair<>(metricName, matchingPath));
     }
     return Optional.empty();
   }
@@ -52,11 +67,7 @@ abstract class MetricNameUtils {
    * @return generated metric name from the original request.
    */
   private static Optional<String> metricName(String httpMethod, String path) {
-    String metricId = stripLeadingAndTrailingSlashes(path);
-    // prevents metrics from trying to create object names with weird characters
-    // swagger-ui introduces a route: api-docs/{route: .+} and the colon must be removed
-    metricId = metricId.replace('/', '.').replace(":", "").
-        replace("{", "_").replace("}", "_");
+    String metricId = sanitize(stripLeadingAndTrailingSlashes(path));
     if (StringUtils.isBlank(metricId)) {
       return Optional.empty();
     }
@@ -64,6 +75,48 @@ abstract class MetricNameUtils {
     return Optional.of(metricId + "." + httpMethod);
   }
 
+  /**
+   * Turns slashes into dots and path templates into {@code _name_}, dropping the regular
+   * expression of templates so that e.g. {@code users/{id: [0-9]+}} and {@code users/{id}} both
+   * become {@code users._id_}. Swagger-ui introduces a route: api-docs/{route: .+}, neither the
+   * colon nor the expression can go in a metric name.
+   *
+   * @param path Jersey API request relative path.
+   * @return metric name friendly path.
+   */
+  static String sanitize(String path) {
+    StringBuilder metricId = new StringBuilder(path.length());
+    // > 0 inside a template, regular expressions may themselves contain braces
+    int depth = 0;
+    boolean inExpression = false;
+    for (int i = 0; i < path.length(); i++) {
+      char c = path.charAt(i);
+      if (c == '{') {
+        if (depth++ == 0) {
+          metricId.append('_');
+        }
+      } else if (c == '}' && depth > 0) {
+        if (--depth == 0) {
+          metricId.append('_');
+          inExpression = false;
+        }
+      } else if (depth > 0) {
+        if (c == ':') {
+          inExpression = true;
+        } else if (!inExpression && !Character.isWhitespace(c)) {
+          metricId.append(c);
+        }
+      } else if (c == '/') {
+        metricId.append('.');
+      } else if (c == '}') {
+        metricId.append('_');
+      } else if (c != ':') {
+        metricId.append(c);
+      }
+    }
+    return metricId.toString();
+  }
+
   private static String stripLeadingAndTrailingSlashes(String path) {
     return path == null ? "" : StringUtils.strip(path, "/");
   }
@@ -0,0 +1,119 @@
+package com.wavefront.sdk.jersey;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import javax.ws.rs.core.MultivaluedMap;
+
+import io.opentracing.propagation.TextMap;
+
+/**
+ * The request headers a tracer reads its span context from, so that extraction only hands the
+ * tracer those headers instead of every request header. Header names are looked up directly in
+ * the (case insensitive) request headers; prefixes, used for baggage, require a scan of the
+ * header names but entries are still only built for the matching headers.
+ */
+final class PropagationHeaders {
+
+  /**
+   * Headers of the HTTP_HEADERS propagation format of the WavefrontTracer: the trace id, span id
+   * and sampling decision, and the baggage items under the same prefix.
+   */
+  private static final Set<String> WAVEFRONT_NAMES = Collections.unmodifiableSet(
+      new HashSet<>(Arrays.asList("wf-ot-traceid", "wf-ot-spanid", "wf-ot-sample")));
+  private static final PropagationHeaders WAVEFRONT = new PropagationHeaders(WAVEFRONT_NAMES,
+      Collections.emptySet());
+  private static final PropagationHeaders WAVEFRONT_WITH_BAGGAGE = new PropagationHeaders(
+      WAVEFRONT_NAMES, Collections.singleton("wf-ot-"));
+
+  private final String[] names;
+  private final String[] prefixes;
+
+  PropagationHeaders(Set<String> names, Set<String> prefixes) {
+    this.names = lowerCase(names);
+    this.prefixes = lowerCase(prefixes);
+  }
+
+  /**
+   * @param baggage true to include the baggage headers, which are matched by prefix.
+   * @return propagation headers of the WavefrontTracer.
+   */
+  static PropagationHeaders wavefront(boolean baggage) {
+    return baggage ? WAVEFRONT_WITH_BAGGAGE : WAVEFRONT;
+  }
+
+  private static String[] lowerCase(Set<String> values) {
+    return values.stream().map(value -> value.toLowerCase(Locale.ROOT)).distinct().
+        toArray(String[]::new);
+  }
+
+  /**
+   * @param headers request headers.
+   * @return text map exposing only the propagation headers, for use with Tracer.extract().
+   */
+  TextMap extractTextMap(MultivaluedMap<String, String> headers) {
+    return new TextMap() {
+      @Override
+      public Iterator<Map.Entry<String, String>> iterator() {
+        List<Map.Entry<String, String>> entries = Collections.emptyList();
+        for (String name : names) {
+          entries = add(entries, name, headers.get(name));
+        }
+        if (prefixes.length > 0) {
+          for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+            if (matchesPrefix(header.getKey()) && !matchesName(header.getKey())) {
+              entries = add(entries, header.getKey(), header.getValue());
+            }
+          }
+        }
+        return entries.iterator();
+      }
+
+      @Override
+      public void put(String key, String value) {
+        throw new UnsupportedOperationException(PropagationHeaders.class.getName() +
+            " should only be used with Tracer.extract()");
+      }
+    };
+  }
+
+  private static List<Map.Entry<String, String>> add(List<Map.Entry<String, String>> entries,
+                                                     String name, List<String> values) {
+    if (values == null || values.isEmpty()) {
+      return entries;
+    }
+    if (entries.isEmpty()) {
+      entries = new ArrayList<>(4);
+    }
+    for (String value : values) {
+      entries.add(new AbstractMap.SimpleImmutableEntry<>(name, value));
+    }
+    return entries;
+  }
+
+  private boolean matchesPrefix(String headerName) {
+    for (String prefix : prefixes) {
+      if (headerName.regionMatches(true, 0, prefix, 0, prefix.length())) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private boolean matchesName(String headerName) {
+    for (String name : names) {
+      if (headerName.equalsIgnoreCase(name)) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
@@ -0,0 +1,208 @@
+package com.wavefront.sdk.jersey;
+
+import com.google.common.base.Preconditions;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+import javax.ws.rs.container.ContainerRequestContext;
+
+/**
+ * Tells {@link WavefrontJerseyFilter} where to find when a request was received upstream, to
+ * report how long it queued (e.g. in the load balancer, the accept queue or the thread pool of
+ * the container) before Jersey dispatched it, as {@code queue_time} histograms.
+ *
+ * The start time is read either from a header set upstream, e.g. {@code X-Request-Start}, or
+ * from a request property (a servlet request attribute under a servlet container) holding the
+ * epoch milliseconds at which the container received the request. Header values may be prefixed
+ * with {@code t=} and be epoch seconds (with a fraction), milliseconds, microseconds or
+ * nanoseconds. The unit is inferred from the magnitude, unless the value is suffixed with it
+ * ({@code s}, {@code ms}, {@code us} or {@code ns}).
+ *
+ * The upstream clock may be ahead of the local one: queue times that are negative by no more
+ * than the clock skew tolerance are reported as 0, others and the ones over the maximum queue
+ * time are dropped and counted as invalid.
+ */
+public final class QueueTimePolicy {
+
+  /**
+   * No start time on the request.
+   */
+  static final long NOT_AVAILABLE = -1;
+  /**
+   * A start time that can't be parsed or gives an implausible queue time.
+   */
+  static final long INVALID = -2;
+
+  // Epoch seconds, milliseconds and microseconds are below these until the year 5138.
+  private static final double MAX_EPOCH_SECONDS = 1e11;
+  private static final double MAX_EPOCH_MILLIS = 1e14;
+  private static final double MAX_EPOCH_MICROS = 1e17;
+
+  @Nullable
+  private final String headerName;
+  @Nullable
+  private final String propertyName;
+  private final long maxQueueTimeMillis;
+  private final long maxClockSkewMillis;
+
+  private QueueTimePolicy(@Nullable String headerName, @Nullable String propertyName,
+                          long maxQueueTimeMillis, long maxClockSkewMillis) {
+    this.headerName = headerName;
+    this.propertyName = propertyName;
+    this.maxQueueTimeMillis = maxQueueTimeMillis;
+    this.maxClockSkewMillis = maxClockSkewMillis;
+  }
+
+  /**
+   * @param request   jersey container request.
+   * @param nowMillis current epoch time in milliseconds.
+   * @return queue time of the request in milliseconds, {@link #NOT_AVAILABLE} or
+   * {@link #INVALID}.
+   */
+  long queueTimeMillis(ContainerRequestContext request, long nowMillis) {
+    double startMillis;
+    if (headerName != null) {
+      String value = request.getHeaderString(headerName);
+      if (value == null) {
+        return NOT_AVAILABLE;
+      }
+      startMillis = parseEpochMillis(value);
+    } else {
+      Object value = request.getProperty(propertyName);
+      if (value == null) {
+        return NOT_AVAILABLE;
+      }
+      startMillis = value instanceof Number ? ((Number) value).doubleValue() : Double.NaN;
+    }
+    return queueTimeMillis(startMillis, nowMillis);
+  }
+
+  /**
+   * @param startMillis epoch milliseconds at which the request was received upstream, NaN if
+   *                    it can't be parsed.
+   * @param nowMillis   current epoch time in milliseconds.
+   * @return queue time of the request in milliseconds or {@link #INVALID}.
+   */
+  long queueTimeMillis(double startMillis, long nowMillis) {
+    if (Double.isNaN(startMillis)) {
+      return INVALID;
+    }
+    long queueTimeMillis = (long) (nowMillis - startMillis);
+    if (queueTimeMillis < 0) {
+      return queueTimeMillis >= -maxClockSkewMillis ? 0 : INVALID;
+    }
+    return queueTimeMillis <= maxQueueTimeMillis ? queueTimeMillis : INVALID;
+  }
+
+  /**
+   * @return epoch milliseconds of a header value, NaN if it can't be parsed.
+   */
+  static double parseEpochMillis(String value) {
+    String timestamp = value.trim();
+    if (timestamp.startsWith("t=")) {
+      timestamp = timestamp.substring(2);
+    }
+    // 0 to infer the unit from the magnitude.
+    double unitMillis = 0;
+    int suffixLength = 2;
+    if (timestamp.endsWith("ms")) {
+      unitMillis = 1;
+    } else if (timestamp.endsWith("us")) {
+      unitMillis = 1e-3;
+    } else if (timestamp.endsWith("ns")) {
+      unitMillis = 1e-6;
+    } else if (timestamp.endsWith("s")) {
+      unitMillis = 1000;
+      suffixLength = 1;
+    }
+    if (unitMillis > 0) {
+      timestamp = timestamp.substring(0, timestamp.length() - suffixLength);
+    }
+    double epoch;
+    try {
+      epoch = Double.parseDouble(timestamp);
+    } catch (NumberFormatException e) {
+      return Double.NaN;
+    }
+    if (!(epoch > 0) || Double.isInfinite(epoch)) {
+      return Double.NaN;
+    } else if (unitMillis > 0) {
+      return epoch * unitMillis;
+    } else if (epoch < MAX_EPOCH_SECONDS) {
+      return epoch * 1000;
+    } else if (epoch < MAX_EPOCH_MILLIS) {
+      return epoch;
+    } else if (epoch < MAX_EPOCH_MICROS) {
+      return epoch / 1000;
+    }
+    return epoch / 1_000_000;
+  }
+
+  public static final class Builder {
+
+    @Nullable
+    private String headerName;
+    @Nullable
+    private String propertyName;
+    private long maxQueueTimeMillis = TimeUnit.MINUTES.toMillis(1);
+    private long maxClockSkewMillis = 100;
+
+    /**
+     * Read the start time of requests from the given header, e.g. X-Request-Start.
+     *
+     * @param headerName name of the header set upstream.
+     * @return {@code this}.
+     */
+    public Builder header(String headerName) {
+      this.headerName = headerName;
+      return this;
+    }
+
+    /**
+     * Read the start time of requests, in epoch milliseconds, from the given request property
+     * (a servlet request attribute under a servlet container).
+     *
+     * @param propertyName name of the property set by the container.
+     * @return {@code this}.
+     */
+    public Builder property(String propertyName) {
+      this.propertyName = propertyName;
+      return this;
+    }
+
+    /**
+     * Drop queue times over the given duration as invalid, defaults to 1 minute.
+     *
+     * @param duration maximum plausible queue time, must be positive.
+     * @param unit     unit of the duration.
+     * @return {@code this}.
+     */
+    public Builder maxQueueTime(long duration, TimeUnit unit) {
+      Preconditions.checkArgument(duration > 0, "Invalid duration");
+      this.maxQueueTimeMillis = unit.toMillis(duration);
+      return this;
+    }
+
+    /**
+     * Report negative queue times down to minus the given duration as 0, defaults to 100
+     * milliseconds.
+     *
+     * @param duration tolerated upstream clock skew, must not be negative.
+     * @param unit     unit of the duration.
+     * @return {@code this}.
+     */
+    public Builder maxClockSkew(long duration, TimeUnit unit) {
+      Preconditions.checkArgument(duration >= 0, "Invalid duration");
+      this.maxClockSkewMillis = unit.toMillis(duration);
+      return this;
+    }
+
+    public QueueTimePolicy build() {
+      Preconditions.checkArgument(headerName != null ^ propertyName != null,
+          "Exactly one of header or property must be set");
+      return new QueueTimePolicy(headerName, propertyName, maxQueueTimeMillis,
+          maxClockSkewMillis);
+    }
+  }
+}
@@ -0,0 +1,208 @@
+package com.wavefront.sdk.jersey;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A bounded, lock-free, multi-producer single-consumer ring buffer of preallocated request
+ * events. Request threads publish the outcome of a request without allocating, and a single
+ * daemon thread applies the events to a {@link Recorder} in publication order.
+ *
+ * Every slot carries a sequence number: a producer may fill slot {@code i} once its sequence
+ * equals the claimed position, and the consumer may read it once its sequence is one more.
+ *
+ * When idle, the consumer parks for a growing time, then until a producer signals it. The
+ * buffer must be closed to stop the consumer thread, which records the pending events first.
+ */
+final class RecordingBuffer {
+  private static final Logger logger = Logger.getLogger(RecordingBuffer.class.getName());
+  private static final long MIN_IDLE_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+  private static final long MAX_IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+  // Only a safety net, producers unpark the consumer once it waits for their signal.
+  private static final long SIGNALLED_PARK_NANOS = TimeUnit.SECONDS.toNanos(1);
+  private static final long FULL_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(10);
+  private static final long CLOSE_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(5);
+
+  /**
+   * Applies a request event, only ever called from the consumer thread.
+   */
+  interface Recorder {
+    void record(RouteDescriptor.StatusDescriptor status, boolean error, boolean redFromTracer,
+                long latencyMillis, long cpuNanos, long blockedNanos, long waitedNanos,
+                long allocatedBytes);
+  }
+
+  private final Recorder recorder;
+  private final boolean blockWhenFull;
+  private final long signalledParkNanos;
+  private final int mask;
+  private final AtomicLongArray sequences;
+  // Event fields, one entry per slot.
+  private final RouteDescriptor.StatusDescriptor[] statuses;
+  private final boolean[] errors;
+  private final boolean[] redFromTracer;
+  private final long[] latencies;
+  private final long[] cpuNanos;
+  private final long[] blockedNanos;
+  private final long[] waitedNanos;
+  private final long[] allocatedBytes;
+  private final AtomicLong tail = new AtomicLong();
+  private final Thread consumer;
+  // Set by the consumer when it waits for a producer to signal a new event.
+  private volatile boolean waiting;
+  private volatile boolean closed;
+  // Only accessed by the consumer thread.
+  private long head;
+
+  RecordingBuffer(int bufferSize, boolean blockWhenFull, Recorder recorder) {
+    this(bufferSize, blockWhenFull, recorder, SIGNALLED_PARK_NANOS);
+  }
+
+  /**
+   * @param signalledParkNanos how long the idle consumer waits for a signal before checking for
+   *                           events again.
+   */
+  RecordingBuffer(int bufferSize, boolean blockWhenFull, Recorder recorder,
+                  long signalledParkNanos) {
+    int capacity = bufferSize == 1 ? 1 : Integer.highestOneBit(bufferSize - 1) << 1;
+    this.recorder = recorder;
+    this.blockWhenFull = blockWhenFull;
+    this.signalledParkNanos = signalledParkNanos;
+    this.mask = capacity - 1;
+    this.sequences = new AtomicLongArray(capacity);
+    for (int i = 0; i < capacity; i++) {
+      sequences.set(i, i);
+    }
+    this.statuses = new RouteDescriptor.StatusDescriptor[capacity];
+    this.errors = new boolean[capacity];
+    this.redFromTracer = new boolean[capacity];
+    this.latencies = new long[capacity];
+    this.cpuNanos = new long[capacity];
+    this.blockedNanos = new long[capacity];
+    this.waitedNanos = new long[capacity];
+    this.allocatedBytes = new long[capacity];
+    this.consumer = new Thread(this::consume, "wavefront-jersey-recorder");
+    consumer.setDaemon(true);
+    consumer.start();
+  }
+
+  /**
+   * Publish the outcome of a request.
+   *
+   * @return false if the buffer was full or closed and the event was dropped.
+   */
+  boolean publish(RouteDescriptor.StatusDescriptor status, boolean error, boolean redFromTracer,
+                  long latencyMillis, long cpuNanos, long blockedNanos, long waitedNanos,
+                  long allocatedBytes) {
+    while (!closed) {
+      long position = tail.get();
+      int index = (int) position & mask;
+      long available = sequences.get(index) - position;
+      if (available == 0) {
+        if (tail.compareAndSet(position, position + 1)) {
+          statuses[index] = status;
+          errors[index] = error;
+          this.redFromTracer[index] = redFromTracer;
+          latencies[index] = latencyMillis;
+          this.cpuNanos[index] = cpuNanos;
+          this.blockedNanos[index] = blockedNanos;
+          this.waitedNanos[index] = waitedNanos;
+          this.allocatedBytes[index] = allocatedBytes;
+          // Volatile write publishes the event fields to the consumer, and is ordered before
+          // the read of waiting, so either the consumer sees the event or we see it waiting.
+          sequences.set(index, position + 1);
+          if (waiting) {
+            LockSupport.unpark(consumer);
+          }
+          return true;
+        }
+      } else if (available < 0) {
+        // The slot still holds an event from the previous lap, the buffer is full.
+        if (!blockWhenFull) {
+          return false;
+        }
+        LockSupport.parkNanos(FULL_PARK_NANOS);
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Stop the consumer thread once it has recorded the events already published, later events
+   * are dropped. Waits up to 5 seconds for the consumer to finish.
+   */
+  void close() {
+    closed = true;
+    LockSupport.unpark(consumer);
+    if (Thread.currentThread() == consumer) {
+      return;
+    }
+    try {
+      consumer.join(CLOSE_TIMEOUT_MILLIS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * @return the consumer thread.
+   */
+  Thread getConsumer() {
+    return consumer;
+  }
+
+  /**
+   * @return true if the consumer is idle and waits for a producer to signal a new event.
+   */
+  boolean isConsumerWaiting() {
+    return waiting;
+  }
+
+  private void consume() {
+    long idleParkNanos = MIN_IDLE_PARK_NANOS;
+    while (true) {
+      int index = (int) head & mask;
+      if (sequences.get(index) != head + 1) {
+        // Stop once closed and no producer is still writing a claimed slot.
+        if (closed && tail.get() == head) {
+          return;
+        }
+        if (idleParkNanos < MAX_IDLE_PARK_NANOS) {
+          LockSupport.parkNanos(idleParkNanos);
+          idleParkNanos <<= 1;
+        } else {
+          waiting = true;
+          // Check again after setting waiting, a producer may have published before seeing it.
+          if (sequences.get(index) != head + 1 && !closed) {
+            LockSupport.parkNanos(this, signalledParkNanos);
+          }
+          waiting = false;
+        }
+        continue;
+      }
+      idleParkNanos = MIN_IDLE_PARK_NANOS;
+      RouteDescriptor.StatusDescriptor status = statuses[index];
+      boolean error = errors[index];
+      boolean fromTracer = redFromTracer[index];
+      long latencyMillis = latencies[index];
+      long cpu = cpuNanos[index];
+      long blocked = blockedNanos[index];
+      long waited = waitedNanos[index];
+      long allocated = allocatedBytes[index];
+      statuses[index] = null;
+      // Hand the slot back to the producers for the next lap.
+      sequences.set(index, head + mask + 1);
+      head++;
+      try {
+        recorder.record(status, error, fromTracer, latencyMillis, cpu, blocked, waited,
+            allocated);
+      } catch (Throwable t) {
+        logger.log(Level.SEVERE, "Exception recording jersey response metrics", t);
+      }
+    }
+  }
+}
@@ -0,0 +1,72 @@
+package com.wavefront.sdk.jersey;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Controls where {@link WavefrontJerseyFilter} records the response metrics of a request. By
+ * default they are recorded on the request thread. Asynchronous policies instead publish one
+ * fixed-size event per request to a preallocated ring buffer, and a single background thread
+ * applies the events to the reporter, taking the metric work off the request path. The thread
+ * runs until the application is destroyed or {@link WavefrontJerseyFilter#close()} is called.
+ */
+public final class RecordingPolicy {
+
+  private static final RecordingPolicy SYNCHRONOUS = new RecordingPolicy(0, false);
+
+  private final int bufferSize;
+  private final boolean blockWhenFull;
+
+  private RecordingPolicy(int bufferSize, boolean blockWhenFull) {
+    this.bufferSize = bufferSize;
+    this.blockWhenFull = blockWhenFull;
+  }
+
+  /**
+   * @return policy that records the metrics on the request thread (default).
+   */
+  public static RecordingPolicy synchronous() {
+    return SYNCHRONOUS;
+  }
+
+  /**
+   * Record the metrics on a background thread, dropping the metrics of a request if the buffer
+   * is full. Dropped requests are counted in jersey.server.recording.dropped.
+   *
+   * @param bufferSize number of requests the buffer can hold, rounded up to a power of 2.
+   * @return asynchronous policy that never blocks the request thread.
+   */
+  public static RecordingPolicy asyncDropping(int bufferSize) {
+    return async(bufferSize, false);
+  }
+
+  /**
+   * Record the metrics on a background thread, making the request thread wait for room if the
+   * buffer is full.
+   *
+   * @param bufferSize number of requests the buffer can hold, rounded up to a power of 2.
+   * @return asynchronous policy that never loses metrics.
+   */
+  public static RecordingPolicy asyncBlocking(int bufferSize) {
+    return async(bufferSize, true);
+  }
+
+  private static RecordingPolicy async(int bufferSize, boolean blockWhenFull) {
+    Preconditions.checkArgument(bufferSize > 0 && bufferSize <= 1 << 30, "Invalid bufferSize");
+    return new RecordingPolicy(bufferSize, blockWhenFull);
+  }
+
+  /**
+   * @return true if the metrics are recorded on a background thread.
+   */
+  boolean isAsynchronous() {
+    return bufferSize > 0;
+  }
+
+  int getBufferSize() {
+    return bufferSize;
+  }
+
+  boolean isBlockWhenFull() {
+    return blockWhenFull;
+  }
+}
@@ -0,0 +1,25 @@
+package com.wavefront.sdk.jersey;
+
+/**
+ * Which pipeline is authoritative for the RED (rate, errors, duration) metrics of a request when
+ * {@link WavefrontJerseyFilter} is configured with a tracer that derives RED metrics from the
+ * spans, as the WavefrontTracer does.
+ */
+public enum RedMetricsMode {
+  /**
+   * The filter reports its RED metrics for every request, overlapping with the metrics the
+   * tracer derives from the spans (default).
+   */
+  FILTER_AND_TRACER,
+  /**
+   * The tracer is authoritative for every request with a span: for those the filter skips the
+   * per route latency histograms and total time counters, the per status counts
+   * ({@code cumulative} and {@code aggregated_per_*}), the error counters and the
+   * {@code response.completed} and {@code response.errors} aggregates, and only reports what is
+   * unique to it (inflight gauges and the cpu_ns, blocked_ns, waited_ns and allocated_bytes
+   * histograms). Requests that are not sampled by the {@link TraceSamplingPolicy} have an
+   * unreported span the WavefrontTracer still derives RED metrics from, so this holds for them
+   * too.
+   */
+  TRACER
+}
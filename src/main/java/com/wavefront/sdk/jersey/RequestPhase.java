@@ -0,0 +1,41 @@
+package com.wavefront.sdk.jersey;
+
+/**
+ * Phases of the Jersey request processing reported by {@link WavefrontJerseyEventListener}.
+ */
+enum RequestPhase {
+  /**
+   * From the start of request matching until the request is matched to a resource method.
+   */
+  MATCHING("matching_ns"),
+  /**
+   * Execution of the (post-matching) request filters.
+   */
+  REQUEST_FILTERS("request_filters_ns"),
+  /**
+   * Execution of the resource method.
+   */
+  RESOURCE_METHOD("resource_method_ns"),
+  /**
+   * From the first exception until the exception is mapped to a response.
+   */
+  EXCEPTION_MAPPING("exception_mapping_ns"),
+  /**
+   * Execution of the response filters.
+   */
+  RESPONSE_FILTERS("response_filters_ns"),
+  /**
+   * From the end of the response filters until the response entity is written.
+   */
+  RESPONSE_WRITE("response_write_ns");
+
+  private final String metricSuffix;
+
+  RequestPhase(String metricSuffix) {
+    this.metricSuffix = metricSuffix;
+  }
+
+  String getMetricSuffix() {
+    return metricSuffix;
+  }
+}
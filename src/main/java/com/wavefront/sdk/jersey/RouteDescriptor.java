@@ -0,0 +1,490 @@
+package com.wavefront.sdk.jersey;
+
+import com.wavefront.internal.reporter.SdkReporter;
+import com.wavefront.internal_reporter_java.io.dropwizard.metrics5.MetricName;
+import com.wavefront.sdk.common.application.ApplicationTags;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import javax.annotation.Nullable;
+
+import static com.wavefront.sdk.common.Constants.CLUSTER_TAG_KEY;
+import static com.wavefront.sdk.common.Constants.NULL_TAG_VAL;
+import static com.wavefront.sdk.common.Constants.SERVICE_TAG_KEY;
+import static com.wavefront.sdk.common.Constants.SHARD_TAG_KEY;
+import static com.wavefront.sdk.common.Constants.WAVEFRONT_PROVIDED_SOURCE;
+import static com.wavefront.sdk.jersey.CardinalityGuard.OTHER_STATUS;
+import static com.wavefront.sdk.jersey.CardinalityGuard.OVERFLOW_ROUTE;
+import static com.wavefront.sdk.jersey.MetricNameUtils.REQUEST_PREFIX;
+import static com.wavefront.sdk.jersey.MetricNameUtils.RESPONSE_PREFIX;
+
+/**
+ * Immutable metric names and tag maps for a single Jersey route (resource method + HTTP method).
+ * Built once per route and reused for every subsequent request so that the hot path does not
+ * have to rebuild tag maps and {@link MetricName} instances, nor look the metrics up by name.
+ * A route over the {@link CardinalityLimits} keeps its names for tracing but reports its metrics
+ * under the shared overflow route.
+ */
+final class RouteDescriptor {
+
+  private static final int MIN_CACHED_STATUS = 100;
+  private static final int MAX_CACHED_STATUS = 599;
+
+  private final ApplicationTags applicationTags;
+  private final SdkReporter reporter;
+  private final CardinalityGuard guard;
+  private final String metricName;
+  private final String matchingPath;
+  private final String className;
+  private final String methodName;
+  private final String operationName;
+  private final boolean asynchronous;
+  private final boolean overflow;
+  private final Map<String, String> completeTagsMap;
+  private final Map<String, String> aggregatedPerShardMap;
+  private final Map<String, String> aggregatedPerServiceMap;
+  private final Map<String, String> aggregatedPerClusterMap;
+  private final Map<String, String> aggregatedPerApplicationMap;
+  private final MetricName inflight;
+  private final MetricName streamingInflight;
+  private final LazyCounter errors;
+  private final LazyCounter overallErrors;
+  private final LazyHistogram queueTime;
+  private final LazyHistogram readNs;
+  private final LazyHistogram requestBytes;
+  private final LazyHistogram writeNs;
+  private final LazyHistogram responseBytes;
+
+  // Status descriptors for the common HTTP status range, indexed by (status - 100).
+  private final AtomicReferenceArray<StatusDescriptor> statusDescriptors =
+      new AtomicReferenceArray<>(MAX_CACHED_STATUS - MIN_CACHED_STATUS + 1);
+  // Anything outside the common range, should be very rare.
+  private final ConcurrentMap<Integer, StatusDescriptor> otherStatusDescriptors =
+      new ConcurrentHashMap<>();
+  // Statuses with their own series, bounded by the guard.
+  private final CardinalityGuard.RouteStatuses statuses;
+  // Shared by all the statuses over the limit, built lazily.
+  @Nullable
+  private volatile StatusDescriptor overflowStatusDescriptor;
+  // Only used when tracing, so built lazily.
+  @Nullable
+  private volatile SpanTemplate spanTemplate;
+  // Coarse last use timestamp for idle eviction, see RouteDescriptorCache.
+  private volatile long lastUsedNanos;
+  // Pinned routes are never evicted, see RouteDescriptorCache.
+  private volatile boolean pinned;
+
+  RouteDescriptor(ApplicationTags applicationTags, SdkReporter reporter, CardinalityGuard guard,
+                  String metricName, String matchingPath, String className, String methodName,
+                  boolean asynchronous, boolean overflow) {
+    this.applicationTags = applicationTags;
+    this.reporter = reporter;
+    this.guard = guard;
+    this.metricName = overflow ? OVERFLOW_ROUTE : metricName;
+    this.matchingPath = matchingPath;
+    this.className = className;
+    this.methodName = methodName;
+    this.operationName = className.substring(className.lastIndexOf('.') + 1) + "." + methodName;
+    this.asynchronous = asynchronous;
+    this.overflow = overflow;
+    this.statuses = guard.statusesOf(this.metricName);
+    this.lastUsedNanos = System.nanoTime();
+
+    Map<String, String> completeTags = new HashMap<>();
+    completeTags.put(CLUSTER_TAG_KEY, clusterOrDefault(applicationTags));
+    completeTags.put(SERVICE_TAG_KEY, applicationTags.getService());
+    completeTags.put(SHARD_TAG_KEY, shardOrDefault(applicationTags));
+    putRouteTags(completeTags, overflow);
+    this.completeTagsMap = Collections.unmodifiableMap(completeTags);
+
+    Map<String, String> perShard = new HashMap<>();
+    perShard.put(CLUSTER_TAG_KEY, clusterOrDefault(applicationTags));
+    perShard.put(SERVICE_TAG_KEY, applicationTags.getService());
+    perShard.put(SHARD_TAG_KEY, shardOrDefault(applicationTags));
+    putRouteTags(perShard, overflow);
+    perShard.put("source", WAVEFRONT_PROVIDED_SOURCE);
+    this.aggregatedPerShardMap = Collections.unmodifiableMap(perShard);
+
+    Map<String, String> perService = new HashMap<>();
+    perService.put(CLUSTER_TAG_KEY, clusterOrDefault(applicationTags));
+    perService.put(SERVICE_TAG_KEY, applicationTags.getService());
+    putRouteTags(perService, overflow);
+    perService.put("source", WAVEFRONT_PROVIDED_SOURCE);
+    this.aggregatedPerServiceMap = Collections.unmodifiableMap(perService);
+
+    Map<String, String> perCluster = new HashMap<>();
+    perCluster.put(CLUSTER_TAG_KEY, clusterOrDefault(applicationTags));
+    putRouteTags(perCluster, overflow);
+    perCluster.put("source", WAVEFRONT_PROVIDED_SOURCE);
+    this.aggregatedPerClusterMap = Collections.unmodifiableMap(perCluster);
+
+    Map<String, String> perApplication = new HashMap<>();
+    putRouteTags(perApplication, overflow);
+    perApplication.put("source", WAVEFRONT_PROVIDED_SOURCE);
+    this.aggregatedPerApplicationMap = Collections.unmodifiableMap(perApplication);
+
+    this.inflight = new MetricName(REQUEST_PREFIX + this.metricName + ".inflight",
+        completeTagsMap);
+    this.streamingInflight = new MetricName(REQUEST_PREFIX + this.metricName +
+        ".streaming.inflight", completeTagsMap);
+    this.errors = LazyCounter.counter(reporter, new MetricName(RESPONSE_PREFIX +
+        this.metricName + ".errors", completeTagsMap));
+    this.overallErrors = LazyCounter.counter(reporter, new MetricName("response.errors",
+        completeTagsMap));
+    this.queueTime = new LazyHistogram(reporter, new MetricName(REQUEST_PREFIX +
+        this.metricName + ".queue_time", completeTagsMap));
+    this.readNs = new LazyHistogram(reporter, new MetricName(REQUEST_PREFIX +
+        this.metricName + ".read_ns", completeTagsMap));
+    this.requestBytes = new LazyHistogram(reporter, new MetricName(REQUEST_PREFIX +
+        this.metricName + ".request_bytes", completeTagsMap));
+    this.writeNs = new LazyHistogram(reporter, new MetricName(RESPONSE_PREFIX +
+        this.metricName + ".write_ns", completeTagsMap));
+    this.responseBytes = new LazyHistogram(reporter, new MetricName(RESPONSE_PREFIX +
+        this.metricName + ".response_bytes", completeTagsMap));
+  }
+
+  private void putRouteTags(Map<String, String> tags, boolean overflow) {
+    tags.put("jersey.resource.class", overflow ? OVERFLOW_ROUTE : className);
+    tags.put("jersey.resource.method", overflow ? OVERFLOW_ROUTE : methodName);
+    tags.put("operationName", overflow ? OVERFLOW_ROUTE : operationName);
+  }
+
+  static String clusterOrDefault(ApplicationTags applicationTags) {
+    return applicationTags.getCluster() == null ? NULL_TAG_VAL : applicationTags.getCluster();
+  }
+
+  static String shardOrDefault(ApplicationTags applicationTags) {
+    return applicationTags.getShard() == null ? NULL_TAG_VAL : applicationTags.getShard();
+  }
+
+  /**
+   * @return metric friendly API path including the HTTP method, e.g. api.v2.alert.summary.GET
+   */
+  String getMetricName() {
+    return metricName;
+  }
+
+  String getMatchingPath() {
+    return matchingPath;
+  }
+
+  String getClassName() {
+    return className;
+  }
+
+  String getMethodName() {
+    return methodName;
+  }
+
+  String getOperationName() {
+    return operationName;
+  }
+
+  /**
+   * @return true if the resource method completes asynchronously (suspended AsyncResponse,
+   * managed async or CompletionStage), i.e. the response may be processed on another thread.
+   */
+  boolean isAsynchronous() {
+    return asynchronous;
+  }
+
+  /**
+   * @return true if the metrics of this route are reported under the overflow route.
+   */
+  boolean isOverflow() {
+    return overflow;
+  }
+
+  /**
+   * Record that the route was used, only writes if the last use is older than the given
+   * resolution so that the hot path doesn't keep invalidating the cache line.
+   */
+  void markUsed(long nowNanos, long resolutionNanos) {
+    if (nowNanos - lastUsedNanos > resolutionNanos) {
+      lastUsedNanos = nowNanos;
+    }
+  }
+
+  long getLastUsedNanos() {
+    return lastUsedNanos;
+  }
+
+  /**
+   * Keep the route cached even when idle, e.g. because its series were pre-registered.
+   */
+  void pin() {
+    pinned = true;
+  }
+
+  boolean isPinned() {
+    return pinned;
+  }
+
+  /**
+   * @return the span template of this route, built with the given policy on first use.
+   */
+  SpanTemplate getSpanTemplate(SpanDecorationPolicy spanDecorationPolicy) {
+    SpanTemplate template = spanTemplate;
+    if (template == null) {
+      // Racing threads build identical templates, so no need to synchronize.
+      template = new SpanTemplate(this, spanDecorationPolicy);
+      spanTemplate = template;
+    }
+    return template;
+  }
+
+  Map<String, String> getCompleteTagsMap() {
+    return completeTagsMap;
+  }
+
+  /**
+   * @return jersey.server.request.api.v2.alert.summary.GET.inflight
+   */
+  MetricName getInflight() {
+    return inflight;
+  }
+
+  /**
+   * @return jersey.server.request.api.v2.alert.summary.GET.streaming.inflight
+   */
+  MetricName getStreamingInflight() {
+    return streamingInflight;
+  }
+
+  /**
+   * @return jersey.server.request.api.v2.alert.summary.GET.queue_time
+   */
+  LazyHistogram getQueueTime() {
+    return queueTime;
+  }
+
+  /**
+   * @return jersey.server.request.api.v2.alert.summary.GET.read_ns
+   */
+  LazyHistogram getReadNs() {
+    return readNs;
+  }
+
+  /**
+   * @return jersey.server.request.api.v2.alert.summary.GET.request_bytes
+   */
+  LazyHistogram getRequestBytes() {
+    return requestBytes;
+  }
+
+  /**
+   * @return jersey.server.response.api.v2.alert.summary.GET.write_ns
+   */
+  LazyHistogram getWriteNs() {
+    return writeNs;
+  }
+
+  /**
+   * @return jersey.server.response.api.v2.alert.summary.GET.response_bytes
+   */
+  LazyHistogram getResponseBytes() {
+    return responseBytes;
+  }
+
+  /**
+   * @return jersey.server.response.api.v2.alert.summary.GET.errors
+   */
+  LazyCounter getErrors() {
+    return errors;
+  }
+
+  /**
+   * @return jersey.server.response.errors tagged with this route.
+   */
+  LazyCounter getOverallErrors() {
+    return overallErrors;
+  }
+
+  /**
+   * Returns the cached metric names for the given HTTP response status of this route.
+   *
+   * @param status HTTP response status code.
+   * @return status specific metric names, or the ones of the other status if the route already
+   * has as many statuses as the cardinality limits allow.
+   */
+  StatusDescriptor forStatus(int status) {
+    if (status >= MIN_CACHED_STATUS && status <= MAX_CACHED_STATUS) {
+      int index = status - MIN_CACHED_STATUS;
+      StatusDescriptor descriptor = statusDescriptors.get(index);
+      if (descriptor == null) {
+        // A rejected status is cached as the other status, so it is only rejected once.
+        descriptor = guard.admitStatus(statuses, status) ?
+            new StatusDescriptor(Integer.toString(status)) : overflowStatus();
+        if (!statusDescriptors.compareAndSet(index, null, descriptor)) {
+          descriptor = statusDescriptors.get(index);
+        }
+      }
+      return descriptor;
+    }
+    StatusDescriptor descriptor = otherStatusDescriptors.get(status);
+    if (descriptor != null) {
+      return descriptor;
+    }
+    if (!guard.admitStatus(statuses, status)) {
+      return overflowStatus();
+    }
+    descriptor = new StatusDescriptor(Integer.toString(status));
+    StatusDescriptor existing = otherStatusDescriptors.putIfAbsent(status, descriptor);
+    return existing != null ? existing : descriptor;
+  }
+
+  private StatusDescriptor overflowStatus() {
+    StatusDescriptor descriptor = overflowStatusDescriptor;
+    if (descriptor == null) {
+      // Racing threads build descriptors for the same series, so no need to synchronize.
+      descriptor = new StatusDescriptor(OTHER_STATUS);
+      overflowStatusDescriptor = descriptor;
+    }
+    return descriptor;
+  }
+
+  /**
+   * Metrics for a (route, HTTP status) pair.
+   */
+  final class StatusDescriptor {
+    private final LazyCounter cumulative;
+    @Nullable
+    private final LazyCounter aggregatedPerShard;
+    private final LazyCounter aggregatedPerService;
+    @Nullable
+    private final LazyCounter aggregatedPerCluster;
+    private final LazyCounter aggregatedPerApplication;
+    private final LazyHistogram cpuNs;
+    private final LazyHistogram blockedNs;
+    private final LazyHistogram waitedNs;
+    private final LazyHistogram allocatedBytes;
+    private final LazyHistogram latency;
+    private final LazyHistogram timeToFirstByte;
+    private final LazyHistogram timeToLastByte;
+    private final LazyCounter totalTime;
+    private final String responseMetricKey;
+    // Only used when per-phase latencies are reported, so built lazily.
+    @Nullable
+    private volatile LazyHistogram[] phases;
+
+    private StatusDescriptor(String status) {
+      this.responseMetricKey = RESPONSE_PREFIX + metricName + "." + status;
+      this.cumulative = LazyCounter.counter(reporter, new MetricName(responseMetricKey +
+          ".cumulative", completeTagsMap));
+      this.aggregatedPerShard = applicationTags.getShard() == null ? null :
+          LazyCounter.deltaCounter(reporter, new MetricName(responseMetricKey +
+              ".aggregated_per_shard", aggregatedPerShardMap));
+      this.aggregatedPerService = LazyCounter.deltaCounter(reporter, new MetricName(
+          responseMetricKey + ".aggregated_per_service", aggregatedPerServiceMap));
+      this.aggregatedPerCluster = applicationTags.getCluster() == null ? null :
+          LazyCounter.deltaCounter(reporter, new MetricName(responseMetricKey +
+              ".aggregated_per_cluster", aggregatedPerClusterMap));
+      this.aggregatedPerApplication = LazyCounter.deltaCounter(reporter, new MetricName(
+          responseMetricKey + ".aggregated_per_application", aggregatedPerApplicationMap));
+      this.cpuNs = new LazyHistogram(reporter, new MetricName(responseMetricKey + ".cpu_ns",
+          completeTagsMap));
+      this.blockedNs = new LazyHistogram(reporter, new MetricName(responseMetricKey +
+          ".blocked_ns", completeTagsMap));
+      this.waitedNs = new LazyHistogram(reporter, new MetricName(responseMetricKey +
+          ".waited_ns", completeTagsMap));
+      this.allocatedBytes = new LazyHistogram(reporter, new MetricName(responseMetricKey +
+          ".allocated_bytes", completeTagsMap));
+      this.latency = new LazyHistogram(reporter, new MetricName(responseMetricKey + ".latency",
+          completeTagsMap));
+      this.timeToFirstByte = new LazyHistogram(reporter, new MetricName(responseMetricKey +
+          ".time_to_first_byte", completeTagsMap));
+      this.timeToLastByte = new LazyHistogram(reporter, new MetricName(responseMetricKey +
+          ".time_to_last_byte", completeTagsMap));
+      this.totalTime = LazyCounter.counter(reporter, new MetricName(responseMetricKey +
+          ".total_time", completeTagsMap));
+    }
+
+    /**
+     * @return the route this status belongs to.
+     */
+    RouteDescriptor getRoute() {
+      return RouteDescriptor.this;
+    }
+
+    LazyCounter getCumulative() {
+      return cumulative;
+    }
+
+    /**
+     * @return per shard delta counter or null if no shard is configured.
+     */
+    @Nullable
+    LazyCounter getAggregatedPerShard() {
+      return aggregatedPerShard;
+    }
+
+    LazyCounter getAggregatedPerService() {
+      return aggregatedPerService;
+    }
+
+    /**
+     * @return per cluster delta counter or null if no cluster is configured.
+     */
+    @Nullable
+    LazyCounter getAggregatedPerCluster() {
+      return aggregatedPerCluster;
+    }
+
+    LazyCounter getAggregatedPerApplication() {
+      return aggregatedPerApplication;
+    }
+
+    LazyHistogram getCpuNs() {
+      return cpuNs;
+    }
+
+    LazyHistogram getBlockedNs() {
+      return blockedNs;
+    }
+
+    LazyHistogram getWaitedNs() {
+      return waitedNs;
+    }
+
+    LazyHistogram getAllocatedBytes() {
+      return allocatedBytes;
+    }
+
+    LazyHistogram getLatency() {
+      return latency;
+    }
+
+    LazyHistogram getTimeToFirstByte() {
+      return timeToFirstByte;
+    }
+
+    LazyHistogram getTimeToLastByte() {
+      return timeToLastByte;
+    }
+
+    LazyCounter getTotalTime() {
+      return totalTime;
+    }
+
+    /**
+     * @return jersey.server.response.api.v2.alert.summary.GET.200.{phase}_ns
+     */
+    LazyHistogram getPhase(RequestPhase phase) {
+      LazyHistogram[] histograms = phases;
+      if (histograms == null) {
+        histograms = new LazyHistogram[RequestPhase.values().length];
+        for (RequestPhase requestPhase : RequestPhase.values()) {
+          histograms[requestPhase.ordinal()] = new LazyHistogram(reporter, new MetricName(
+              responseMetricKey + "." + requestPhase.getMetricSuffix(), completeTagsMap));
+        }
+        phases = histograms;
+      }
+      return histograms[phase.ordinal()];
+    }
+  }
+}
@@ -0,0 +1,308 @@
+package com.wavefront.sdk.jersey;
+
+import com.wavefront.internal.reporter.SdkReporter;
+import com.wavefront.sdk.common.Pair;
+import com.wavefront.sdk.common.application.ApplicationTags;
+
+import org.glassfish.jersey.server.ContainerRequest;
+import org.glassfish.jersey.server.model.Invocable;
+import org.glassfish.jersey.server.model.ResourceMethod;
+
+import java.lang.reflect.Method;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+import javax.annotation.Nullable;
+import javax.ws.rs.ext.InterceptorContext;
+
+import static com.wavefront.sdk.jersey.CardinalityGuard.OVERFLOW_ROUTE;
+
+/**
+ * Cache of {@link RouteDescriptor}s keyed by the matched Jersey resource method, or by the
+ * metric name of requests that matched a resource but none of its methods. Routes over the
+ * {@link CardinalityLimits} are built as overflow routes, requests that matched no resource
+ * method over the limits share a single overflow route.
+ *
+ * Routes that have not been used within the idle TTL are evicted, unless pinned, and
+ * transparently rebuilt if they are used again. Eviction only frees the memory of the
+ * descriptors: the reporter can't unregister series, so the counters and histograms of evicted
+ * routes stay registered and evicted routes keep their cardinality slot. The owner can tell
+ * whether a route can be evicted from {@link RouteDescriptor#isPinned()}, the overflow route of
+ * unmatched requests is pinned.
+ */
+final class RouteDescriptorCache {
+
+  private static final String ROUTE_PROPERTY_NAME_PREFIX = "wavefront.jersey.route.";
+  private static final AtomicInteger instances = new AtomicInteger();
+  // Marks requests that don't map to a route.
+  private static final Object NO_ROUTE = new Object();
+
+  private final ApplicationTags applicationTags;
+  private final SdkReporter reporter;
+  private final CardinalityGuard guard;
+  // Keyed by RouteKey, or by metric name for requests that matched no resource method.
+  private final ConcurrentMap<Object, Optional<RouteDescriptor>> routes =
+      new ConcurrentHashMap<>();
+  // Shared by the requests that matched no resource method over the limits, built lazily.
+  @Nullable
+  private volatile RouteDescriptor unmatchedOverflow;
+  // 0 if routes are never evicted.
+  private final long idleTtlNanos;
+  // Decides whether an idle route can be evicted and releases what the owner keeps for it.
+  private final Predicate<RouteDescriptor> evictionHandler;
+  private final AtomicLong lastSweepNanos = new AtomicLong(System.nanoTime());
+  // Request property memoizing the route of a request, distinct per cache since the filter and
+  // the event listener build their own descriptors.
+  private final String routePropertyName =
+      ROUTE_PROPERTY_NAME_PREFIX + instances.incrementAndGet();
+
+  /**
+   * @param reportRejections whether series rejected by the cardinality limits are counted, see
+   *                         {@link CardinalityGuard}.
+   * @param idleTtlNanos     evict routes not used for that long, 0 to never evict.
+   * @param evictionHandler  returns false if an idle route can't be evicted yet, e.g. because it
+   *                         still has requests in flight.
+   */
+  RouteDescriptorCache(ApplicationTags applicationTags, SdkReporter reporter,
+                       CardinalityLimits limits, boolean reportRejections, long idleTtlNanos,
+                       Predicate<RouteDescriptor> evictionHandler) {
+    this.applicationTags = applicationTags;
+    this.reporter = reporter;
+    this.guard = new CardinalityGuard(limits, applicationTags, reporter, reportRejections);
+    this.idleTtlNanos = idleTtlNanos;
+    this.evictionHandler = evictionHandler;
+  }
+
+  /**
+   * Returns the cached {@link RouteDescriptor} for the resource method matched by the given
+   * request, building it on first use. The route is resolved once per request and memoized on
+   * the request, so it must only be called once the request is matched.
+   *
+   * @param request jersey container request.
+   * @return route descriptor or null if the request does not map to a metric friendly API path.
+   */
+  @Nullable
+  RouteDescriptor get(ContainerRequest request) {
+    Object memoized = request.getProperty(routePropertyName);
+    if (memoized instanceof RouteDescriptor) {
+      return (RouteDescriptor) memoized;
+    } else if (memoized == NO_ROUTE) {
+      return null;
+    }
+    RouteDescriptor route = resolve(request);
+    request.setProperty(routePropertyName, route == null ? NO_ROUTE : route);
+    return route;
+  }
+
+  /**
+   * Returns the route memoized on a request by {@link #get(ContainerRequest)}, for the
+   * interceptors that only see the request properties.
+   *
+   * @param context interceptor context of the request.
+   * @return route descriptor or null if the request was not resolved or has no route.
+   */
+  @Nullable
+  RouteDescriptor getMemoized(InterceptorContext context) {
+    Object memoized = context.getProperty(routePropertyName);
+    return memoized instanceof RouteDescriptor ? (RouteDescriptor) memoized : null;
+  }
+
+  @Nullable
+  private RouteDescriptor resolve(ContainerRequest request) {
+    ResourceMethod resourceMethod = request.getUriInfo().getMatchedResourceMethod();
+    Optional<RouteDescriptor> route;
+    if (resourceMethod == null) {
+      route = resolveUnmatched(request);
+    } else {
+      RouteKey routeKey = new RouteKey(resourceMethod, request.getMethod());
+      route = routes.get(routeKey);
+      if (route == null) {
+        route = routes.computeIfAbsent(routeKey, key -> newRouteDescriptor(request));
+      }
+    }
+    if (idleTtlNanos > 0 && route.isPresent()) {
+      long nowNanos = System.nanoTime();
+      route.get().markUsed(nowNanos, idleTtlNanos >> 4);
+      evictIdle(nowNanos);
+    }
+    return route.orElse(null);
+  }
+
+  /**
+   * Resolves the route of a request that matched no resource method, e.g. with an unsupported
+   * HTTP method. The HTTP method is part of the metric name, and any method can be sent, so such
+   * routes are cached by metric name once admitted by the limits, and share a single overflow
+   * route otherwise.
+   */
+  private Optional<RouteDescriptor> resolveUnmatched(ContainerRequest request) {
+    Optional<Pair<String, String>> pairOptional = MetricNameUtils.metricNameAndPath(request);
+    if (!pairOptional.isPresent()) {
+      return Optional.empty();
+    }
+    String metricName = pairOptional.get()._1;
+    Optional<RouteDescriptor> route = routes.get(metricName);
+    if (route != null) {
+      return route;
+    }
+    if (!guard.admitRoute(metricName)) {
+      return Optional.of(unmatchedOverflow());
+    }
+    return routes.computeIfAbsent(metricName,
+        key -> Optional.of(newRouteDescriptor(request, pairOptional.get(), false)));
+  }
+
+  private RouteDescriptor unmatchedOverflow() {
+    RouteDescriptor route = unmatchedOverflow;
+    if (route == null) {
+      // Racing threads build descriptors for the same series, so no need to synchronize.
+      route = new RouteDescriptor(applicationTags, reporter, guard, OVERFLOW_ROUTE,
+          OVERFLOW_ROUTE, "unknown", "unknown", false, true);
+      // Never cached, so never evicted.
+      route.pin();
+      unmatchedOverflow = route;
+    }
+    return route;
+  }
+
+  /**
+   * Builds and caches the {@link RouteDescriptor} of a resource method of the application
+   * resource model ahead of its first request.
+   *
+   * @param resourceMethod resource method of the application resource model.
+   * @return route descriptor or null if the resource method does not map to a metric friendly
+   * API path.
+   */
+  @Nullable
+  RouteDescriptor preRegister(ResourceMethod resourceMethod) {
+    return routes.computeIfAbsent(new RouteKey(resourceMethod, resourceMethod.getHttpMethod()),
+        key -> newRouteDescriptor(resourceMethod)).orElse(null);
+  }
+
+  /**
+   * Sweep the cache for idle routes at most twice per TTL, on the thread of the request that
+   * finds the last sweep to be old enough.
+   */
+  void evictIdle(long nowNanos) {
+    long lastSweep = lastSweepNanos.get();
+    if (nowNanos - lastSweep < idleTtlNanos >> 1 ||
+        !lastSweepNanos.compareAndSet(lastSweep, nowNanos)) {
+      return;
+    }
+    Iterator<Map.Entry<Object, Optional<RouteDescriptor>>> iterator =
+        routes.entrySet().iterator();
+    while (iterator.hasNext()) {
+      Optional<RouteDescriptor> route = iterator.next().getValue();
+      if (route.isPresent() && !route.get().isPinned() &&
+          nowNanos - route.get().getLastUsedNanos() > idleTtlNanos &&
+          evictionHandler.test(route.get())) {
+        // The route keeps its cardinality slot, see CardinalityGuard#admitRoute.
+        iterator.remove();
+      }
+    }
+  }
+
+  private Optional<RouteDescriptor> newRouteDescriptor(ContainerRequest request) {
+    Optional<Pair<String, String>> pairOptional = MetricNameUtils.metricNameAndPath(request);
+    if (!pairOptional.isPresent()) {
+      return Optional.empty();
+    }
+    return Optional.of(newRouteDescriptor(request, pairOptional.get(),
+        !guard.admitRoute(pairOptional.get()._1)));
+  }
+
+  /**
+   * @param metricNameAndPath metric name and matching path of the request.
+   * @param overflow          true if the route was not admitted by the limits.
+   */
+  private RouteDescriptor newRouteDescriptor(ContainerRequest request,
+                                             Pair<String, String> metricNameAndPath,
+                                             boolean overflow) {
+    Pair<String, String> pair =
+        getClassAndMethodName(request.getUriInfo().getMatchedResourceMethod());
+    return new RouteDescriptor(applicationTags, reporter, guard, metricNameAndPath._1,
+        metricNameAndPath._2, pair._1, pair._2,
+        isAsynchronous(request.getUriInfo().getMatchedResourceMethod()), overflow);
+  }
+
+  private Optional<RouteDescriptor> newRouteDescriptor(ResourceMethod resourceMethod) {
+    Optional<Pair<String, String>> pairOptional = MetricNameUtils.metricNameAndPath(
+        resourceMethod.getParent(), resourceMethod.getHttpMethod());
+    if (!pairOptional.isPresent()) {
+      return Optional.empty();
+    }
+    Pair<String, String> pair = getClassAndMethodName(resourceMethod);
+    return Optional.of(new RouteDescriptor(applicationTags, reporter, guard,
+        pairOptional.get()._1, pairOptional.get()._2, pair._1, pair._2,
+        isAsynchronous(resourceMethod), !guard.admitRoute(pairOptional.get()._1)));
+  }
+
+  private boolean isAsynchronous(@Nullable ResourceMethod resourceMethod) {
+    if (resourceMethod == null) {
+      return false;
+    }
+    return resourceMethod.isSuspendDeclared() || resourceMethod.isManagedAsyncDeclared() ||
+        CompletionStage.class.isAssignableFrom(
+            resourceMethod.getInvocable().getRawResponseType());
+  }
+
+  /**
+   * Resolves the resource class and method of a route from its resource method, for the routes
+   * built for requests and the pre-registered ones alike. This is what the RoutingContext of a
+   * request resolves them from, including for the methods of sub-resources returned by
+   * sub-resource locators.
+   *
+   * @param resourceMethod matched resource method, null if none.
+   */
+  private static Pair<String, String> getClassAndMethodName(
+      @Nullable ResourceMethod resourceMethod) {
+    String className = "unknown";
+    String methodName = "unknown";
+
+    if (resourceMethod != null) {
+      Invocable invocable = resourceMethod.getInvocable();
+      Class<?> clazz = invocable.getHandler().getHandlerClass();
+      if (clazz != null && clazz.getCanonicalName() != null) {
+        className = clazz.getCanonicalName();
+      }
+      Method method = invocable.getHandlingMethod();
+      if (method != null) {
+        methodName = method.getName();
+      }
+    }
+    return Pair.of(className, methodName);
+  }
+
+  /**
+   * Cache key for {@link RouteDescriptor}, the matched resource method and the actual HTTP method
+   * of the request (they differ for implicit HEAD and OPTIONS handling).
+   */
+  private static final class RouteKey {
+    private final ResourceMethod resourceMethod;
+    private final String httpMethod;
+
+    RouteKey(ResourceMethod resourceMethod, String httpMethod) {
+      this.resourceMethod = resourceMethod;
+      this.httpMethod = httpMethod;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) return true;
+      if (o == null || getClass() != o.getClass()) return false;
+      RouteKey routeKey = (RouteKey) o;
+      return resourceMethod == routeKey.resourceMethod && httpMethod.equals(routeKey.httpMethod);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * System.identityHashCode(resourceMethod) + httpMethod.hashCode();
+    }
+  }
+}
@@ -0,0 +1,159 @@
+package com.wavefront.sdk.jersey;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Controls the tags {@link WavefrontJerseyFilter} sets on the server spans, trading details of
+ * the spans for smaller span payloads and less work per traced request. The error tag is always
+ * set on failed requests.
+ */
+public final class SpanDecorationPolicy {
+
+  /**
+   * How the http.url span tag is rendered.
+   */
+  public enum UrlMode {
+    /**
+     * The full request URL, including the query string (default).
+     */
+    FULL,
+    /**
+     * The request URL without the query string.
+     */
+    WITHOUT_QUERY,
+    /**
+     * The base URL followed by the matched route template, e.g.
+     * http://localhost:8080/api/v2/alert/{id}, so that the tag has a bounded number of values.
+     */
+    TEMPLATE,
+    /**
+     * No http.url tag.
+     */
+    NONE
+  }
+
+  private static final SpanDecorationPolicy DEFAULT = new Builder().build();
+
+  private final boolean component;
+  private final boolean httpMethod;
+  private final boolean httpStatus;
+  private final UrlMode urlMode;
+  private final int maxHeaderTagValues;
+  private final int maxHeaderTagValueLength;
+
+  private SpanDecorationPolicy(boolean component, boolean httpMethod, boolean httpStatus,
+                               UrlMode urlMode, int maxHeaderTagValues,
+                               int maxHeaderTagValueLength) {
+    this.component = component;
+    this.httpMethod = httpMethod;
+    this.httpStatus = httpStatus;
+    this.urlMode = urlMode;
+    this.maxHeaderTagValues = maxHeaderTagValues;
+    this.maxHeaderTagValueLength = maxHeaderTagValueLength;
+  }
+
+  /**
+   * @return policy that sets every standard tag, the full URL and every header tag value.
+   */
+  public static SpanDecorationPolicy defaultPolicy() {
+    return DEFAULT;
+  }
+
+  boolean isComponent() {
+    return component;
+  }
+
+  boolean isHttpMethod() {
+    return httpMethod;
+  }
+
+  boolean isHttpStatus() {
+    return httpStatus;
+  }
+
+  UrlMode getUrlMode() {
+    return urlMode;
+  }
+
+  int getMaxHeaderTagValues() {
+    return maxHeaderTagValues;
+  }
+
+  int getMaxHeaderTagValueLength() {
+    return maxHeaderTagValueLength;
+  }
+
+  public static final class Builder {
+
+    private boolean component = true;
+    private boolean httpMethod = true;
+    private boolean httpStatus = true;
+    private UrlMode urlMode = UrlMode.FULL;
+    private int maxHeaderTagValues = Integer.MAX_VALUE;
+    private int maxHeaderTagValueLength = Integer.MAX_VALUE;
+
+    /**
+     * @param component whether to set the component tag, defaults to true.
+     * @return {@code this}.
+     */
+    public Builder component(boolean component) {
+      this.component = component;
+      return this;
+    }
+
+    /**
+     * @param httpMethod whether to set the http.method tag, defaults to true.
+     * @return {@code this}.
+     */
+    public Builder httpMethod(boolean httpMethod) {
+      this.httpMethod = httpMethod;
+      return this;
+    }
+
+    /**
+     * @param httpStatus whether to set the http.status_code tag, defaults to true.
+     * @return {@code this}.
+     */
+    public Builder httpStatus(boolean httpStatus) {
+      this.httpStatus = httpStatus;
+      return this;
+    }
+
+    /**
+     * @param urlMode how to render the http.url tag, defaults to {@link UrlMode#FULL}.
+     * @return {@code this}.
+     */
+    public Builder urlMode(UrlMode urlMode) {
+      Preconditions.checkNotNull(urlMode, "Invalid urlMode");
+      this.urlMode = urlMode;
+      return this;
+    }
+
+    /**
+     * @param maxHeaderTagValues maximum number of values tagged per header tag, additional values
+     *                           of a repeated header are dropped. Not capped by default.
+     * @return {@code this}.
+     */
+    public Builder maxHeaderTagValues(int maxHeaderTagValues) {
+      Preconditions.checkArgument(maxHeaderTagValues > 0, "Invalid maxHeaderTagValues");
+      this.maxHeaderTagValues = maxHeaderTagValues;
+      return this;
+    }
+
+    /**
+     * @param maxHeaderTagValueLength maximum length of a header tag value, longer values are
+     *                                truncated. Not capped by default.
+     * @return {@code this}.
+     */
+    public Builder maxHeaderTagValueLength(int maxHeaderTagValueLength) {
+      Preconditions.checkArgument(maxHeaderTagValueLength > 0, "Invalid maxHeaderTagValueLength");
+      this.maxHeaderTagValueLength = maxHeaderTagValueLength;
+      return this;
+    }
+
+    public SpanDecorationPolicy build() {
+      return new SpanDecorationPolicy(component, httpMethod, httpStatus, urlMode,
+          maxHeaderTagValues, maxHeaderTagValueLength);
+    }
+  }
+}
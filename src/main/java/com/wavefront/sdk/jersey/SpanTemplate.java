@@ -0,0 +1,49 @@
+package com.wavefront.sdk.jersey;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import io.opentracing.Tracer;
+import io.opentracing.tag.Tags;
+
+import static com.wavefront.sdk.jersey.Constants.JERSEY_SERVER_COMPONENT;
+
+/**
+ * The operation name and constant tags of the server spans of a route, computed once per route
+ * so that starting a span only copies them into the span builder.
+ */
+final class SpanTemplate {
+
+  private final String operationName;
+  private final String[] tagKeys;
+  private final String[] tagValues;
+
+  SpanTemplate(RouteDescriptor route, SpanDecorationPolicy spanDecorationPolicy) {
+    this.operationName = route.getOperationName();
+    List<String> keys = new ArrayList<>(4);
+    List<String> values = new ArrayList<>(4);
+    keys.add(Tags.SPAN_KIND.getKey());
+    values.add(Tags.SPAN_KIND_SERVER);
+    keys.add("jersey.resource.class");
+    values.add(route.getClassName());
+    keys.add("jersey.path");
+    values.add(route.getMatchingPath());
+    if (spanDecorationPolicy.isComponent()) {
+      keys.add(Tags.COMPONENT.getKey());
+      values.add(JERSEY_SERVER_COMPONENT);
+    }
+    this.tagKeys = keys.toArray(new String[0]);
+    this.tagValues = values.toArray(new String[0]);
+  }
+
+  /**
+   * @return span builder for the route with the constant tags already set.
+   */
+  Tracer.SpanBuilder newSpanBuilder(Tracer tracer) {
+    Tracer.SpanBuilder spanBuilder = tracer.buildSpan(operationName);
+    for (int i = 0; i < tagKeys.length; i++) {
+      spanBuilder.withTag(tagKeys[i], tagValues[i]);
+    }
+    return spanBuilder;
+  }
+}
@@ -0,0 +1,146 @@
+package com.wavefront.sdk.jersey;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import javax.annotation.Nullable;
+
+/**
+ * Tracks a response whose entity is streamed after the response filters ran, e.g. a
+ * StreamingOutput, a ChunkedOutput or a download. {@link WavefrontJerseyFilter} creates it and
+ * {@link WavefrontJerseyEntityInterceptor} wraps the entity stream with {@link #wrap} to report:
+ * 1) jersey.server.response.api.v2.alert.summary.GET.200.time_to_first_byte (WavefrontHistogram)
+ * 2) jersey.server.response.api.v2.alert.summary.GET.200.time_to_last_byte (WavefrontHistogram)
+ * 3) jersey.server.request.api.v2.alert.summary.GET.streaming.inflight (Gauge)
+ * 4) jersey.server.total_streams.inflight (Gauge)
+ *
+ * Times are in milliseconds since the request filter ran, like the latency. The first byte is
+ * the first flush or the close of a stream with bytes written, the last byte the close of the
+ * stream. Chunks of a ChunkedOutput may be written from other threads, hence the atomic state.
+ * The streaming inflight trackers, and so their gauges, are only resolved once the entity
+ * interceptor starts streaming, so that no streaming series is registered without it.
+ */
+final class StreamedResponse {
+  private static final int NEW = 0;
+  private static final int STREAMING = 1;
+  private static final int FIRST_BYTE = 2;
+  private static final int COMPLETED = 3;
+
+  private final RouteDescriptor.StatusDescriptor status;
+  private final long startNanos;
+  private final Supplier<InflightTracker> apiStreamsSupplier;
+  private final Supplier<InflightTracker> totalStreamsSupplier;
+  private final boolean chunked;
+  private final AtomicInteger state = new AtomicInteger(NEW);
+  // Set by wrap, the stream may be closed on another thread.
+  private volatile InflightTracker apiStreams;
+  private volatile InflightTracker totalStreams;
+
+  StreamedResponse(RouteDescriptor.StatusDescriptor status, long startNanos,
+                   Supplier<InflightTracker> apiStreams, Supplier<InflightTracker> totalStreams,
+                   boolean chunked) {
+    this.status = status;
+    this.startNanos = startNanos;
+    this.apiStreamsSupplier = apiStreams;
+    this.totalStreamsSupplier = totalStreams;
+    this.chunked = chunked;
+  }
+
+  /**
+   * @return true if the entity is a ChunkedOutput, whose chunks are written one at a time.
+   */
+  boolean isChunked() {
+    return chunked;
+  }
+
+  /**
+   * Wraps the entity stream of the response, only the first call starts streaming.
+   *
+   * @param outputStream entity stream.
+   * @return the stream to write the entity to, or null if the entity is already being streamed.
+   */
+  @Nullable
+  OutputStream wrap(OutputStream outputStream) {
+    if (!state.compareAndSet(NEW, STREAMING)) {
+      return null;
+    }
+    apiStreams = apiStreamsSupplier.get();
+    totalStreams = totalStreamsSupplier.get();
+    long nowNanos = System.nanoTime();
+    apiStreams.increment(nowNanos);
+    totalStreams.increment(nowNanos);
+    return new TimedOutputStream(outputStream);
+  }
+
+  private void firstByte() {
+    if (state.compareAndSet(STREAMING, FIRST_BYTE)) {
+      status.getTimeToFirstByte().update(millisSinceStart());
+    }
+  }
+
+  private void complete(boolean written) {
+    if (written) {
+      firstByte();
+    }
+    int previous = state.getAndSet(COMPLETED);
+    if (previous == COMPLETED) {
+      return;
+    }
+    long nowNanos = System.nanoTime();
+    apiStreams.decrement(nowNanos);
+    totalStreams.decrement(nowNanos);
+    if (written) {
+      status.getTimeToLastByte().update(millisSinceStart());
+    }
+  }
+
+  private long millisSinceStart() {
+    return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+  }
+
+  /**
+   * Forwards every write as is, unlike FilterOutputStream which writes arrays byte by byte.
+   */
+  private final class TimedOutputStream extends OutputStream {
+    private final OutputStream delegate;
+    private volatile boolean written;
+
+    TimedOutputStream(OutputStream delegate) {
+      this.delegate = delegate;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      delegate.write(b);
+      written = true;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      delegate.write(b, off, len);
+      if (len > 0) {
+        written = true;
+      }
+    }
+
+    @Override
+    public void flush() throws IOException {
+      delegate.flush();
+      if (written) {
+        firstByte();
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      try {
+        delegate.close();
+      } finally {
+        complete(written);
+      }
+    }
+  }
+}
@@ -0,0 +1,405 @@
+package com.wavefront.sdk.jersey;
+
+import com.google.common.base.Preconditions;
+
+import com.wavefront.opentracing.Reference;
+import com.wavefront.opentracing.WavefrontSpan;
+import com.wavefront.opentracing.reporting.Reporter;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.Nullable;
+
+/**
+ * A span {@link Reporter} for tail based trace retention: the local spans of a request traced by
+ * {@link WavefrontJerseyFilter} are held in a bounded buffer until the response is processed,
+ * and only forwarded to the actual reporter if the request failed or was slower than the
+ * latency threshold of its route. Discarded spans never reach the sender.
+ *
+ * Build the tracer with this reporter and register it with the filter:
+ * <pre>
+ * TailSpanRetention retention = new TailSpanRetention.Builder(wfSpanReporter).
+ *     latencyThreshold(500, TimeUnit.MILLISECONDS).build();
+ * Tracer tracer = new WavefrontTracer.Builder(retention, applicationTags).build();
+ * wfJerseyFilterBuilder.withTracer(tracer).tailSpanRetention(retention);
+ * </pre>
+ *
+ * Spans of traces that are not started by the filter, and spans finished after the decision,
+ * are forwarded as is.
+ *
+ * Requests are held by the server span the filter starts for them, so that concurrent requests
+ * of the same trace (e.g. a service calling itself) each get their own decision: a request
+ * takes the spans descending from its server span, and the last pending request of a trace
+ * also takes the spans of the trace that descend from none of them.
+ *
+ * The WavefrontTracer only derives RED metrics from the spans, and only sends its heartbeats,
+ * when its reporter is a WavefrontSpanReporter or a CompositeReporter holding one. A tracer built
+ * with this reporter reports neither, so the filter must report the RED metrics of every request:
+ * it refuses this reporter unless its {@link RedMetricsMode} is
+ * {@link RedMetricsMode#FILTER_AND_TRACER}.
+ *
+ * Requests that never complete, e.g. because the connection was aborted, give up their spans
+ * once they have been pending for the longest of 1 minute and twice the highest latency
+ * threshold. Expired requests are discarded while starting new ones.
+ */
+public final class TailSpanRetention implements Reporter {
+  private static final Logger logger = Logger.getLogger(TailSpanRetention.class.getName());
+
+  private final Reporter delegate;
+  private final long latencyThresholdNanos;
+  private final Map<String, Long> routeLatencyThresholdsNanos;
+  private final int maxBufferedSpans;
+  private final int maxPendingTraces;
+  private final long pendingTimeoutNanos;
+  // Keyed by trace id, updated with compute so that a trace is closed and removed atomically.
+  private final ConcurrentMap<String, PendingTrace> pendingTraces = new ConcurrentHashMap<>();
+  private final AtomicInteger pendingRequests = new AtomicInteger();
+  private final AtomicInteger bufferedSpans = new AtomicInteger();
+  private final AtomicLong droppedSpans = new AtomicLong();
+  private final AtomicLong lastSweepNanos = new AtomicLong(System.nanoTime());
+
+  private TailSpanRetention(Reporter delegate, long latencyThresholdNanos,
+                            Map<String, Long> routeLatencyThresholdsNanos, int maxBufferedSpans,
+                            int maxPendingTraces, long pendingTimeoutNanos) {
+    this.delegate = delegate;
+    this.latencyThresholdNanos = latencyThresholdNanos;
+    this.routeLatencyThresholdsNanos = routeLatencyThresholdsNanos;
+    this.maxBufferedSpans = maxBufferedSpans;
+    this.maxPendingTraces = maxPendingTraces;
+    this.pendingTimeoutNanos = pendingTimeoutNanos;
+  }
+
+  public static final class Builder {
+
+    private final Reporter delegate;
+    private final Map<String, Long> routeLatencyThresholdsNanos = new HashMap<>();
+    private long latencyThresholdNanos = TimeUnit.SECONDS.toNanos(1);
+    private int maxBufferedSpans = 10_000;
+    private int maxPendingTraces = 10_000;
+
+    /**
+     * @param delegate reporter the retained spans are forwarded to, e.g. a WavefrontSpanReporter.
+     */
+    public Builder(Reporter delegate) {
+      this.delegate = delegate;
+    }
+
+    /**
+     * Set the latency above which the spans of a request are retained, defaults to 1 second.
+     *
+     * @param duration latency threshold.
+     * @param unit     unit of the duration.
+     * @return {@code this}.
+     */
+    public Builder latencyThreshold(long duration, TimeUnit unit) {
+      this.latencyThresholdNanos = unit.toNanos(duration);
+      return this;
+    }
+
+    /**
+     * Set the latency threshold of a single route, overriding the default threshold.
+     *
+     * @param operationName operation name of the route as reported in its spans, e.g.
+     *                      AlertResource.getSummary.
+     * @param duration      latency threshold.
+     * @param unit          unit of the duration.
+     * @return {@code this}.
+     */
+    public Builder routeLatencyThreshold(String operationName, long duration, TimeUnit unit) {
+      Preconditions.checkNotNull(operationName, "Invalid operationName");
+      this.routeLatencyThresholdsNanos.put(operationName, unit.toNanos(duration));
+      return this;
+    }
+
+    /**
+     * Set the maximum number of spans held while waiting for the decision, spans over the limit
+     * are dropped. Defaults to 10000.
+     *
+     * @param maxBufferedSpans maximum number of buffered spans, must be positive.
+     * @return {@code this}.
+     */
+    public Builder maxBufferedSpans(int maxBufferedSpans) {
+      Preconditions.checkArgument(maxBufferedSpans > 0, "Invalid maxBufferedSpans");
+      this.maxBufferedSpans = maxBufferedSpans;
+      return this;
+    }
+
+    /**
+     * Set the maximum number of requests waiting for the decision, requests over the limit are
+     * not subject to retention and their spans are forwarded. Defaults to 10000.
+     *
+     * @param maxPendingTraces maximum number of pending requests, must be positive.
+     * @return {@code this}.
+     */
+    public Builder maxPendingTraces(int maxPendingTraces) {
+      Preconditions.checkArgument(maxPendingTraces > 0, "Invalid maxPendingTraces");
+      this.maxPendingTraces = maxPendingTraces;
+      return this;
+    }
+
+    public TailSpanRetention build() {
+      Preconditions.checkNotNull(delegate, "Invalid delegate Reporter");
+      // A request that never completes gives up its buffered spans after a while, long after
+      // any sensible latency threshold.
+      long maxThresholdNanos = latencyThresholdNanos;
+      for (long routeThresholdNanos : routeLatencyThresholdsNanos.values()) {
+        maxThresholdNanos = Math.max(maxThresholdNanos, routeThresholdNanos);
+      }
+      long pendingTimeoutNanos = Math.max(TimeUnit.MINUTES.toNanos(1), 2 * maxThresholdNanos);
+      return new TailSpanRetention(delegate, latencyThresholdNanos,
+          Collections.unmodifiableMap(new HashMap<>(routeLatencyThresholdsNanos)),
+          maxBufferedSpans, maxPendingTraces, pendingTimeoutNanos);
+    }
+  }
+
+  /**
+   * Start holding the spans of a request, called by the filter when it starts its server span.
+   *
+   * @param traceId trace id of the server span.
+   * @param spanId  span id of the server span.
+   * @return true if the spans of the request are held until {@link #complete}.
+   */
+  boolean begin(String traceId, String spanId, long nowNanos) {
+    if (pendingRequests.get() >= maxPendingTraces) {
+      discardExpired(nowNanos);
+      if (pendingRequests.get() >= maxPendingTraces) {
+        return false;
+      }
+    } else {
+      // Sweep at most 4 times per timeout, on the thread that finds the last sweep old enough.
+      long lastSweep = lastSweepNanos.get();
+      if (nowNanos - lastSweep > pendingTimeoutNanos >> 2 &&
+          lastSweepNanos.compareAndSet(lastSweep, nowNanos)) {
+        discardExpired(nowNanos);
+      }
+    }
+    AtomicBoolean begun = new AtomicBoolean();
+    pendingTraces.compute(traceId, (key, pendingTrace) -> {
+      PendingTrace trace = pendingTrace == null ? new PendingTrace() : pendingTrace;
+      begun.set(trace.begin(spanId, nowNanos));
+      return trace;
+    });
+    return begun.get();
+  }
+
+  /**
+   * Forward or discard the spans held for the given request.
+   *
+   * @param traceId       trace id of the server span of the request.
+   * @param spanId        span id of the server span of the request.
+   * @param operationName operation name of the route of the request.
+   * @param latencyNanos  latency of the request.
+   * @param error         true if the request failed.
+   */
+  void complete(String traceId, String spanId, String operationName, long latencyNanos,
+                boolean error) {
+    AtomicReference<List<WavefrontSpan>> completed = new AtomicReference<>();
+    pendingTraces.computeIfPresent(traceId, (key, pendingTrace) -> {
+      completed.set(pendingTrace.complete(spanId));
+      return pendingTrace.isClosed() ? null : pendingTrace;
+    });
+    List<WavefrontSpan> spans = completed.get();
+    if (spans != null && (error || latencyNanos > latencyThreshold(operationName))) {
+      for (WavefrontSpan span : spans) {
+        forward(span);
+      }
+    }
+  }
+
+  private long latencyThreshold(String operationName) {
+    Long routeThreshold = routeLatencyThresholdsNanos.get(operationName);
+    return routeThreshold == null ? latencyThresholdNanos : routeThreshold;
+  }
+
+  private void discardExpired(long nowNanos) {
+    for (String traceId : pendingTraces.keySet()) {
+      pendingTraces.computeIfPresent(traceId, (key, pendingTrace) -> {
+        pendingTrace.discardExpired(nowNanos - pendingTimeoutNanos);
+        return pendingTrace.isClosed() ? null : pendingTrace;
+      });
+    }
+  }
+
+  /**
+   * @return number of spans dropped because the buffer was full.
+   */
+  public long getDroppedSpans() {
+    return droppedSpans.get();
+  }
+
+  @Override
+  public void report(WavefrontSpan span) throws IOException {
+    PendingTrace pendingTrace = pendingTraces.get(span.context().toTraceId());
+    if (pendingTrace == null) {
+      delegate.report(span);
+      return;
+    }
+    if (bufferedSpans.incrementAndGet() > maxBufferedSpans) {
+      bufferedSpans.decrementAndGet();
+      droppedSpans.incrementAndGet();
+      return;
+    }
+    if (!pendingTrace.add(span)) {
+      // The decision was made in the meantime.
+      bufferedSpans.decrementAndGet();
+      delegate.report(span);
+    }
+  }
+
+  private void forward(WavefrontSpan span) {
+    try {
+      delegate.report(span);
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "Unable to report retained span", e);
+    }
+  }
+
+  @Override
+  public int getFailureCount() {
+    return delegate.getFailureCount();
+  }
+
+  @Override
+  public void flush() {
+    delegate.flush();
+  }
+
+  @Override
+  public void close() throws IOException {
+    delegate.close();
+  }
+
+  /**
+   * The pending requests of a trace, and the spans of the trace finished so far. Requests begin
+   * and complete while the trace is locked by the map, so that it is closed and removed
+   * atomically, and spans are added concurrently.
+   */
+  private final class PendingTrace {
+    // Start time of the pending requests, keyed by the span id of their server span.
+    private final Map<String, Long> requests = new LinkedHashMap<>(2);
+    @Nullable
+    private List<WavefrontSpan> spans = new ArrayList<>(4);
+
+    /**
+     * @return false if the request is already pending.
+     */
+    synchronized boolean begin(String spanId, long nowNanos) {
+      if (requests.putIfAbsent(spanId, nowNanos) != null) {
+        return false;
+      }
+      pendingRequests.incrementAndGet();
+      return true;
+    }
+
+    synchronized boolean isClosed() {
+      return spans == null;
+    }
+
+    /**
+     * @return false if the trace is already closed.
+     */
+    synchronized boolean add(WavefrontSpan span) {
+      if (spans == null) {
+        return false;
+      }
+      spans.add(span);
+      return true;
+    }
+
+    /**
+     * Completes a request, the trace is closed once it has no pending request left.
+     *
+     * @return the spans of the request, null if it is not pending.
+     */
+    @Nullable
+    synchronized List<WavefrontSpan> complete(String spanId) {
+      if (spans == null || requests.remove(spanId) == null) {
+        return null;
+      }
+      pendingRequests.decrementAndGet();
+      List<WavefrontSpan> completed;
+      if (requests.isEmpty()) {
+        completed = spans;
+        spans = null;
+      } else {
+        completed = removeDescendants(spanId);
+      }
+      bufferedSpans.addAndGet(-completed.size());
+      return completed;
+    }
+
+    /**
+     * Discards the requests pending since before the given time, and their spans.
+     */
+    synchronized void discardExpired(long deadlineNanos) {
+      Iterator<Map.Entry<String, Long>> iterator = requests.entrySet().iterator();
+      while (iterator.hasNext() && spans != null) {
+        Map.Entry<String, Long> request = iterator.next();
+        if (deadlineNanos - request.getValue() > 0) {
+          iterator.remove();
+          pendingRequests.decrementAndGet();
+          if (requests.isEmpty()) {
+            bufferedSpans.addAndGet(-spans.size());
+            spans = null;
+          } else {
+            bufferedSpans.addAndGet(-removeDescendants(request.getKey()).size());
+          }
+        }
+      }
+    }
+
+    /**
+     * Removes the spans descending from the given span, the span included. Children finish
+     * before their parent, so the descendants are found by walking down from the given span.
+     */
+    private List<WavefrontSpan> removeDescendants(String spanId) {
+      Set<String> spanIds = new HashSet<>();
+      spanIds.add(spanId);
+      List<WavefrontSpan> descendants = new ArrayList<>();
+      boolean found = true;
+      while (found) {
+        found = false;
+        Iterator<WavefrontSpan> iterator = spans.iterator();
+        while (iterator.hasNext()) {
+          WavefrontSpan span = iterator.next();
+          if (spanIds.contains(span.context().toSpanId()) ||
+              references(span.getParents(), spanIds) || references(span.getFollows(), spanIds)) {
+            iterator.remove();
+            descendants.add(span);
+            found |= spanIds.add(span.context().toSpanId());
+          }
+        }
+      }
+      return descendants;
+    }
+  }
+
+  private static boolean references(@Nullable List<Reference> references, Set<String> spanIds) {
+    if (references != null) {
+      for (Reference reference : references) {
+        if (spanIds.contains(reference.getSpanContext().toSpanId())) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+}
@@ -0,0 +1,124 @@
+package com.wavefront.sdk.jersey;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.RateLimiter;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+import javax.annotation.Nullable;
+
+/**
+ * Decides whether {@link WavefrontJerseyFilter} traces a request, before any span is built.
+ * Requests that arrive with a parent span context follow the sampling decision of their parent,
+ * so that traces started upstream are neither broken nor duplicated: only a sampled parent forces
+ * the request to be traced. Other requests, and those whose parent carries no decision, are
+ * traced with the sampling rate of their route, and at most at the configured number of traces
+ * per second.
+ *
+ * Requests that are not traced only get a span, without the request tags and tagged with
+ * {@code sampling.priority} 0 so that the tracer doesn't report it, where it is needed: when
+ * they carry a parent span context, so that the calls made while handling the request (e.g.
+ * through the WavefrontJaxrsClientFilter) propagate the decision of the parent instead of
+ * starting new traces, and with {@link RedMetricsMode#TRACER}, since tracers that derive RED
+ * metrics from their spans, as the WavefrontTracer does, only count the requests with a span.
+ * Otherwise no span is built at all.
+ */
+public final class TraceSamplingPolicy {
+
+  private static final TraceSamplingPolicy ALWAYS = new Builder().build();
+
+  private final double rate;
+  private final Map<String, Double> routeRates;
+  @Nullable
+  private final RateLimiter rateLimiter;
+
+  private TraceSamplingPolicy(double rate, Map<String, Double> routeRates,
+                              @Nullable RateLimiter rateLimiter) {
+    this.rate = rate;
+    this.routeRates = routeRates;
+    this.rateLimiter = rateLimiter;
+  }
+
+  /**
+   * @return policy that traces every request (default).
+   */
+  public static TraceSamplingPolicy always() {
+    return ALWAYS;
+  }
+
+  /**
+   * @param operationName operation name of the route, e.g. AlertResource.getSummary.
+   * @param parentSampled sampling decision of the parent span context of the request, null if
+   *                      the request carries no parent span context or its parent carries no
+   *                      decision.
+   * @return true if the request should be traced.
+   */
+  boolean sample(String operationName, @Nullable Boolean parentSampled) {
+    if (parentSampled != null) {
+      return parentSampled;
+    }
+    Double routeRate = routeRates.get(operationName);
+    double sampleRate = routeRate == null ? rate : routeRate;
+    if (sampleRate <= 0 ||
+        (sampleRate < 1 && ThreadLocalRandom.current().nextDouble() >= sampleRate)) {
+      return false;
+    }
+    return rateLimiter == null || rateLimiter.tryAcquire();
+  }
+
+  public static final class Builder {
+
+    private final Map<String, Double> routeRates = new HashMap<>();
+    private double rate = 1.0;
+    private double maxTracesPerSecond = 0;
+
+    /**
+     * Set the fraction of requests without a parent span context that are traced, defaults to
+     * 1.0 (every request).
+     *
+     * @param rate sampling rate between 0.0 and 1.0.
+     * @return {@code this}.
+     */
+    public Builder rate(double rate) {
+      Preconditions.checkArgument(rate >= 0 && rate <= 1, "Invalid rate");
+      this.rate = rate;
+      return this;
+    }
+
+    /**
+     * Set the sampling rate of a single route, overriding the default rate.
+     *
+     * @param operationName operation name of the route as reported in its spans, e.g.
+     *                      AlertResource.getSummary.
+     * @param rate          sampling rate between 0.0 and 1.0.
+     * @return {@code this}.
+     */
+    public Builder routeRate(String operationName, double rate) {
+      Preconditions.checkNotNull(operationName, "Invalid operationName");
+      Preconditions.checkArgument(rate >= 0 && rate <= 1, "Invalid rate");
+      this.routeRates.put(operationName, rate);
+      return this;
+    }
+
+    /**
+     * Cap the number of requests without a parent span context traced per second, across all
+     * routes. Not capped by default.
+     *
+     * @param maxTracesPerSecond maximum number of traces started per second, must be positive.
+     * @return {@code this}.
+     */
+    public Builder maxTracesPerSecond(double maxTracesPerSecond) {
+      Preconditions.checkArgument(maxTracesPerSecond > 0, "Invalid maxTracesPerSecond");
+      this.maxTracesPerSecond = maxTracesPerSecond;
+      return this;
+    }
+
+    public TraceSamplingPolicy build() {
+      return new TraceSamplingPolicy(rate, Collections.unmodifiableMap(new HashMap<>(routeRates)),
+          maxTracesPerSecond > 0 ? RateLimiter.create(maxTracesPerSecond) : null);
+    }
+  }
+}
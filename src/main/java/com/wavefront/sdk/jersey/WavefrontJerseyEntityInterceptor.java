@@ -0,0 +1,106 @@
+package com.wavefront.sdk.jersey;
+
+import com.google.common.io.CountingInputStream;
+import com.google.common.io.CountingOutputStream;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.ext.ReaderInterceptor;
+import javax.ws.rs.ext.ReaderInterceptorContext;
+import javax.ws.rs.ext.WriterInterceptor;
+import javax.ws.rs.ext.WriterInterceptorContext;
+
+import static com.wavefront.sdk.jersey.Constants.STREAMED_RESPONSE_PROPERTY_NAME;
+
+/**
+ * An optional companion of {@link WavefrontJerseyFilter} that measures how long the request and
+ * response entities of every route take to be read and written, and how large they are. Get it
+ * with {@link WavefrontJerseyFilter#getEntityInterceptor()} and register it with your Jersey
+ * based application next to the filter it comes from.
+ *
+ * WavefrontHistograms, tagged like the other route metrics:
+ * 1) jersey.server.request.api.v2.alert.summary.GET.read_ns
+ * 2) jersey.server.request.api.v2.alert.summary.GET.request_bytes
+ * 3) jersey.server.response.api.v2.alert.summary.GET.write_ns
+ * 4) jersey.server.response.api.v2.alert.summary.GET.response_bytes
+ *
+ * Sizes are the entity bytes consumed by the message body reader and produced by the message
+ * body writer, that is without the content encoding (e.g. gzip) applied by entity coders.
+ * Entities that are streamed by the resource method (e.g. an InputStream parameter) are only
+ * measured up to what the reader consumed. The chunks of a ChunkedOutput are each written like
+ * an entity, whenever the resource produces them, so they are not measured: the histograms would
+ * count every chunk as a response. The time to last byte of the response is reported instead.
+ *
+ * Responses streamed after the response filters ran (StreamingOutput, ChunkedOutput, InputStream
+ * and File entities) also get time to first and last byte histograms and their own inflight
+ * gauges, see {@link StreamedResponse}.
+ */
+public final class WavefrontJerseyEntityInterceptor implements ReaderInterceptor,
+    WriterInterceptor {
+
+  private final RouteDescriptorCache routes;
+
+  /**
+   * @param routes routes of the filter, which memoizes the route of every request.
+   */
+  WavefrontJerseyEntityInterceptor(RouteDescriptorCache routes) {
+    this.routes = routes;
+  }
+
+  @Override
+  public Object aroundReadFrom(ReaderInterceptorContext context)
+      throws IOException, WebApplicationException {
+    RouteDescriptor route = routes.getMemoized(context);
+    if (route == null) {
+      return context.proceed();
+    }
+    InputStream inputStream = context.getInputStream();
+    CountingInputStream countingInputStream = new CountingInputStream(inputStream);
+    context.setInputStream(countingInputStream);
+    long startNanos = System.nanoTime();
+    try {
+      return context.proceed();
+    } finally {
+      route.getReadNs().update(System.nanoTime() - startNanos);
+      route.getRequestBytes().update(countingInputStream.getCount());
+      context.setInputStream(inputStream);
+    }
+  }
+
+  @Override
+  public void aroundWriteTo(WriterInterceptorContext context)
+      throws IOException, WebApplicationException {
+    RouteDescriptor route = routes.getMemoized(context);
+    if (route == null) {
+      context.proceed();
+      return;
+    }
+    OutputStream outputStream = context.getOutputStream();
+    Object streamedResponse = context.getProperty(STREAMED_RESPONSE_PROPERTY_NAME);
+    if (streamedResponse instanceof StreamedResponse) {
+      // Left in place once written, the container closes it when the stream ends.
+      OutputStream timedOutputStream = ((StreamedResponse) streamedResponse).wrap(outputStream);
+      if (timedOutputStream != null) {
+        context.setOutputStream(timedOutputStream);
+        outputStream = timedOutputStream;
+      }
+      if (((StreamedResponse) streamedResponse).isChunked()) {
+        context.proceed();
+        return;
+      }
+    }
+    CountingOutputStream countingOutputStream = new CountingOutputStream(outputStream);
+    context.setOutputStream(countingOutputStream);
+    long startNanos = System.nanoTime();
+    try {
+      context.proceed();
+    } finally {
+      route.getWriteNs().update(System.nanoTime() - startNanos);
+      route.getResponseBytes().update(countingOutputStream.getCount());
+      context.setOutputStream(outputStream);
+    }
+  }
+}
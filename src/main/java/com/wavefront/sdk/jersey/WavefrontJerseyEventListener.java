@@ -0,0 +1,210 @@
+package com.wavefront.sdk.jersey;
+
+import com.google.common.base.Preconditions;
+
+import com.wavefront.internal.reporter.SdkReporter;
+import com.wavefront.sdk.common.application.ApplicationTags;
+
+import org.glassfish.jersey.server.ContainerResponse;
+import org.glassfish.jersey.server.monitoring.ApplicationEvent;
+import org.glassfish.jersey.server.monitoring.ApplicationEventListener;
+import org.glassfish.jersey.server.monitoring.RequestEvent;
+import org.glassfish.jersey.server.monitoring.RequestEventListener;
+
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.Nullable;
+
+/**
+ * An optional Jersey event listener that reports a per-phase latency breakdown of every request,
+ * complementing the end to end latency reported by {@link WavefrontJerseyFilter}. Register it
+ * with your Jersey based application next to the filter.
+ *
+ * WavefrontHistograms (nanoseconds), tagged like the other granular response metrics:
+ * 1) jersey.server.response.api.v2.alert.summary.GET.200.matching_ns
+ * 2) jersey.server.response.api.v2.alert.summary.GET.200.request_filters_ns
+ * 3) jersey.server.response.api.v2.alert.summary.GET.200.resource_method_ns
+ * 4) jersey.server.response.api.v2.alert.summary.GET.200.exception_mapping_ns
+ * 5) jersey.server.response.api.v2.alert.summary.GET.200.response_filters_ns
+ * 6) jersey.server.response.api.v2.alert.summary.GET.200.response_write_ns
+ */
+public class WavefrontJerseyEventListener implements ApplicationEventListener {
+  private static final Logger logger = Logger.getLogger(
+      WavefrontJerseyEventListener.class.getName());
+  private static final long UNSET = Long.MIN_VALUE;
+
+  private final SdkReporter wfJerseyReporter;
+  private final RouteDescriptorCache routes;
+
+  private WavefrontJerseyEventListener(SdkReporter wfJerseyReporter,
+                                       ApplicationTags applicationTags,
+                                       CardinalityLimits cardinalityLimits,
+                                       long idleRouteTtlNanos) {
+    Preconditions.checkNotNull(wfJerseyReporter, "Invalid JerseyReporter");
+    Preconditions.checkNotNull(applicationTags, "Invalid ApplicationTags");
+    Preconditions.checkNotNull(cardinalityLimits, "Invalid CardinalityLimits");
+    this.wfJerseyReporter = wfJerseyReporter;
+    // The filter reports the rejected series.
+    this.routes = new RouteDescriptorCache(applicationTags, wfJerseyReporter, cardinalityLimits,
+        false, idleRouteTtlNanos, route -> true);
+  }
+
+  public static final class Builder {
+
+    private final SdkReporter wfJerseyReporter;
+    private final ApplicationTags applicationTags;
+    private CardinalityLimits cardinalityLimits = CardinalityLimits.unlimited();
+    private long idleRouteTtlNanos = 0;
+
+    public Builder(SdkReporter wfJerseyReporter, ApplicationTags applicationTags) {
+      this.wfJerseyReporter = wfJerseyReporter;
+      this.applicationTags = applicationTags;
+    }
+
+    /**
+     * Bound the number of route and status series, should be the same limits as the ones of the
+     * {@link WavefrontJerseyFilter}. Defaults to {@link CardinalityLimits#unlimited()}.
+     *
+     * @param cardinalityLimits route and status series limits.
+     * @return {@code this}.
+     */
+    public Builder cardinalityLimits(CardinalityLimits cardinalityLimits) {
+      this.cardinalityLimits = cardinalityLimits;
+      return this;
+    }
+
+    /**
+     * Free the cached metric names and tag maps of routes that have not been used for the given
+     * duration, they are transparently rebuilt on the next request. Eviction doesn't shrink what
+     * is reported: the reporter can't unregister series, so the series of evicted routes are
+     * still reported every interval and evicted routes keep counting towards the cardinality
+     * limits. Routes are never evicted by default.
+     *
+     * @param duration idle time after which a route is evicted, must be positive.
+     * @param unit     unit of the duration.
+     * @return {@code this}.
+     */
+    public Builder idleRouteTtl(long duration, TimeUnit unit) {
+      Preconditions.checkArgument(duration > 0, "Invalid duration");
+      this.idleRouteTtlNanos = unit.toNanos(duration);
+      return this;
+    }
+
+    public WavefrontJerseyEventListener build() {
+      return new WavefrontJerseyEventListener(wfJerseyReporter, applicationTags,
+          cardinalityLimits, idleRouteTtlNanos);
+    }
+  }
+
+  @Override
+  public void onEvent(ApplicationEvent event) {
+    // no-op
+  }
+
+  @Override
+  public RequestEventListener onRequest(RequestEvent requestEvent) {
+    return new PhaseListener();
+  }
+
+  /**
+   * Reports every phase up to the response filters, returns the status specific metric names
+   * to use for the remaining phases or null if the request is not reported.
+   */
+  @Nullable
+  private RouteDescriptor.StatusDescriptor report(RequestEvent event, PhaseListener phases) {
+    ContainerResponse response = event.getContainerResponse();
+    if (response == null) {
+      return null;
+    }
+    RouteDescriptor route = routes.get(event.getContainerRequest());
+    if (route == null) {
+      return null;
+    }
+    RouteDescriptor.StatusDescriptor status = route.forStatus(response.getStatus());
+    update(status, RequestPhase.MATCHING, phases.matchingStart, phases.requestMatched);
+    update(status, RequestPhase.REQUEST_FILTERS, phases.requestMatched, phases.requestFiltered);
+    update(status, RequestPhase.RESOURCE_METHOD, phases.resourceMethodStart,
+        phases.resourceMethodFinished);
+    update(status, RequestPhase.EXCEPTION_MAPPING, phases.exceptionStart,
+        phases.exceptionMappingFinished);
+    update(status, RequestPhase.RESPONSE_FILTERS, phases.responseFiltersStart,
+        phases.responseFiltersFinished);
+    return status;
+  }
+
+  private void update(RouteDescriptor.StatusDescriptor status, RequestPhase phase, long start,
+                      long end) {
+    if (start != UNSET && end != UNSET) {
+      status.getPhase(phase).update(end - start);
+    }
+  }
+
+  /**
+   * Records the timestamps of a single request, events of a request are delivered sequentially.
+   */
+  private class PhaseListener implements RequestEventListener {
+    private long matchingStart = UNSET;
+    private long requestMatched = UNSET;
+    private long requestFiltered = UNSET;
+    private long resourceMethodStart = UNSET;
+    private long resourceMethodFinished = UNSET;
+    private long exceptionStart = UNSET;
+    private long exceptionMappingFinished = UNSET;
+    private long responseFiltersStart = UNSET;
+    private long responseFiltersFinished = UNSET;
+    @Nullable
+    private RouteDescriptor.StatusDescriptor status;
+
+    @Override
+    public void onEvent(RequestEvent event) {
+      switch (event.getType()) {
+        case MATCHING_START:
+          matchingStart = System.nanoTime();
+          break;
+        case REQUEST_MATCHED:
+          requestMatched = System.nanoTime();
+          break;
+        case REQUEST_FILTERED:
+          requestFiltered = System.nanoTime();
+          break;
+        case RESOURCE_METHOD_START:
+          resourceMethodStart = System.nanoTime();
+          break;
+        case RESOURCE_METHOD_FINISHED:
+          resourceMethodFinished = System.nanoTime();
+          break;
+        case ON_EXCEPTION:
+          if (exceptionStart == UNSET) {
+            exceptionStart = System.nanoTime();
+          }
+          break;
+        case EXCEPTION_MAPPING_FINISHED:
+          exceptionMappingFinished = System.nanoTime();
+          break;
+        case RESP_FILTERS_START:
+          responseFiltersStart = System.nanoTime();
+          break;
+        case RESP_FILTERS_FINISHED:
+          responseFiltersFinished = System.nanoTime();
+          // Report before the response is written so the numbers are complete by the time the
+          // client sees the response, only the write phase is left for FINISHED.
+          try {
+            status = report(event, this);
+          } catch (Throwable t) {
+            logger.log(Level.SEVERE, "Exception reporting jersey request phases", t);
+          }
+          break;
+        case FINISHED:
+          if (status != null && event.isResponseWritten()) {
+            update(status, RequestPhase.RESPONSE_WRITE, responseFiltersFinished,
+                System.nanoTime());
+          }
+          break;
+        default:
+          break;
+      }
+    }
+  }
+}
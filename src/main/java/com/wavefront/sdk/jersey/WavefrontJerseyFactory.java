@@ -30,6 +30,7 @@ public class WavefrontJerseyFactory {
   private final WavefrontSender wavefrontSender;
   private final WavefrontJerseyReporter wfJerseyReporter;
   private final WavefrontJerseyFilter wavefrontJerseyFilter;
+  private final WavefrontJerseyEventListener wavefrontJerseyEventListener;
   private final WavefrontJaxrsClientFilter wavefrontJaxrsClientFilter;
 
   /**
@@ -76,6 +77,10 @@ public class WavefrontJerseyFactory {
     // Step 8 - Construct the filter that you should register with your Jersey based application.
     this.wavefrontJerseyFilter = wfJerseyFilterBuilder.build();
 
+    // Step 9 - Optionally register the event listener to report per-phase request latencies.
+    this.wavefrontJerseyEventListener = new WavefrontJerseyEventListener.Builder(
+        wfJerseyReporter, applicationTags).build();
+
     this.wavefrontJaxrsClientFilter = new WavefrontJaxrsClientFilter(wavefrontSender,
         applicationTags, source, tracer);
   }
@@ -84,6 +89,10 @@ public class WavefrontJerseyFactory {
     return wavefrontJerseyFilter;
   }
 
+  public WavefrontJerseyEventListener getWavefrontJerseyEventListener() {
+    return wavefrontJerseyEventListener;
+  }
+
   public WavefrontJaxrsClientFilter getWavefrontJaxrsClientFilter() {
     return wavefrontJaxrsClientFilter;
   }
@@ -4,29 +4,39 @@ import com.google.common.base.Preconditions;
 
 import com.wavefront.internal.reporter.SdkReporter;
 import com.wavefront.internal_reporter_java.io.dropwizard.metrics5.MetricName;
-import com.wavefront.sdk.common.Pair;
+import com.wavefront.opentracing.WavefrontSpanContext;
 import com.wavefront.sdk.common.application.ApplicationTags;
 import com.wavefront.sdk.jaxrs.client.SpanWrapper;
+import com.wavefront.sdk.jersey.reporter.WavefrontJerseyReporter;
 
+import org.glassfish.jersey.server.ChunkedOutput;
 import org.glassfish.jersey.server.ContainerRequest;
-import org.glassfish.jersey.server.ExtendedUriInfo;
-import org.glassfish.jersey.server.internal.routing.RoutingContext;
-
+import org.glassfish.jersey.server.model.Resource;
+import org.glassfish.jersey.server.model.ResourceMethod;
+import org.glassfish.jersey.server.monitoring.ApplicationEvent;
+import org.glassfish.jersey.server.monitoring.ApplicationEventListener;
+import org.glassfish.jersey.server.monitoring.RequestEvent;
+import org.glassfish.jersey.server.monitoring.RequestEventListener;
+
+import java.io.File;
+import java.io.InputStream;
 import java.lang.management.ManagementFactory;
-import java.lang.reflect.Method;
-import java.net.MalformedURLException;
-import java.net.URL;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.net.URI;
 import java.util.AbstractMap;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.Optional;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -36,6 +46,9 @@ import javax.ws.rs.container.ContainerRequestFilter;
 import javax.ws.rs.container.ContainerResponseContext;
 import javax.ws.rs.container.ContainerResponseFilter;
 import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import javax.ws.rs.core.UriInfo;
 
 import io.opentracing.Scope;
 import io.opentracing.Span;
@@ -46,43 +59,240 @@ import io.opentracing.propagation.TextMap;
 import io.opentracing.tag.Tags;
 
 import static com.wavefront.sdk.common.Constants.CLUSTER_TAG_KEY;
-import static com.wavefront.sdk.common.Constants.NULL_TAG_VAL;
 import static com.wavefront.sdk.common.Constants.SERVICE_TAG_KEY;
 import static com.wavefront.sdk.common.Constants.SHARD_TAG_KEY;
 import static com.wavefront.sdk.common.Constants.WAVEFRONT_PROVIDED_SOURCE;
 import static com.wavefront.sdk.jaxrs.Constants.PROPERTY_NAME;
 import static com.wavefront.sdk.jaxrs.Constants.WF_SPAN_HEADER;
-import static com.wavefront.sdk.jersey.Constants.JERSEY_SERVER_COMPONENT;
-import static com.wavefront.sdk.jersey.MetricNameUtils.REQUEST_PREFIX;
-import static com.wavefront.sdk.jersey.MetricNameUtils.RESPONSE_PREFIX;
+import static com.wavefront.sdk.jersey.Constants.REJECTED_PROPERTY_NAME;
+import static com.wavefront.sdk.jersey.Constants.STATS_CONTEXT_PROPERTY_NAME;
+import static com.wavefront.sdk.jersey.Constants.STREAMED_RESPONSE_PROPERTY_NAME;
+import static com.wavefront.sdk.jersey.RouteDescriptor.clusterOrDefault;
+import static com.wavefront.sdk.jersey.RouteDescriptor.shardOrDefault;
 
 /**
  * A filter to generate Wavefront metrics and histograms for Jersey API requests/responses.
  *
+ * The filter is also an application event listener, so that the metrics of the routes can be
+ * pre-registered once the application is initialized, see {@link Builder#preRegisterRoutes},
+ * and so that it is closed when the application is destroyed, see {@link #close()}.
+ *
  * @author Sushant Dewan (sushant@wavefront.com).
  */
-public class WavefrontJerseyFilter implements ContainerRequestFilter, ContainerResponseFilter {
+public class WavefrontJerseyFilter implements ContainerRequestFilter, ContainerResponseFilter,
+    ApplicationEventListener {
   private static final Logger logger = Logger.getLogger(
       WavefrontJerseyFilter.class.getName());
   private final SdkReporter wfJerseyReporter;
   private final ApplicationTags applicationTags;
-  private final ThreadLocal<StatsContext> statsContextThreadLocal = new ThreadLocal<>();
-  private final ConcurrentMap<MetricName, AtomicInteger> gauges = new ConcurrentHashMap<>();
+  private final ConcurrentMap<MetricName, InflightTracker> gauges = new ConcurrentHashMap<>();
+  // Inflight trackers of the routes that can be evicted, which have no gauges.
+  private final ConcurrentMap<MetricName, InflightTracker> evictableInflight =
+      new ConcurrentHashMap<>();
+  private final RouteDescriptorCache routes;
+  // 0 if routes are never evicted.
+  private final long idleRouteTtlNanos;
+  private final WavefrontJerseyEntityInterceptor entityInterceptor;
   private final Set<String> headerTags;
+  private final ThreadMXBean threadMXBean;
+  private final int cpuSampleRate;
+  @Nullable
+  private final com.sun.management.ThreadMXBean allocationMXBean;
+  private final int allocationSampleRate;
+  // True if the blocked and waited time of the request threads are measured.
+  private final boolean threadContention;
+  @Nullable
+  private final QueueTimePolicy queueTimePolicy;
+  @Nullable
+  private final LazyHistogram totalQueueTime;
+  @Nullable
+  private final LazyCounter queueTimeInvalid;
+  // Statuses whose series are registered for every route at startup, empty to register none.
+  private final Set<Integer> preRegisteredStatuses;
+  // Set if the response metrics are recorded on a background thread.
+  @Nullable
+  private final RecordingBuffer recordingBuffer;
+  @Nullable
+  private final LazyCounter recordingDropped;
+
+  // Overall (route independent) metrics, computed once.
+  private final MetricName totalInflightName;
+  private final MetricName totalStreamsInflightName;
+  private final LazyCounter completedPerSource;
+  @Nullable
+  private final LazyCounter completedPerShard;
+  private final LazyCounter completedPerService;
+  @Nullable
+  private final LazyCounter completedPerCluster;
+  private final LazyCounter completedPerApplication;
+  private final LazyCounter errorsPerSource;
+  @Nullable
+  private final LazyCounter errorsPerShard;
+  private final LazyCounter errorsPerService;
+  @Nullable
+  private final LazyCounter errorsPerCluster;
+  private final LazyCounter errorsPerApplication;
 
   @Nullable
   private final Tracer tracer;
+  private final TraceSamplingPolicy traceSamplingPolicy;
+  // Null if the tracer is handed every request header.
+  @Nullable
+  private final PropagationHeaders propagationHeaders;
+  private final SpanDecorationPolicy spanDecorationPolicy;
+  @Nullable
+  private final TailSpanRetention tailSpanRetention;
+  private final RedMetricsMode redMetricsMode;
+  // Set if requests over the adaptive concurrency limit are rejected.
+  @Nullable
+  private final ConcurrencyLimitPolicy concurrencyLimitPolicy;
+  @Nullable
+  private final ConcurrencyLimiter globalConcurrencyLimiter;
+  private final ConcurrentMap<MetricName, ConcurrencyLimiter> routeConcurrencyLimiters =
+      new ConcurrentHashMap<>();
 
   private WavefrontJerseyFilter(SdkReporter wfJerseyReporter,
                                 ApplicationTags applicationTags,
                                 @Nullable Tracer tracer,
-                                Set<String> headerTags) {
+                                Set<String> headerTags,
+                                MeasurementPolicy cpuTimePolicy,
+                                RecordingPolicy recordingPolicy,
+                                CardinalityLimits cardinalityLimits,
+                                long idleRouteTtlNanos,
+                                TraceSamplingPolicy traceSamplingPolicy,
+                                @Nullable PropagationHeaders propagationHeaders,
+                                SpanDecorationPolicy spanDecorationPolicy,
+                                @Nullable TailSpanRetention tailSpanRetention,
+                                RedMetricsMode redMetricsMode,
+                                @Nullable ConcurrencyLimitPolicy concurrencyLimitPolicy,
+                                boolean threadContention,
+                                MeasurementPolicy allocationPolicy,
+                                Set<Integer> preRegisteredStatuses,
+                                @Nullable QueueTimePolicy queueTimePolicy) {
     Preconditions.checkNotNull(wfJerseyReporter, "Invalid JerseyReporter");
     Preconditions.checkNotNull(applicationTags, "Invalid ApplicationTags");
+    Preconditions.checkNotNull(cpuTimePolicy, "Invalid cpu time MeasurementPolicy");
+    Preconditions.checkNotNull(allocationPolicy, "Invalid allocation MeasurementPolicy");
+    Preconditions.checkNotNull(recordingPolicy, "Invalid RecordingPolicy");
+    Preconditions.checkNotNull(cardinalityLimits, "Invalid CardinalityLimits");
+    Preconditions.checkNotNull(traceSamplingPolicy, "Invalid TraceSamplingPolicy");
+    Preconditions.checkNotNull(spanDecorationPolicy, "Invalid SpanDecorationPolicy");
+    Preconditions.checkNotNull(redMetricsMode, "Invalid RedMetricsMode");
+    // The tracer derives no RED metrics from the spans with a TailSpanRetention reporter.
+    Preconditions.checkArgument(tailSpanRetention == null ||
+        redMetricsMode == RedMetricsMode.FILTER_AND_TRACER,
+        "TailSpanRetention requires RedMetricsMode.FILTER_AND_TRACER");
+    // Only WavefrontJerseyReporter weighs the sampled values, the histogram counts of other
+    // reporters would reflect 1 in sampleRate requests.
+    Preconditions.checkArgument(cpuTimePolicy.getSampleRate() <= 1 ||
+        wfJerseyReporter instanceof WavefrontJerseyReporter,
+        "Sampled cpu time MeasurementPolicy requires a WavefrontJerseyReporter");
+    Preconditions.checkArgument(allocationPolicy.getSampleRate() <= 1 ||
+        wfJerseyReporter instanceof WavefrontJerseyReporter,
+        "Sampled allocation MeasurementPolicy requires a WavefrontJerseyReporter");
     this.wfJerseyReporter = wfJerseyReporter;
     this.applicationTags = applicationTags;
     this.tracer = tracer;
+    this.traceSamplingPolicy = traceSamplingPolicy;
+    this.propagationHeaders = propagationHeaders;
+    this.spanDecorationPolicy = spanDecorationPolicy;
+    this.tailSpanRetention = tailSpanRetention;
+    this.redMetricsMode = redMetricsMode;
+    this.concurrencyLimitPolicy = concurrencyLimitPolicy;
     this.headerTags = headerTags;
+    this.threadMXBean = ManagementFactory.getThreadMXBean();
+    boolean cpuTimeSupported;
+    try {
+      cpuTimeSupported = threadMXBean.isCurrentThreadCpuTimeSupported() &&
+          threadMXBean.isThreadCpuTimeEnabled();
+    } catch (UnsupportedOperationException e) {
+      cpuTimeSupported = false;
+    }
+    if (!cpuTimeSupported && cpuTimePolicy.getSampleRate() > 0) {
+      logger.log(Level.WARNING, "Thread CPU time is not supported by this JVM, cpu_ns " +
+          "histograms will not be reported");
+    }
+    this.cpuSampleRate = cpuTimeSupported ? cpuTimePolicy.getSampleRate() : 0;
+    this.threadContention = threadContention && enableThreadContentionMonitoring();
+    this.preRegisteredStatuses = preRegisteredStatuses;
+    this.queueTimePolicy = queueTimePolicy;
+    this.allocationMXBean = allocationPolicy.getSampleRate() > 0 ? allocationMXBean() : null;
+    this.allocationSampleRate = allocationMXBean == null ? 0 : allocationPolicy.getSampleRate();
+    this.idleRouteTtlNanos = idleRouteTtlNanos;
+    this.routes = new RouteDescriptorCache(applicationTags, wfJerseyReporter, cardinalityLimits,
+        true, idleRouteTtlNanos, this::evictRoute);
+    this.entityInterceptor = new WavefrontJerseyEntityInterceptor(routes);
+
+    Map<String, String> overallAggregatedPerSourceMap = new HashMap<>();
+    overallAggregatedPerSourceMap.put(CLUSTER_TAG_KEY, clusterOrDefault(applicationTags));
+    overallAggregatedPerSourceMap.put(SERVICE_TAG_KEY, applicationTags.getService());
+    overallAggregatedPerSourceMap.put(SHARD_TAG_KEY, shardOrDefault(applicationTags));
+
+    Map<String, String> overallAggregatedPerShardMap =
+        new HashMap<>(overallAggregatedPerSourceMap);
+    overallAggregatedPerShardMap.put("source", WAVEFRONT_PROVIDED_SOURCE);
+
+    Map<String, String> overallAggregatedPerServiceMap = new HashMap<>();
+    overallAggregatedPerServiceMap.put(CLUSTER_TAG_KEY, clusterOrDefault(applicationTags));
+    overallAggregatedPerServiceMap.put(SERVICE_TAG_KEY, applicationTags.getService());
+    overallAggregatedPerServiceMap.put("source", WAVEFRONT_PROVIDED_SOURCE);
+
+    Map<String, String> overallAggregatedPerClusterMap = new HashMap<>();
+    overallAggregatedPerClusterMap.put(CLUSTER_TAG_KEY, clusterOrDefault(applicationTags));
+    overallAggregatedPerClusterMap.put("source", WAVEFRONT_PROVIDED_SOURCE);
+
+    Map<String, String> overallAggregatedPerApplicationMap =
+        Collections.singletonMap("source", WAVEFRONT_PROVIDED_SOURCE);
+
+    this.totalInflightName = new MetricName("total_requests.inflight",
+        Collections.unmodifiableMap(overallAggregatedPerSourceMap));
+    this.totalStreamsInflightName = new MetricName("total_streams.inflight",
+        totalInflightName.getTags());
+    this.globalConcurrencyLimiter = concurrencyLimitPolicy == null ||
+        concurrencyLimitPolicy.isPerRoute() ? null : newConcurrencyLimiter(totalInflightName,
+        true);
+    this.completedPerSource = LazyCounter.counter(wfJerseyReporter, new MetricName(
+        "response.completed.aggregated_per_source", overallAggregatedPerSourceMap));
+    this.completedPerShard = applicationTags.getShard() == null ? null :
+        LazyCounter.deltaCounter(wfJerseyReporter, new MetricName(
+            "response.completed.aggregated_per_shard", overallAggregatedPerShardMap));
+    this.completedPerService = LazyCounter.deltaCounter(wfJerseyReporter, new MetricName(
+        "response.completed.aggregated_per_service", overallAggregatedPerServiceMap));
+    this.completedPerCluster = applicationTags.getCluster() == null ? null :
+        LazyCounter.deltaCounter(wfJerseyReporter, new MetricName(
+            "response.completed.aggregated_per_cluster", overallAggregatedPerClusterMap));
+    this.completedPerApplication = LazyCounter.deltaCounter(wfJerseyReporter, new MetricName(
+        "response.completed.aggregated_per_application", overallAggregatedPerApplicationMap));
+    this.errorsPerSource = LazyCounter.counter(wfJerseyReporter, new MetricName(
+        "response.errors.aggregated_per_source", overallAggregatedPerSourceMap));
+    this.errorsPerShard = applicationTags.getShard() == null ? null :
+        LazyCounter.deltaCounter(wfJerseyReporter, new MetricName(
+            "response.errors.aggregated_per_shard", overallAggregatedPerShardMap));
+    this.errorsPerService = LazyCounter.deltaCounter(wfJerseyReporter, new MetricName(
+        "response.errors.aggregated_per_service", overallAggregatedPerServiceMap));
+    this.errorsPerCluster = applicationTags.getCluster() == null ? null :
+        LazyCounter.deltaCounter(wfJerseyReporter, new MetricName(
+            "response.errors.aggregated_per_cluster", overallAggregatedPerClusterMap));
+    this.errorsPerApplication = LazyCounter.deltaCounter(wfJerseyReporter, new MetricName(
+        "response.errors.aggregated_per_application", overallAggregatedPerApplicationMap));
+    if (queueTimePolicy != null) {
+      this.totalQueueTime = new LazyHistogram(wfJerseyReporter, new MetricName(
+          "total_requests.queue_time", overallAggregatedPerSourceMap));
+      this.queueTimeInvalid = LazyCounter.counter(wfJerseyReporter, new MetricName(
+          "queue_time.invalid", overallAggregatedPerSourceMap));
+    } else {
+      this.totalQueueTime = null;
+      this.queueTimeInvalid = null;
+    }
+    if (recordingPolicy.isAsynchronous()) {
+      this.recordingDropped = LazyCounter.counter(wfJerseyReporter, new MetricName(
+          "recording.dropped", overallAggregatedPerSourceMap));
+      this.recordingBuffer = new RecordingBuffer(recordingPolicy.getBufferSize(),
+          recordingPolicy.isBlockWhenFull(), this::recordResponse);
+    } else {
+      this.recordingDropped = null;
+      this.recordingBuffer = null;
+    }
   }
 
   public static final class Builder {
@@ -92,6 +302,24 @@ public class WavefrontJerseyFilter implements ContainerRequestFilter, ContainerR
     private final Set<String> headerTags = new HashSet<>();
     @Nullable
     private Tracer tracer;
+    private MeasurementPolicy cpuTimePolicy = MeasurementPolicy.always();
+    private RecordingPolicy recordingPolicy = RecordingPolicy.synchronous();
+    private CardinalityLimits cardinalityLimits = CardinalityLimits.unlimited();
+    private long idleRouteTtlNanos = 0;
+    private TraceSamplingPolicy traceSamplingPolicy = TraceSamplingPolicy.always();
+    @Nullable
+    private PropagationHeaders propagationHeaders;
+    private SpanDecorationPolicy spanDecorationPolicy = SpanDecorationPolicy.defaultPolicy();
+    @Nullable
+    private TailSpanRetention tailSpanRetention;
+    private RedMetricsMode redMetricsMode = RedMetricsMode.FILTER_AND_TRACER;
+    @Nullable
+    private ConcurrencyLimitPolicy concurrencyLimitPolicy;
+    private boolean threadContention = false;
+    private MeasurementPolicy allocationPolicy = MeasurementPolicy.off();
+    private final Set<Integer> preRegisteredStatuses = new HashSet<>();
+    @Nullable
+    private QueueTimePolicy queueTimePolicy;
 
     public Builder(SdkReporter wfJerseyReporter, ApplicationTags applicationTags) {
       this.wfJerseyReporter = wfJerseyReporter;
@@ -103,16 +331,305 @@ public class WavefrontJerseyFilter implements ContainerRequestFilter, ContainerR
       return this;
     }
 
+    /**
+     * Set which requests are traced when a tracer is configured, defaults to
+     * {@link TraceSamplingPolicy#always()}. Unsampled requests without a parent span context get
+     * no span at all with {@link RedMetricsMode#FILTER_AND_TRACER}, which saves building one per
+     * request, but the calls they make (e.g. through the WavefrontJaxrsClientFilter) then start
+     * their own traces instead of inheriting the decision. Unsampled requests with a parent span
+     * context, or with {@link RedMetricsMode#TRACER}, get an unreported span with
+     * {@code sampling.priority} 0.
+     *
+     * @param traceSamplingPolicy head based trace sampling policy.
+     * @return {@code this}.
+     */
+    public Builder traceSamplingPolicy(TraceSamplingPolicy traceSamplingPolicy) {
+      this.traceSamplingPolicy = traceSamplingPolicy;
+      return this;
+    }
+
+    /**
+     * Set the request headers the tracer extracts its span context from, so that only those
+     * are handed to the tracer instead of every request header. E.g. for the Jaeger propagation
+     * format, names {@code uber-trace-id} and prefixes {@code uberctx-}. Every request header is
+     * handed to the tracer by default.
+     *
+     * @param names    names of the propagation headers, looked up directly.
+     * @param prefixes prefixes of the propagation headers with variable names (e.g. baggage).
+     * @return {@code this}.
+     */
+    public Builder propagationHeaders(Set<String> names, Set<String> prefixes) {
+      Preconditions.checkNotNull(names, "Invalid names");
+      Preconditions.checkNotNull(prefixes, "Invalid prefixes");
+      this.propagationHeaders = new PropagationHeaders(names, prefixes);
+      return this;
+    }
+
+    /**
+     * Only hand the tracer the {@code wf-ot-} headers of the default HTTP_HEADERS propagation
+     * format of the WavefrontTracer, see {@link #propagationHeaders}. Don't use it with a
+     * WavefrontTracer built with another propagation format (e.g. B3 or Jaeger), whose parent
+     * span contexts would no longer be extracted.
+     *
+     * @param baggage true to also hand the baggage headers to the tracer, which requires a scan
+     *                of every request header name for the {@code wf-ot-} prefix. Otherwise the
+     *                trace id, span id and sampling decision headers are looked up directly.
+     * @return {@code this}.
+     */
+    public Builder wavefrontPropagationHeaders(boolean baggage) {
+      this.propagationHeaders = PropagationHeaders.wavefront(baggage);
+      return this;
+    }
+
+    /**
+     * Set the tags set on the server spans, defaults to
+     * {@link SpanDecorationPolicy#defaultPolicy()}.
+     *
+     * @param spanDecorationPolicy span tags policy.
+     * @return {@code this}.
+     */
+    public Builder spanDecorationPolicy(SpanDecorationPolicy spanDecorationPolicy) {
+      this.spanDecorationPolicy = spanDecorationPolicy;
+      return this;
+    }
+
+    /**
+     * Only report the spans of failed or slow requests, the tracer must be built with the given
+     * {@link TailSpanRetention} as its span reporter. Every traced request is reported by
+     * default. Requires {@link RedMetricsMode#FILTER_AND_TRACER}, since such a tracer reports no
+     * RED metrics.
+     *
+     * @param tailSpanRetention span reporter of the tracer holding the spans until the decision.
+     * @return {@code this}.
+     */
+    public Builder tailSpanRetention(TailSpanRetention tailSpanRetention) {
+      this.tailSpanRetention = tailSpanRetention;
+      return this;
+    }
+
+    /**
+     * Set which pipeline reports the RED metrics of requests, defaults to
+     * {@link RedMetricsMode#FILTER_AND_TRACER}.
+     *
+     * @param redMetricsMode RED metrics mode.
+     * @return {@code this}.
+     */
+    public Builder redMetricsMode(RedMetricsMode redMetricsMode) {
+      this.redMetricsMode = redMetricsMode;
+      return this;
+    }
+
+    /**
+     * Reject requests over an adaptive concurrency limit with HTTP 503, no limit by default.
+     * Rejected requests are only counted by the {@code concurrency_limit.rejected} counters,
+     * not as responses (or errors) of their route.
+     *
+     * @param concurrencyLimitPolicy adaptive concurrency limit policy.
+     * @return {@code this}.
+     */
+    public Builder concurrencyLimitPolicy(ConcurrencyLimitPolicy concurrencyLimitPolicy) {
+      this.concurrencyLimitPolicy = concurrencyLimitPolicy;
+      return this;
+    }
+
     public Builder headerTags(Set<String> headerTags) {
       this.headerTags.addAll(headerTags);
       return this;
     }
 
+    /**
+     * Set how often the CPU time of a request is measured for the cpu_ns histograms, defaults to
+     * {@link MeasurementPolicy#always()}. A sampled policy requires a WavefrontJerseyReporter.
+     *
+     * @param cpuTimePolicy CPU time measurement policy.
+     * @return {@code this}.
+     */
+    public Builder cpuTimePolicy(MeasurementPolicy cpuTimePolicy) {
+      this.cpuTimePolicy = cpuTimePolicy;
+      return this;
+    }
+
+    /**
+     * Report how long requests queued before Jersey dispatched them, as queue_time histograms.
+     * Not reported by default.
+     *
+     * @param queueTimePolicy where to find the upstream start time of requests.
+     * @return {@code this}.
+     */
+    public Builder queueTimePolicy(QueueTimePolicy queueTimePolicy) {
+      this.queueTimePolicy = queueTimePolicy;
+      return this;
+    }
+
+    /**
+     * Register the inflight gauges and the response series of the given statuses of every
+     * resource method when the application is initialized, instead of on the first request of
+     * each route. With a {@link WavefrontJerseyReporter}, registered series are reported (as
+     * zero) before they see any request. Other reporters only create a series on its first
+     * update, so only the counters (e.g. {@code cumulative} and {@code total_time}, incremented
+     * by zero) and the inflight gauges are registered with them, the delta counters and
+     * histograms are still created by the first request. Defaults to no pre-registration.
+     *
+     * Every resource method of the application takes a route slot of the
+     * {@link CardinalityLimits} at startup, and the given statuses a status slot of each route:
+     * resource methods over the limits are registered as the overflow route, and routes first
+     * seen later become overflow routes if the limits are used up. Pre-registered routes are
+     * never evicted by the {@link #idleRouteTtl}.
+     *
+     * @param statuses HTTP response statuses to register for every route, e.g. 200.
+     * @return {@code this}.
+     */
+    public Builder preRegisterRoutes(Set<Integer> statuses) {
+      this.preRegisteredStatuses.addAll(statuses);
+      return this;
+    }
+
+    /**
+     * Set how often the heap allocated by a request is measured for the allocated_bytes
+     * histograms, defaults to {@link MeasurementPolicy#off()}. A sampled policy requires a
+     * WavefrontJerseyReporter. Requires a JVM that implements
+     * {@link com.sun.management.ThreadMXBean#getThreadAllocatedBytes(long)}.
+     *
+     * @param allocationPolicy allocation measurement policy.
+     * @return {@code this}.
+     */
+    public Builder allocationPolicy(MeasurementPolicy allocationPolicy) {
+      this.allocationPolicy = allocationPolicy;
+      return this;
+    }
+
+    /**
+     * Record the time the request thread spent blocked on monitors and waiting (e.g. on a pool
+     * or a lock) while processing a request, as blocked_ns and waited_ns histograms. Enables
+     * thread contention monitoring for the whole JVM, defaults to false.
+     *
+     * @param threadContention true to record the blocked and waited time of requests.
+     * @return {@code this}.
+     */
+    public Builder threadContention(boolean threadContention) {
+      this.threadContention = threadContention;
+      return this;
+    }
+
+    /**
+     * Set whether the response metrics are recorded on the request thread or handed off to a
+     * background thread, defaults to {@link RecordingPolicy#synchronous()}.
+     *
+     * @param recordingPolicy response metrics recording policy.
+     * @return {@code this}.
+     */
+    public Builder recordingPolicy(RecordingPolicy recordingPolicy) {
+      this.recordingPolicy = recordingPolicy;
+      return this;
+    }
+
+    /**
+     * Bound the number of route and status series, defaults to
+     * {@link CardinalityLimits#unlimited()}.
+     *
+     * @param cardinalityLimits route and status series limits.
+     * @return {@code this}.
+     */
+    public Builder cardinalityLimits(CardinalityLimits cardinalityLimits) {
+      this.cardinalityLimits = cardinalityLimits;
+      return this;
+    }
+
+    /**
+     * Free the memory the filter keeps for routes that have not been used for the given
+     * duration: their cached metric names, tag maps, span template, inflight trackers and
+     * concurrency limiter. They are transparently rebuilt on the next request.
+     *
+     * The reporter can't unregister series, so routes that can be evicted don't report the
+     * route gauges ({@code inflight}, {@code inflight.peak}, {@code concurrency}, their
+     * {@code streaming.} counterparts and {@code concurrency_limit}) rather than leave series
+     * reporting zero behind, the {@code total_requests} and {@code total_streams} gauges are
+     * still reported. The counters and histograms of evicted routes stay registered with the
+     * reporter, and evicted routes keep counting towards the cardinality limits, which bound
+     * them. Routes are never evicted by default, and pre-registered routes never are and keep
+     * their gauges, see {@link #preRegisterRoutes}.
+     *
+     * @param duration idle time after which a route is evicted, must be positive.
+     * @param unit     unit of the duration.
+     * @return {@code this}.
+     */
+    public Builder idleRouteTtl(long duration, TimeUnit unit) {
+      Preconditions.checkArgument(duration > 0, "Invalid duration");
+      this.idleRouteTtlNanos = unit.toNanos(duration);
+      return this;
+    }
+
     public WavefrontJerseyFilter build() {
-      return new WavefrontJerseyFilter(wfJerseyReporter, applicationTags, tracer, headerTags);
+      return new WavefrontJerseyFilter(wfJerseyReporter, applicationTags, tracer, headerTags,
+          cpuTimePolicy, recordingPolicy, cardinalityLimits, idleRouteTtlNanos,
+          traceSamplingPolicy, propagationHeaders, spanDecorationPolicy, tailSpanRetention,
+          redMetricsMode, concurrencyLimitPolicy, threadContention, allocationPolicy,
+          preRegisteredStatuses, queueTimePolicy);
+    }
+  }
+
+  /**
+   * Returns the interceptor measuring the request and response entities of the routes of this
+   * filter, to be registered next to it.
+   *
+   * @return entity interceptor companion of this filter.
+   */
+  public WavefrontJerseyEntityInterceptor getEntityInterceptor() {
+    return entityInterceptor;
+  }
+
+  /**
+   * Stop the background recording thread of an asynchronous {@link RecordingPolicy}, once it has
+   * recorded the requests already completed. Called when the application is destroyed, call it
+   * if the filter is discarded without being registered with an application or before the
+   * reporter is stopped. The metrics of later requests are dropped.
+   */
+  public void close() {
+    if (recordingBuffer != null) {
+      recordingBuffer.close();
+    }
+  }
+
+  /**
+   * Releases the concurrency limiter of requests the response filter didn't complete, e.g. when
+   * an exception is not mapped to a response or the client goes away, so that their permits
+   * don't leak. The latency of those requests is not a sample of the limit.
+   */
+  private static final RequestEventListener RELEASE_CONCURRENCY_LIMITER = event -> {
+    if (event.getType() == RequestEvent.Type.FINISHED) {
+      Object statsContext = event.getContainerRequest().getProperty(STATS_CONTEXT_PROPERTY_NAME);
+      if (statsContext instanceof StatsContext) {
+        ((StatsContext) statsContext).releaseConcurrencyLimiter(0);
+      }
+    }
+  };
+
+  @Override
+  public void onEvent(ApplicationEvent event) {
+    if (event.getType() == ApplicationEvent.Type.DESTROY_FINISHED) {
+      close();
+      return;
+    }
+    if (event.getType() != ApplicationEvent.Type.INITIALIZATION_FINISHED ||
+        preRegisteredStatuses.isEmpty() || event.getResourceModel() == null) {
+      return;
+    }
+    try {
+      for (Resource resource : event.getResourceModel().getRootResources()) {
+        preRegister(resource);
+      }
+    } catch (Throwable t) {
+      logger.log(Level.SEVERE, "Exception pre-registering jersey route metrics", t);
     }
   }
 
+  @Override
+  public RequestEventListener onRequest(RequestEvent requestEvent) {
+    // Requests are measured by the filter methods, only the permits of the concurrency limiter
+    // need a completion path that runs even when the response filters don't.
+    return concurrencyLimitPolicy == null ? null : RELEASE_CONCURRENCY_LIMITER;
+  }
+
   @Override
   public void filter(ContainerRequestContext containerRequestContext) {
     try {
@@ -135,58 +652,108 @@ public class WavefrontJerseyFilter implements ContainerRequestFilter, ContainerR
   private void processRequest(ContainerRequestContext containerRequestContext) {
     if (containerRequestContext instanceof ContainerRequest) {
       ContainerRequest request = (ContainerRequest) containerRequestContext;
-      long startTime = System.currentTimeMillis();
-      long startTimeCpuNanos = ManagementFactory.getThreadMXBean().getCurrentThreadCpuTime();
-      Optional<Pair<String, String>> pairOptional = MetricNameUtils.metricNameAndPath(request);
-      if (!pairOptional.isPresent()) {
-        statsContextThreadLocal.set(new StatsContext(startTime, startTimeCpuNanos, null, null));
+      long startNanos = System.nanoTime();
+      RouteDescriptor route = routes.get(request);
+      if (route == null) {
+        return;
+      }
+      if (queueTimePolicy != null) {
+        recordQueueTime(request, route);
+      }
+      ConcurrencyLimiter limiter = concurrencyLimiter(route);
+      if (limiter == null) {
+        startRequest(request, route, startNanos, null);
+        return;
+      }
+      if (!limiter.tryAcquire()) {
+        limiter.getRejected().inc();
+        // Only counted as rejected, see processResponse.
+        request.setProperty(REJECTED_PROPERTY_NAME, Boolean.TRUE);
+        request.abortWith(Response.status(Response.Status.SERVICE_UNAVAILABLE).build());
         return;
       }
-      String requestMetricKey = REQUEST_PREFIX + pairOptional.get()._1;
-      String finalMatchingPath = pairOptional.get()._2;
-      ExtendedUriInfo uriInfo = request.getUriInfo();
-      Pair<String, String> pair = getClassAndMethodName(uriInfo);
-      String finalClassName = pair._1;
-      String finalMethodName = pair._2;
-      String spanOperationName = getSpanOperationName(finalClassName, finalMethodName);
+      try {
+        startRequest(request, route, startNanos, limiter);
+      } catch (RuntimeException | Error e) {
+        limiter.release(0);
+        throw e;
+      }
+    }
+  }
 
-      if (tracer != null) {
-        Tracer.SpanBuilder spanBuilder = tracer.buildSpan(spanOperationName).
-            withTag(Tags.SPAN_KIND.getKey(), Tags.SPAN_KIND_SERVER).
-            withTag("jersey.resource.class", finalClassName).
-            withTag("jersey.path", finalMatchingPath);
-        SpanContext parentSpanContext = parentSpanContext(containerRequestContext);
-        if (parentSpanContext != null) {
-          spanBuilder.asChildOf(parentSpanContext);
-        }
+  /**
+   * Histograms (milliseconds)
+   * 1) jersey.server.request.api.v2.alert.summary.GET.queue_time
+   * 2) jersey.server.total_requests.queue_time
+   */
+  private void recordQueueTime(ContainerRequestContext containerRequestContext,
+                               RouteDescriptor route) {
+    long queueTimeMillis = queueTimePolicy.queueTimeMillis(containerRequestContext,
+        System.currentTimeMillis());
+    if (queueTimeMillis >= 0) {
+      route.getQueueTime().update(queueTimeMillis);
+      totalQueueTime.update(queueTimeMillis);
+    } else if (queueTimeMillis == QueueTimePolicy.INVALID) {
+      queueTimeInvalid.inc();
+    }
+  }
 
+  private void startRequest(ContainerRequestContext containerRequestContext,
+                            RouteDescriptor route, long startNanos,
+                            @Nullable ConcurrencyLimiter limiter) {
+    long startTimeCpuNanos = MeasurementPolicy.sample(cpuSampleRate) ?
+        threadMXBean.getCurrentThreadCpuTime() : -1;
+    long startAllocatedBytes = MeasurementPolicy.sample(allocationSampleRate) ?
+        allocationMXBean.getThreadAllocatedBytes(Thread.currentThread().getId()) : -1;
+    ThreadInfo startThreadInfo = threadContention ? currentThreadInfo() : null;
+    SpanContext retainedSpanContext = null;
+
+    SpanContext parentSpanContext = tracer == null ? null :
+        parentSpanContext(containerRequestContext);
+    boolean sampled = tracer != null && traceSamplingPolicy.sample(route.getOperationName(),
+        parentSamplingDecision(parentSpanContext));
+    // An unsampled request only needs a span to hand the decision of its parent to the calls
+    // it makes, or for the tracer to derive its RED metrics from.
+    if (sampled || (tracer != null &&
+        (parentSpanContext != null || redMetricsMode == RedMetricsMode.TRACER))) {
+      Tracer.SpanBuilder spanBuilder =
+          route.getSpanTemplate(spanDecorationPolicy).newSpanBuilder(tracer);
+      if (parentSpanContext != null) {
+        spanBuilder.asChildOf(parentSpanContext);
+      }
+      if (sampled) {
         handleHeaderTags(containerRequestContext, spanBuilder);
-
-        Span span = spanBuilder.start();
-        Scope scope = tracer.activateSpan(span);
-        decorateRequest(containerRequestContext, span);
-        containerRequestContext.setProperty(PROPERTY_NAME, new SpanWrapper(span, scope));
+      } else {
+        // The tracer doesn't report the span, but once activated it hands the decision to the
+        // calls made while handling the request instead of letting them start new traces.
+        spanBuilder.withTag(Tags.SAMPLING_PRIORITY.getKey(), 0);
       }
 
-      /* Gauges
-       * 1) jersey.server.request.api.v2.alert.summary.GET.inflight
-       * 2) jersey.server.total_requests.inflight
-       */
-      AtomicInteger apiInflight = getGaugeValue(new MetricName(requestMetricKey + ".inflight",
-          getCompleteTagsMap(finalClassName, finalMethodName, spanOperationName)));
-      apiInflight.incrementAndGet();
-      AtomicInteger totalInflight = getGaugeValue(new MetricName("total_requests.inflight",
-          new HashMap<String, String>() {{
-            put(CLUSTER_TAG_KEY, applicationTags.getCluster() == null ? NULL_TAG_VAL :
-                applicationTags.getCluster());
-            put(SERVICE_TAG_KEY, applicationTags.getService());
-            put(SHARD_TAG_KEY, applicationTags.getShard() == null ? NULL_TAG_VAL :
-                applicationTags.getShard());
-          }}));
-      totalInflight.incrementAndGet();
-      statsContextThreadLocal.set(new StatsContext(startTime, startTimeCpuNanos, apiInflight,
-          totalInflight));
+      Span span = spanBuilder.start();
+      if (sampled && tailSpanRetention != null && tailSpanRetention.begin(
+          span.context().toTraceId(), span.context().toSpanId(), startNanos)) {
+        retainedSpanContext = span.context();
+      }
+      // The response of an asynchronous resource method is processed on another thread, so
+      // the span can't be activated on this one: the scope would never be closed here.
+      Scope scope = route.isAsynchronous() ? null : tracer.activateSpan(span);
+      if (sampled) {
+        decorateRequest(containerRequestContext, route, span);
+      }
+      containerRequestContext.setProperty(PROPERTY_NAME, new SpanWrapper(span, scope));
     }
+
+    /* Gauges
+     * 1) jersey.server.request.api.v2.alert.summary.GET.inflight
+     * 2) jersey.server.total_requests.inflight
+     */
+    InflightTracker apiInflight = getRouteInflightTracker(route, route.getInflight());
+    apiInflight.increment(startNanos);
+    InflightTracker totalInflight = getInflightTracker(totalInflightName);
+    totalInflight.increment(startNanos);
+    containerRequestContext.setProperty(STATS_CONTEXT_PROPERTY_NAME, new StatsContext(
+        startNanos, startTimeCpuNanos, Thread.currentThread(), apiInflight, totalInflight,
+        retainedSpanContext, limiter, startThreadInfo, startAllocatedBytes));
   }
 
   private void handleHeaderTags(ContainerRequestContext containerRequestContext,
@@ -197,11 +764,19 @@ public class WavefrontJerseyFilter implements ContainerRequestFilter, ContainerR
 
     MultivaluedMap<String, String> requestHeaders = containerRequestContext.getHeaders();
 
+    int maxValues = spanDecorationPolicy.getMaxHeaderTagValues();
+    int maxLength = spanDecorationPolicy.getMaxHeaderTagValueLength();
     for (String headerName : headerTags) {
-      if (requestHeaders.containsKey(headerName)) {
+      List<String> requestHeaderValues = requestHeaders.get(headerName);
+      if (requestHeaderValues != null) {
         // In case of array value, will be added as repeated tags.
-        for (String requestHeaderValue : requestHeaders.get(headerName)) {
-          spanBuilder.withTag(headerName, requestHeaderValue);
+        int values = 0;
+        for (String requestHeaderValue : requestHeaderValues) {
+          if (values++ == maxValues) {
+            break;
+          }
+          spanBuilder.withTag(headerName, requestHeaderValue.length() > maxLength ?
+              requestHeaderValue.substring(0, maxLength) : requestHeaderValue);
         }
       }
     }
@@ -209,17 +784,20 @@ public class WavefrontJerseyFilter implements ContainerRequestFilter, ContainerR
 
   private void processResponse(ContainerRequestContext containerRequestContext,
                                ContainerResponseContext containerResponseContext) {
+    boolean traced = false;
     if (tracer != null) {
       try {
         SpanWrapper spanWrapper = (SpanWrapper) containerRequestContext.getProperty(PROPERTY_NAME);
         if (spanWrapper != null) {
+          Span span = spanWrapper.getSpan();
+          if (span != null) {
+            traced = true;
+            decorateResponse(containerResponseContext, span);
+            span.finish();
+            completeRetention(containerRequestContext, containerResponseContext);
+          }
           Scope scope = spanWrapper.getScope();
           if (scope != null) {
-            Span span = spanWrapper.getSpan();
-            if (span != null) {
-              decorateResponse(containerResponseContext, span);
-              span.finish();
-            }
             scope.close();
           }
         }
@@ -229,263 +807,447 @@ public class WavefrontJerseyFilter implements ContainerRequestFilter, ContainerR
     }
     if (containerRequestContext instanceof ContainerRequest) {
       ContainerRequest request = (ContainerRequest) containerRequestContext;
-      ExtendedUriInfo uriInfo = request.getUriInfo();
-
-      Pair<String, String> pair = getClassAndMethodName(uriInfo);
-      String finalClassName = pair._1;
-      String finalMethodName = pair._2;
-      String spanOperationName = getSpanOperationName(finalClassName, finalMethodName);
-
-      Optional<Pair<String, String>> apiPathOptionalPair =
-          MetricNameUtils.metricNameAndPath(request);
-      if (!apiPathOptionalPair.isPresent()) {
+      RouteDescriptor route = routes.get(request);
+      // The 503 of requests rejected by the concurrency limit is not a response of the route.
+      if (route == null || request.getProperty(REJECTED_PROPERTY_NAME) != null) {
         return;
       }
       if (tracer != null) {
-        String matchingPath = apiPathOptionalPair.get()._2;
-        containerResponseContext.getHeaders().add(WF_SPAN_HEADER, matchingPath);
+        containerResponseContext.getHeaders().add(WF_SPAN_HEADER, route.getMatchingPath());
       }
 
-      String responseMetricKeyWithoutStatus = RESPONSE_PREFIX + apiPathOptionalPair.get()._1;
-      String responseMetricKey =
-          responseMetricKeyWithoutStatus + "." + containerResponseContext.getStatus();
-
-      Map<String, String> completeTagsMap = getCompleteTagsMap(
-          finalClassName, finalMethodName, spanOperationName);
-
-      // Response metrics and histograms below
-      Map<String, String> aggregatedPerShardMap = new HashMap<String, String>() {{
-        put(CLUSTER_TAG_KEY, applicationTags.getCluster() == null ? NULL_TAG_VAL :
-            applicationTags.getCluster());
-        put(SERVICE_TAG_KEY, applicationTags.getService());
-        put(SHARD_TAG_KEY, applicationTags.getShard() == null ? NULL_TAG_VAL :
-            applicationTags.getShard());
-        put("jersey.resource.class", finalClassName);
-        put("jersey" + ".resource.method", finalMethodName);
-        put("operationName", spanOperationName);
-        put("source", WAVEFRONT_PROVIDED_SOURCE);
-      }};
-
-      Map<String, String> overallAggregatedPerSourceMap = new HashMap<String, String>() {{
-        put(CLUSTER_TAG_KEY, applicationTags.getCluster() == null ? NULL_TAG_VAL :
-            applicationTags.getCluster());
-        put(SERVICE_TAG_KEY, applicationTags.getService());
-        put(SHARD_TAG_KEY, applicationTags.getShard() == null ? NULL_TAG_VAL :
-            applicationTags.getShard());
-      }};
-
-      Map<String, String> overallAggregatedPerShardMap = new HashMap<String, String>() {{
-        put(CLUSTER_TAG_KEY, applicationTags.getCluster() == null ? NULL_TAG_VAL :
-            applicationTags.getCluster());
-        put(SERVICE_TAG_KEY, applicationTags.getService());
-        put(SHARD_TAG_KEY, applicationTags.getShard() == null ? NULL_TAG_VAL :
-            applicationTags.getShard());
-        put("source", WAVEFRONT_PROVIDED_SOURCE);
-      }};
-
-      Map<String, String> aggregatedPerServiceMap = new HashMap<String, String>() {{
-        put(CLUSTER_TAG_KEY, applicationTags.getCluster() == null ? NULL_TAG_VAL :
-            applicationTags.getCluster());
-        put(SERVICE_TAG_KEY, applicationTags.getService());
-        put("jersey.resource.class", finalClassName);
-        put("jersey" + ".resource.method", finalMethodName);
-        put("operationName", spanOperationName);
-        put("source", WAVEFRONT_PROVIDED_SOURCE);
-      }};
-
-      Map<String, String> overallAggregatedPerServiceMap = new HashMap<String, String>() {{
-        put(CLUSTER_TAG_KEY, applicationTags.getCluster() == null ? NULL_TAG_VAL :
-            applicationTags.getCluster());
-        put(SERVICE_TAG_KEY, applicationTags.getService());
-        put("source", WAVEFRONT_PROVIDED_SOURCE);
-      }};
-
-      Map<String, String> aggregatedPerClusterMap = new HashMap<String, String>() {{
-        put(CLUSTER_TAG_KEY, applicationTags.getCluster() == null ? NULL_TAG_VAL :
-            applicationTags.getCluster());
-        put("jersey.resource.class", finalClassName);
-        put("jersey" + ".resource.method", finalMethodName);
-        put("operationName", spanOperationName);
-        put("source", WAVEFRONT_PROVIDED_SOURCE);
-      }};
-
-      Map<String, String> overallAggregatedPerClusterMap = new HashMap<String, String>() {{
-        put(CLUSTER_TAG_KEY, applicationTags.getCluster() == null ? NULL_TAG_VAL :
-            applicationTags.getCluster());
-        put("source", WAVEFRONT_PROVIDED_SOURCE);
-      }};
-
-      Map<String, String> aggregatedPerApplicationMap = new HashMap<String, String>() {{
-        put("jersey.resource.class", finalClassName);
-        put("jersey" + ".resource.method", finalMethodName);
-        put("operationName", spanOperationName);
-        put("source", WAVEFRONT_PROVIDED_SOURCE);
-      }};
-
-      Map<String, String> overallAggregatedPerApplicationMap = new HashMap<String, String>() {{
-        put("source", WAVEFRONT_PROVIDED_SOURCE);
-      }};
+      RouteDescriptor.StatusDescriptor status =
+          route.forStatus(containerResponseContext.getStatus());
+      boolean error = isErrorStatusCode(containerResponseContext);
+      long apiLatency = -1;
+      long cpuNanos = -1;
+      long blockedNanos = -1;
+      long waitedNanos = -1;
+      long allocatedBytes = -1;
+
+      Object statsContextProperty = containerRequestContext.getProperty(
+          STATS_CONTEXT_PROPERTY_NAME);
+      if (statsContextProperty instanceof StatsContext) {
+        containerRequestContext.removeProperty(STATS_CONTEXT_PROPERTY_NAME);
+        StatsContext statsContext = (StatsContext) statsContextProperty;
 
-      /*
-       * Granular response metrics
-       * 1) jersey.server.response.api.v2.alert.summary.GET.200.cumulative.count (Counter)
-       * 2) jersey.server.response.api.v2.alert.summary.GET.200.aggregated_per_shard.count (DeltaCounter)
-       * 3) jersey.server.response.api.v2.alert.summary.GET.200.aggregated_per_service.count (DeltaCounter)
-       * 4) jersey.server.response.api.v2.alert.summary.GET.200.aggregated_per_cluster.count (DeltaCounter)
-       * 5) jersey.server.response.api.v2.alert.summary.GET.200.aggregated_per_application.count (DeltaCounter)
-       * 6) jersey.server.response.api.v2.alert.summary.GET.errors (Counter)
-       */
-      wfJerseyReporter.incrementCounter(new MetricName(responseMetricKey +
-          ".cumulative", completeTagsMap));
-      if (applicationTags.getShard() != null) {
-        wfJerseyReporter.incrementDeltaCounter(new MetricName(responseMetricKey +
-            ".aggregated_per_shard", aggregatedPerShardMap));
-      }
-      wfJerseyReporter.incrementDeltaCounter(new MetricName(responseMetricKey +
-          ".aggregated_per_service", aggregatedPerServiceMap));
-      if (applicationTags.getCluster() != null) {
-        wfJerseyReporter.incrementDeltaCounter(new MetricName(responseMetricKey +
-            ".aggregated_per_cluster", aggregatedPerClusterMap));
-      }
-      wfJerseyReporter.incrementDeltaCounter(new MetricName(responseMetricKey +
-          ".aggregated_per_application", aggregatedPerApplicationMap));
+        /* Gauges - update api inflight and total inflight gauges
+         * 1) jersey.server.request.api.v2.alert.summary.GET.inflight
+         * 2) jersey.server.total_requests.inflight
+         */
+        long endNanos = System.nanoTime();
+        long latencyNanos = endNanos - statsContext.getStartNanos();
+        statsContext.getApiInflight().decrement(endNanos);
+        statsContext.getTotalInflight().decrement(endNanos);
+        statsContext.releaseConcurrencyLimiter(latencyNanos);
+        // The latency ends here, the entity interceptor measures how long the entity streams.
+        Object entity = containerResponseContext.getEntity();
+        if (isStreamed(entity)) {
+          containerRequestContext.setProperty(STREAMED_RESPONSE_PROPERTY_NAME,
+              new StreamedResponse(status, statsContext.getStartNanos(),
+                  () -> getRouteInflightTracker(route, route.getStreamingInflight()),
+                  () -> getInflightTracker(totalStreamsInflightName),
+                  entity instanceof ChunkedOutput));
+        }
 
-      /*
-       * Overall error response metrics
-       * 1) jersey.server.response.errors.aggregated_per_source (Counter)
-       * 2) jersey.server.response.errors.aggregated_per_shard (DeltaCounter)
-       * 3) jersey.server.response.errors.aggregated_per_service (DeltaCounter)
-       * 4) jersey.server.response.errors.aggregated_per_cluster (DeltaCounter)
-       * 5) jersey.server.response.errors.aggregated_per_application (DeltaCounter)
-       */
-      if (isErrorStatusCode(containerResponseContext)) {
-        wfJerseyReporter.incrementCounter(new MetricName(responseMetricKeyWithoutStatus + ".errors",
-            completeTagsMap));
-        wfJerseyReporter.incrementCounter(new MetricName("response.errors",
-            completeTagsMap));
-        wfJerseyReporter.incrementCounter(new MetricName(
-            "response.errors.aggregated_per_source", overallAggregatedPerSourceMap));
-        if (applicationTags.getShard() != null) {
-          wfJerseyReporter.incrementDeltaCounter(new MetricName(
-              "response.errors.aggregated_per_shard", overallAggregatedPerShardMap));
+        // Thread CPU time is only meaningful if the response is processed on the thread that
+        // processed the request, which is not the case for resumed asynchronous requests.
+        if (statsContext.getStartCpuNanos() >= 0 &&
+            statsContext.getRequestThread() == Thread.currentThread()) {
+          long endCpuNanos = threadMXBean.getCurrentThreadCpuTime();
+          if (endCpuNanos >= 0) {
+            cpuNanos = endCpuNanos - statsContext.getStartCpuNanos();
+          }
         }
-        wfJerseyReporter.incrementDeltaCounter(new MetricName(
-            "response.errors.aggregated_per_service", overallAggregatedPerServiceMap));
-        if (applicationTags.getCluster() != null) {
-          wfJerseyReporter.incrementDeltaCounter(new MetricName(
-              "response.errors.aggregated_per_cluster", overallAggregatedPerClusterMap));
+        if (statsContext.getStartAllocatedBytes() >= 0 &&
+            statsContext.getRequestThread() == Thread.currentThread()) {
+          long endAllocatedBytes =
+              allocationMXBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+          if (endAllocatedBytes >= 0) {
+            allocatedBytes = endAllocatedBytes - statsContext.getStartAllocatedBytes();
+          }
         }
-        wfJerseyReporter.incrementDeltaCounter(new MetricName(
-            "response.errors.aggregated_per_application", overallAggregatedPerApplicationMap));
+        // Same for the blocked and waited time, which are only measured in milliseconds.
+        ThreadInfo startThreadInfo = statsContext.getStartThreadInfo();
+        if (startThreadInfo != null && statsContext.getRequestThread() == Thread.currentThread()) {
+          ThreadInfo endThreadInfo = currentThreadInfo();
+          if (endThreadInfo != null && startThreadInfo.getBlockedTime() >= 0 &&
+              endThreadInfo.getBlockedTime() >= 0) {
+            blockedNanos = TimeUnit.MILLISECONDS.toNanos(
+                endThreadInfo.getBlockedTime() - startThreadInfo.getBlockedTime());
+            waitedNanos = TimeUnit.MILLISECONDS.toNanos(
+                endThreadInfo.getWaitedTime() - startThreadInfo.getWaitedTime());
+          }
+        }
+        apiLatency = TimeUnit.NANOSECONDS.toMillis(latencyNanos);
+      }
+
+      // The tracer derives the RED metrics of the requests from their spans, sampled or not.
+      boolean redFromTracer = traced && redMetricsMode == RedMetricsMode.TRACER;
+      if (recordingBuffer == null) {
+        recordResponse(status, error, redFromTracer, apiLatency, cpuNanos, blockedNanos,
+            waitedNanos, allocatedBytes);
+      } else if (!recordingBuffer.publish(status, error, redFromTracer, apiLatency, cpuNanos,
+          blockedNanos, waitedNanos, allocatedBytes)) {
+        recordingDropped.inc();
       }
+    }
+  }
 
+  /**
+   * Forward or discard the spans held for the request by the tail span retention, once its
+   * server span is finished.
+   */
+  private void completeRetention(ContainerRequestContext containerRequestContext,
+                                 ContainerResponseContext containerResponseContext) {
+    if (tailSpanRetention == null || !(containerRequestContext instanceof ContainerRequest)) {
+      return;
+    }
+    Object statsContextProperty = containerRequestContext.getProperty(
+        STATS_CONTEXT_PROPERTY_NAME);
+    if (statsContextProperty instanceof StatsContext) {
+      StatsContext statsContext = (StatsContext) statsContextProperty;
+      RouteDescriptor route = routes.get((ContainerRequest) containerRequestContext);
+      SpanContext retained = statsContext.getRetainedSpanContext();
+      if (retained != null && route != null) {
+        tailSpanRetention.complete(retained.toTraceId(), retained.toSpanId(),
+            route.getOperationName(), System.nanoTime() - statsContext.getStartNanos(),
+            isErrorStatusCode(containerResponseContext));
+      }
+    }
+  }
+
+  /**
+   * Record the response metrics of a request, either on the request thread or on the recording
+   * thread.
+   *
+   * @param status        metric names for the route and response status.
+   * @param error         true if the response status is an error.
+   * @param redFromTracer true if the tracer reports the RED metrics of the request.
+   * @param apiLatency    latency in milliseconds, negative if unknown.
+   * @param cpuNanos      CPU time in nanoseconds, negative if not measured.
+   * @param blockedNanos  time blocked on monitors in nanoseconds, negative if not measured.
+   * @param waitedNanos   time waiting in nanoseconds, negative if not measured.
+   * @param allocatedBytes heap allocated in bytes, negative if not measured.
+   */
+  private void recordResponse(RouteDescriptor.StatusDescriptor status, boolean error,
+                              boolean redFromTracer, long apiLatency, long cpuNanos,
+                              long blockedNanos, long waitedNanos, long allocatedBytes) {
+    // The tracer counts the requests and errors it derives the RED metrics from.
+    if (!redFromTracer) {
+      recordCounts(status, error);
+    }
+
+    /*
+     * WavefrontHistograms
+     * 1) jersey.server.response.api.v2.alert.summary.GET.200.latency
+     * 2) jersey.server.response.api.v2.alert.summary.GET.200.cpu_ns
+     * 3) jersey.server.response.api.v2.alert.summary.GET.200.blocked_ns
+     * 4) jersey.server.response.api.v2.alert.summary.GET.200.waited_ns
+     * 5) jersey.server.response.api.v2.alert.summary.GET.200.allocated_bytes
+     */
+    if (cpuNanos >= 0) {
+      status.getCpuNs().update(cpuNanos, cpuSampleRate);
+    }
+    if (allocatedBytes >= 0) {
+      status.getAllocatedBytes().update(allocatedBytes, allocationSampleRate);
+    }
+    if (blockedNanos >= 0) {
+      status.getBlockedNs().update(blockedNanos);
+      status.getWaitedNs().update(waitedNanos);
+    }
+    if (apiLatency >= 0 && !redFromTracer) {
+      status.getLatency().update(apiLatency);
       /*
-       * Overall response metrics
-       * 1) jersey.server.response.completed.aggregated_per_source.count (Counter)
-       * 2) jersey.server.response.completed.aggregated_per_shard.count (DeltaCounter)
-       * 3) jersey.server.response.completed.aggregated_per_service.count (DeltaCounter)
-       * 3) jersey.server.response.completed.aggregated_per_cluster.count (DeltaCounter)
-       * 5) jersey.server.response.completed.aggregated_per_application.count (DeltaCounter)
+       * total time spent counter: jersey.server.response.api.v2.alert.summary.GET.200.total_time
        */
-      wfJerseyReporter.incrementCounter(new MetricName("response.completed.aggregated_per_source",
-          overallAggregatedPerSourceMap));
-      if (applicationTags.getShard() != null) {
-        wfJerseyReporter.incrementDeltaCounter(new MetricName("response" +
-            ".completed.aggregated_per_shard", overallAggregatedPerShardMap));
+      status.getTotalTime().inc(apiLatency);
+    }
+  }
+
+  /**
+   * Count a response per route and status, and overall.
+   *
+   * @param status metric names for the route and response status.
+   * @param error  true if the response status is an error.
+   */
+  private void recordCounts(RouteDescriptor.StatusDescriptor status, boolean error) {
+    RouteDescriptor route = status.getRoute();
+
+    /*
+     * Granular response metrics
+     * 1) jersey.server.response.api.v2.alert.summary.GET.200.cumulative.count (Counter)
+     * 2) jersey.server.response.api.v2.alert.summary.GET.200.aggregated_per_shard.count (DeltaCounter)
+     * 3) jersey.server.response.api.v2.alert.summary.GET.200.aggregated_per_service.count (DeltaCounter)
+     * 4) jersey.server.response.api.v2.alert.summary.GET.200.aggregated_per_cluster.count (DeltaCounter)
+     * 5) jersey.server.response.api.v2.alert.summary.GET.200.aggregated_per_application.count (DeltaCounter)
+     * 6) jersey.server.response.api.v2.alert.summary.GET.errors (Counter)
+     */
+    status.getCumulative().inc();
+    if (status.getAggregatedPerShard() != null) {
+      status.getAggregatedPerShard().inc();
+    }
+    status.getAggregatedPerService().inc();
+    if (status.getAggregatedPerCluster() != null) {
+      status.getAggregatedPerCluster().inc();
+    }
+    status.getAggregatedPerApplication().inc();
+
+    /*
+     * Overall error response metrics
+     * 1) jersey.server.response.errors.aggregated_per_source (Counter)
+     * 2) jersey.server.response.errors.aggregated_per_shard (DeltaCounter)
+     * 3) jersey.server.response.errors.aggregated_per_service (DeltaCounter)
+     * 4) jersey.server.response.errors.aggregated_per_cluster (DeltaCounter)
+     * 5) jersey.server.response.errors.aggregated_per_application (DeltaCounter)
+     */
+    if (error) {
+      route.getErrors().inc();
+      route.getOverallErrors().inc();
+      errorsPerSource.inc();
+      if (errorsPerShard != null) {
+        errorsPerShard.inc();
       }
-      wfJerseyReporter.incrementDeltaCounter(new MetricName("response" +
-          ".completed.aggregated_per_service", overallAggregatedPerServiceMap));
-      if (applicationTags.getCluster() != null) {
-        wfJerseyReporter.incrementDeltaCounter(new MetricName("response" +
-            ".completed.aggregated_per_cluster", overallAggregatedPerClusterMap));
+      errorsPerService.inc();
+      if (errorsPerCluster != null) {
+        errorsPerCluster.inc();
       }
-      wfJerseyReporter.incrementDeltaCounter(new MetricName("response" +
-          ".completed.aggregated_per_application", overallAggregatedPerApplicationMap));
+      errorsPerApplication.inc();
+    }
 
-      StatsContext statsContext = statsContextThreadLocal.get();
-      if (statsContext != null) {
+    /*
+     * Overall response metrics
+     * 1) jersey.server.response.completed.aggregated_per_source.count (Counter)
+     * 2) jersey.server.response.completed.aggregated_per_shard.count (DeltaCounter)
+     * 3) jersey.server.response.completed.aggregated_per_service.count (DeltaCounter)
+     * 3) jersey.server.response.completed.aggregated_per_cluster.count (DeltaCounter)
+     * 5) jersey.server.response.completed.aggregated_per_application.count (DeltaCounter)
+     */
+    completedPerSource.inc();
+    if (completedPerShard != null) {
+      completedPerShard.inc();
+    }
+    completedPerService.inc();
+    if (completedPerCluster != null) {
+      completedPerCluster.inc();
+    }
+    completedPerApplication.inc();
+  }
 
-        /* Gauges - update api inflight and total inflight gauges
-         * 1) jersey.server.request.api.v2.alert.summary.GET.inflight
-         * 2) jersey.server.total_requests.inflight
-         */
-        if (statsContext.getApiInflight() != null) {
-          statsContext.getApiInflight().decrementAndGet();
+  /**
+   * Turn on thread contention monitoring, which is off by default in most JVMs.
+   *
+   * @return false if thread contention monitoring is not available.
+   */
+  private boolean enableThreadContentionMonitoring() {
+    try {
+      if (threadMXBean.isThreadContentionMonitoringSupported()) {
+        if (!threadMXBean.isThreadContentionMonitoringEnabled()) {
+          threadMXBean.setThreadContentionMonitoringEnabled(true);
         }
+        return true;
+      }
+    } catch (UnsupportedOperationException | SecurityException e) {
+      // fall through
+    }
+    logger.log(Level.WARNING, "Thread contention monitoring is not supported by this JVM, " +
+        "blocked_ns and waited_ns histograms will not be reported");
+    return false;
+  }
 
-        if (statsContext.getTotalInflight() != null) {
-          statsContext.getTotalInflight().decrementAndGet();
-        }
+  /**
+   * @return thread info, without stack trace, of the current thread or null if not available.
+   */
+  @Nullable
+  private ThreadInfo currentThreadInfo() {
+    return threadMXBean.getThreadInfo(Thread.currentThread().getId());
+  }
 
-        /*
-         * WavefrontHistograms
-         * 1) jersey.server.response.api.v2.alert.summary.GET.200.latency
-         * 2) jersey.server.response.api.v2.alert.summary.GET.200.cpu_ns
-         */
-        long cpuNanos = ManagementFactory.getThreadMXBean().getCurrentThreadCpuTime() -
-            statsContext.getStartCpuNanos();
-        wfJerseyReporter.updateHistogram(new MetricName(responseMetricKey + ".cpu_ns",
-            completeTagsMap), cpuNanos);
-
-        long apiLatency = System.currentTimeMillis() - statsContext.getStartTime();
-        wfJerseyReporter.updateHistogram(new MetricName(responseMetricKey + ".latency",
-            completeTagsMap), apiLatency);
-        /*
-         * total time spent counter: jersey.server.response.api.v2.alert.summary.GET.200.total_time
-         */
-        wfJerseyReporter.incrementCounter(new MetricName(responseMetricKey + ".total_time",
-            completeTagsMap), apiLatency);
+  /**
+   * @return the ThreadMXBean measuring the heap allocated per thread, or null if this JVM does
+   * not support it.
+   */
+  @Nullable
+  private com.sun.management.ThreadMXBean allocationMXBean() {
+    try {
+      if (threadMXBean instanceof com.sun.management.ThreadMXBean) {
+        com.sun.management.ThreadMXBean mxBean = (com.sun.management.ThreadMXBean) threadMXBean;
+        if (mxBean.isThreadAllocatedMemorySupported() &&
+            mxBean.isThreadAllocatedMemoryEnabled()) {
+          return mxBean;
+        }
       }
+    } catch (UnsupportedOperationException e) {
+      // fall through
     }
+    logger.log(Level.WARNING, "Thread allocated memory is not supported by this JVM, " +
+        "allocated_bytes histograms will not be reported");
+    return null;
   }
 
-  private Pair<String, String> getClassAndMethodName(ExtendedUriInfo uriInfo) {
-    String className = "unknown";
-    String methodName = "unknown";
+  /**
+   * Pre-register the metrics of the resource methods of the given resource and its children.
+   * Sub-resources returned by locators are only known at runtime and are not registered.
+   */
+  private void preRegister(Resource resource) {
+    for (ResourceMethod resourceMethod : resource.getResourceMethods()) {
+      RouteDescriptor route = routes.preRegister(resourceMethod);
+      if (route == null) {
+        continue;
+      }
+      // Evicting the route would not unregister its series, only lose the registered gauge.
+      route.pin();
+      getInflightTracker(route.getInflight());
+      for (int statusCode : preRegisteredStatuses) {
+        preRegister(route.forStatus(statusCode), statusCode >= 400 && statusCode <= 599);
+      }
+    }
+    for (Resource child : resource.getChildResources()) {
+      preRegister(child);
+    }
+  }
 
-    if (uriInfo != null) {
-      Class clazz = ((RoutingContext) uriInfo).getResourceClass();
-      if (clazz != null) {
-        className = clazz.getCanonicalName();
+  /**
+   * Pre-register the series {@link #recordResponse} updates for the given route and status.
+   */
+  private void preRegister(RouteDescriptor.StatusDescriptor status, boolean error) {
+    // The tracer reports the RED metrics of every request, see processResponse.
+    if (tracer == null || redMetricsMode != RedMetricsMode.TRACER) {
+      status.getCumulative().preRegister();
+      if (status.getAggregatedPerShard() != null) {
+        status.getAggregatedPerShard().preRegister();
+      }
+      status.getAggregatedPerService().preRegister();
+      if (status.getAggregatedPerCluster() != null) {
+        status.getAggregatedPerCluster().preRegister();
       }
-      Method method = ((RoutingContext) uriInfo).getResourceMethod();
-      if (method != null) {
-        methodName = method.getName();
+      status.getAggregatedPerApplication().preRegister();
+      if (error) {
+        status.getRoute().getErrors().preRegister();
+        status.getRoute().getOverallErrors().preRegister();
       }
+      status.getLatency().preRegister();
+      status.getTotalTime().preRegister();
+    }
+    if (cpuSampleRate > 0) {
+      status.getCpuNs().preRegister();
+    }
+    if (threadContention) {
+      status.getBlockedNs().preRegister();
+      status.getWaitedNs().preRegister();
+    }
+    if (allocationSampleRate > 0) {
+      status.getAllocatedBytes().preRegister();
     }
-    return Pair.of(className, methodName);
   }
 
-  private AtomicInteger getGaugeValue(MetricName metricName) {
-    return gauges.computeIfAbsent(metricName, key -> {
-      final AtomicInteger toReturn = new AtomicInteger();
-      wfJerseyReporter.registerGauge(key, toReturn);
-      return toReturn;
-    });
+  /**
+   * Release the inflight trackers and the concurrency limiter of an idle route, unless it has
+   * requests in flight. They have no gauges, see {@link #getRouteInflightTracker}.
+   *
+   * @return true if the route can be evicted.
+   */
+  private boolean evictRoute(RouteDescriptor route) {
+    InflightTracker apiInflight = evictableInflight.get(route.getInflight());
+    InflightTracker apiStreams = evictableInflight.get(route.getStreamingInflight());
+    if ((apiInflight != null && apiInflight.getCurrent() > 0) ||
+        (apiStreams != null && apiStreams.getCurrent() > 0)) {
+      return false;
+    }
+    if (apiInflight != null) {
+      evictableInflight.remove(route.getInflight(), apiInflight);
+    }
+    if (apiStreams != null) {
+      evictableInflight.remove(route.getStreamingInflight(), apiStreams);
+    }
+    routeConcurrencyLimiters.remove(route.getInflight());
+    return true;
+  }
+
+  /**
+   * @return true if the route can be evicted by the idle route TTL.
+   */
+  private boolean isEvictable(RouteDescriptor route) {
+    return idleRouteTtlNanos > 0 && !route.isPinned();
+  }
+
+  /**
+   * @return the concurrency limiter the request of the given route is subject to, or null if
+   * no concurrency limit is configured.
+   */
+  @Nullable
+  private ConcurrencyLimiter concurrencyLimiter(RouteDescriptor route) {
+    if (concurrencyLimitPolicy == null || globalConcurrencyLimiter != null) {
+      return globalConcurrencyLimiter;
+    }
+    return routeConcurrencyLimiters.computeIfAbsent(route.getInflight(),
+        key -> newConcurrencyLimiter(key, !isEvictable(route)));
   }
 
-  private Map<String, String> getCompleteTagsMap(String finalClassName, String finalMethodName,
-                                                 String spanOperationName) {
-    return new HashMap<String, String>() {{
-      put(CLUSTER_TAG_KEY, applicationTags.getCluster() == null ? NULL_TAG_VAL :
-          applicationTags.getCluster());
-      put(SERVICE_TAG_KEY, applicationTags.getService());
-      put(SHARD_TAG_KEY,
-          applicationTags.getShard() == null ? NULL_TAG_VAL : applicationTags.getShard());
-      put("jersey.resource.class", finalClassName);
-      put("jersey.resource.method", finalMethodName);
-      put("operationName", spanOperationName);
-    }};
+  /**
+   * Builds a concurrency limiter and registers its metrics next to the given inflight gauge:
+   * 1) jersey.server.request.api.v2.alert.summary.GET.concurrency_limit (Gauge)
+   * 2) jersey.server.request.api.v2.alert.summary.GET.concurrency_limit.rejected (Counter)
+   *
+   * @param withGauge false to leave the gauge out, for routes that can be evicted.
+   */
+  private ConcurrencyLimiter newConcurrencyLimiter(MetricName inflightName, boolean withGauge) {
+    String prefix = inflightName.getKey().substring(0,
+        inflightName.getKey().length() - "inflight".length());
+    ConcurrencyLimiter limiter = new ConcurrencyLimiter(concurrencyLimitPolicy,
+        LazyCounter.counter(wfJerseyReporter, new MetricName(
+            prefix + "concurrency_limit.rejected", inflightName.getTags())));
+    if (withGauge) {
+      wfJerseyReporter.registerGauge(new MetricName(prefix + "concurrency_limit",
+          inflightName.getTags()), limiter.getLimit());
+    }
+    return limiter;
+  }
+
+  /**
+   * Returns the inflight tracker for the given inflight gauge name, registering its gauges on
+   * first use. With a WavefrontJerseyReporter, the tracker is timed and also reports:
+   * 1) jersey.server.request.api.v2.alert.summary.GET.inflight.peak
+   * 2) jersey.server.request.api.v2.alert.summary.GET.concurrency (time weighted mean)
+   */
+  private InflightTracker getInflightTracker(MetricName metricName) {
+    return gauges.computeIfAbsent(metricName, key -> {
+      if (!(wfJerseyReporter instanceof WavefrontJerseyReporter)) {
+        AtomicInteger value = new AtomicInteger();
+        wfJerseyReporter.registerGauge(key, value);
+        return InflightTracker.exact(value);
+      }
+      WavefrontJerseyReporter reporter = (WavefrontJerseyReporter) wfJerseyReporter;
+      InflightTracker tracker = InflightTracker.timed();
+      String prefix = key.getKey().substring(0, key.getKey().length() - "inflight".length());
+      reporter.registerGauge(key, () -> (double) tracker.getCurrent());
+      reporter.registerGauge(new MetricName(key.getKey() + ".peak", key.getTags()),
+          () -> (double) tracker.getAndResetPeak());
+      reporter.registerGauge(new MetricName(prefix + "concurrency", key.getTags()),
+          tracker::getAndResetMeanConcurrency);
+      return tracker;
+    });
   }
 
-  private String getSpanOperationName(String finalClassName, String finalMethodName) {
-    return finalClassName.substring(finalClassName.lastIndexOf('.') + 1) + "." + finalMethodName;
+  /**
+   * Returns the inflight tracker of a route for the given inflight gauge name. Routes that can
+   * be evicted get a tracker without gauges, since the reporter can't unregister them.
+   */
+  private InflightTracker getRouteInflightTracker(RouteDescriptor route, MetricName metricName) {
+    if (!isEvictable(route)) {
+      return getInflightTracker(metricName);
+    }
+    return evictableInflight.computeIfAbsent(metricName,
+        key -> InflightTracker.exact(new AtomicInteger()));
   }
 
   private SpanContext parentSpanContext(ContainerRequestContext requestContext) {
     Span activeSpan = tracer.activeSpan();
     if (activeSpan != null) {
       return activeSpan.context();
+    } else if (propagationHeaders != null) {
+      return tracer.extract(Format.Builtin.HTTP_HEADERS,
+          propagationHeaders.extractTextMap(requestContext.getHeaders()));
     } else {
       return tracer.extract(
               Format.Builtin.HTTP_HEADERS,
@@ -494,29 +1256,71 @@ public class WavefrontJerseyFilter implements ContainerRequestFilter, ContainerR
     }
   }
 
-  private void decorateRequest(ContainerRequestContext requestContext, Span span) {
-    Tags.COMPONENT.set(span, JERSEY_SERVER_COMPONENT);
-    Tags.HTTP_METHOD.set(span, requestContext.getMethod());
-    String urlStr = null;
-    URL url;
-    try {
-      url = requestContext.getUriInfo().getRequestUri().toURL();
-      urlStr = url.toString();
-    } catch (MalformedURLException e) {
-      // ignoring returning null
+  /**
+   * @param parentSpanContext parent span context of the request, null if it has none.
+   * @return sampling decision of the parent, null if there is no parent or it carries no
+   * decision. Parents of other tracers than the WavefrontTracer are assumed to be sampled, since
+   * their decision can't be read.
+   */
+  @Nullable
+  private static Boolean parentSamplingDecision(@Nullable SpanContext parentSpanContext) {
+    if (parentSpanContext == null) {
+      return null;
+    } else if (parentSpanContext instanceof WavefrontSpanContext) {
+      return ((WavefrontSpanContext) parentSpanContext).getSamplingDecision();
+    }
+    return Boolean.TRUE;
+  }
+
+  private void decorateRequest(ContainerRequestContext requestContext, RouteDescriptor route,
+                               Span span) {
+    // The component tag is part of the span template.
+    if (spanDecorationPolicy.isHttpMethod()) {
+      Tags.HTTP_METHOD.set(span, requestContext.getMethod());
     }
+    String urlStr = url(requestContext.getUriInfo(), route);
     if (urlStr != null) {
       Tags.HTTP_URL.set(span, urlStr);
     }
   }
 
+  /**
+   * @return the http.url tag value as per the decoration policy, null if not tagged.
+   */
+  @Nullable
+  private String url(UriInfo uriInfo, RouteDescriptor route) {
+    switch (spanDecorationPolicy.getUrlMode()) {
+      case FULL:
+        // The request URI is absolute, so its string form is the URL: no need to go through
+        // java.net.URL.
+        URI requestUri = uriInfo.getRequestUri();
+        return requestUri.isAbsolute() ? requestUri.toString() : null;
+      case WITHOUT_QUERY:
+        return uriInfo.getAbsolutePath().toString();
+      case TEMPLATE:
+        return uriInfo.getBaseUri().toString() + route.getMatchingPath();
+      default:
+        return null;
+    }
+  }
+
   private void decorateResponse(ContainerResponseContext responseContext, Span span) {
-    Tags.HTTP_STATUS.set(span, responseContext.getStatus());
+    if (spanDecorationPolicy.isHttpStatus()) {
+      Tags.HTTP_STATUS.set(span, responseContext.getStatus());
+    }
     if (isErrorStatusCode(responseContext)) {
       Tags.ERROR.set(span, true);
     }
   }
 
+  /**
+   * @return true if the entity is written after the response filters, over a possibly long time.
+   */
+  private boolean isStreamed(@Nullable Object entity) {
+    return entity instanceof StreamingOutput || entity instanceof ChunkedOutput ||
+        entity instanceof InputStream || entity instanceof File;
+  }
+
   private boolean isErrorStatusCode(ContainerResponseContext containerResponseContext) {
     int statusCode = containerResponseContext.getStatus();
     return statusCode >= 400 && statusCode <= 599;
@@ -575,36 +1379,92 @@ public class WavefrontJerseyFilter implements ContainerRequestFilter, ContainerR
     }
   }
 
-  private class StatsContext {
-    private final long startTime;
+  private static final class StatsContext {
+    private final long startNanos;
     private final long startCpuNanos;
+    private final Thread requestThread;
+    private final InflightTracker apiInflight;
+    private final InflightTracker totalInflight;
     @Nullable
-    private final AtomicInteger apiInflight;
+    private final SpanContext retainedSpanContext;
+    // Released by the response filter, or by the FINISHED event if the filter didn't run.
+    private final AtomicReference<ConcurrencyLimiter> concurrencyLimiter;
     @Nullable
-    private final AtomicInteger totalInflight;
-
-    StatsContext(long startTime, long startCpuNanos, AtomicInteger apiInflight,
-                 AtomicInteger totalInflight) {
-      this.startTime = startTime;
+    private final ThreadInfo startThreadInfo;
+    private final long startAllocatedBytes;
+
+    StatsContext(long startNanos, long startCpuNanos, Thread requestThread,
+                 InflightTracker apiInflight, InflightTracker totalInflight,
+                 @Nullable SpanContext retainedSpanContext,
+                 @Nullable ConcurrencyLimiter concurrencyLimiter,
+                 @Nullable ThreadInfo startThreadInfo, long startAllocatedBytes) {
+      this.startNanos = startNanos;
       this.startCpuNanos = startCpuNanos;
+      this.requestThread = requestThread;
       this.apiInflight = apiInflight;
       this.totalInflight = totalInflight;
+      this.retainedSpanContext = retainedSpanContext;
+      this.concurrencyLimiter = new AtomicReference<>(concurrencyLimiter);
+      this.startThreadInfo = startThreadInfo;
+      this.startAllocatedBytes = startAllocatedBytes;
     }
 
-    public long getStartTime() {
-      return startTime;
+    public long getStartNanos() {
+      return startNanos;
     }
 
     public long getStartCpuNanos() {
       return startCpuNanos;
     }
 
-    public AtomicInteger getApiInflight() {
+    public Thread getRequestThread() {
+      return requestThread;
+    }
+
+    public InflightTracker getApiInflight() {
       return apiInflight;
     }
 
-    public AtomicInteger getTotalInflight() {
+    public InflightTracker getTotalInflight() {
       return totalInflight;
     }
+
+    /**
+     * @return span context of the server span if the spans of the request are held by the
+     * tail span retention.
+     */
+    @Nullable
+    public SpanContext getRetainedSpanContext() {
+      return retainedSpanContext;
+    }
+
+    /**
+     * Releases the concurrency limiter the request is subject to, only the first call does.
+     *
+     * @param latencyNanos latency of the request, 0 if it is not a latency sample.
+     */
+    public void releaseConcurrencyLimiter(long latencyNanos) {
+      ConcurrencyLimiter limiter = concurrencyLimiter.getAndSet(null);
+      if (limiter != null) {
+        limiter.release(latencyNanos);
+      }
+    }
+
+    /**
+     * @return thread info of the request thread when the request started, or null if thread
+     * contention is not measured.
+     */
+    @Nullable
+    public ThreadInfo getStartThreadInfo() {
+      return startThreadInfo;
+    }
+
+    /**
+     * @return bytes allocated by the request thread when the request started, negative if
+     * allocations are not measured.
+     */
+    public long getStartAllocatedBytes() {
+      return startAllocatedBytes;
+    }
   }
 }
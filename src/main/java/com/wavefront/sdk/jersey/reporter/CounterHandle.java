@@ -0,0 +1,20 @@
+package com.wavefront.sdk.jersey.reporter;
+
+/**
+ * A pre-resolved counter (or delta counter) that can be kept and incremented directly, without
+ * looking up the metric by name on every update.
+ */
+public interface CounterHandle {
+
+  /**
+   * Increment the counter by one.
+   */
+  void inc();
+
+  /**
+   * Increment the counter by {@code n}.
+   *
+   * @param n the amount by which the counter will be increased.
+   */
+  void inc(long n);
+}
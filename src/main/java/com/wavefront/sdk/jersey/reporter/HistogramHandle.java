@@ -0,0 +1,24 @@
+package com.wavefront.sdk.jersey.reporter;
+
+/**
+ * A pre-resolved WavefrontHistogram that can be kept and updated directly, without looking up the
+ * metric by name on every update.
+ */
+public interface HistogramHandle {
+
+  /**
+   * Add a recorded value.
+   *
+   * @param value the value to be added.
+   */
+  void update(long value);
+
+  /**
+   * Add a recorded value that stands for {@code count} identical observations, used for sampled
+   * measurements.
+   *
+   * @param value the value to be added.
+   * @param count number of observations the value stands for.
+   */
+  void update(long value, int count);
+}
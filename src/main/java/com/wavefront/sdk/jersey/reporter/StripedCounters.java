@@ -0,0 +1,87 @@
+package com.wavefront.sdk.jersey.reporter;
+
+import com.wavefront.internal_reporter_java.io.dropwizard.metrics5.Counter;
+import com.wavefront.internal_reporter_java.io.dropwizard.metrics5.MetricName;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Pre-aggregates counter and delta counter increments into striped {@link LongAdder} cells, so
+ * that threads incrementing the same hot counter don't contend on a single memory location. The
+ * cells are merged into the registered counters by {@link #flush()}, which has to run right
+ * before each report. The cells are never reset, every flush merges the difference with the sum
+ * merged by the previous flush, so that increments racing with a flush are never lost.
+ */
+final class StripedCounters {
+
+  private final Function<MetricName, ? extends Counter> newCounter;
+  private final Function<MetricName, ? extends Counter> newDeltaCounter;
+  private final ConcurrentMap<MetricName, Cell> counters = new ConcurrentHashMap<>();
+  private final ConcurrentMap<MetricName, Cell> deltaCounters = new ConcurrentHashMap<>();
+
+  /**
+   * @param newCounter      registers the counter of the given name.
+   * @param newDeltaCounter registers the delta counter of the given name.
+   */
+  StripedCounters(Function<MetricName, ? extends Counter> newCounter,
+                  Function<MetricName, ? extends Counter> newDeltaCounter) {
+    this.newCounter = newCounter;
+    this.newDeltaCounter = newDeltaCounter;
+  }
+
+  CounterHandle counter(MetricName metricName) {
+    return counters.computeIfAbsent(metricName, key -> new Cell(newCounter.apply(key)));
+  }
+
+  CounterHandle deltaCounter(MetricName metricName) {
+    return deltaCounters.computeIfAbsent(metricName,
+        key -> new Cell(newDeltaCounter.apply(key)));
+  }
+
+  /**
+   * Merge the increments recorded since the last flush into the registered counters.
+   */
+  void flush() {
+    for (Cell cell : counters.values()) {
+      cell.flush();
+    }
+    for (Cell cell : deltaCounters.values()) {
+      cell.flush();
+    }
+  }
+
+  private static final class Cell implements CounterHandle {
+    private final LongAdder total = new LongAdder();
+    private final Counter counter;
+    // Sum merged into the counter so far, guarded by this cell.
+    private long flushed;
+
+    Cell(Counter counter) {
+      this.counter = counter;
+    }
+
+    @Override
+    public void inc() {
+      total.increment();
+    }
+
+    @Override
+    public void inc(long n) {
+      total.add(n);
+    }
+
+    synchronized void flush() {
+      // Unlike sumThenReset(), this can't drop an increment that races with the flush: it is
+      // either included in the sum, or merged by the next flush.
+      long sum = total.sum();
+      long n = sum - flushed;
+      if (n != 0) {
+        counter.inc(n);
+        flushed = sum;
+      }
+    }
+  }
+}
@@ -4,20 +4,32 @@ import com.google.common.base.Preconditions;
 
 import com.wavefront.internal.reporter.SdkReporter;
 import com.wavefront.internal.reporter.WavefrontInternalReporter;
+import com.wavefront.internal_reporter_java.io.dropwizard.metrics5.Counter;
 import com.wavefront.internal_reporter_java.io.dropwizard.metrics5.MetricName;
+import com.wavefront.internal_reporter_java.io.dropwizard.metrics5.WavefrontHistogramImpl;
+import com.wavefront.sdk.common.BufferFlusher;
 import com.wavefront.sdk.common.Utils;
 import com.wavefront.sdk.common.WavefrontSender;
 import com.wavefront.sdk.common.application.ApplicationTags;
 import com.wavefront.sdk.common.application.HeartbeaterService;
 import com.wavefront.sdk.entities.metrics.WavefrontMetricSender;
 
+import java.io.IOException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.DoubleSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import javax.annotation.Nullable;
 
@@ -33,11 +45,22 @@ import static com.wavefront.sdk.jersey.Constants.JERSEY_SERVER_COMPONENT;
  * @author Sushant Dewan (sushant@wavefront.com).
  */
 public class WavefrontJerseyReporter implements SdkReporter {
+  private static final Logger logger = Logger.getLogger(
+      WavefrontJerseyReporter.class.getName());
 
   private final WavefrontInternalReporter wfReporter;
   private final WavefrontInternalReporter sdkMetricsReporter;
   private final int reportingIntervalSeconds;
   private final HeartbeaterService heartbeaterService;
+  private final WavefrontMetricSender wavefrontMetricSender;
+  // Set if counter increments are pre-aggregated and merged right before each report.
+  @Nullable
+  private final StripedCounters stripedCounters;
+  @Nullable
+  private ScheduledExecutorService reportingExecutor;
+  // Registered gauges read the latest value registered under their name.
+  private final ConcurrentMap<MetricName, AtomicReference<DoubleSupplier>> gauges =
+      new ConcurrentHashMap<>();
 
   @Deprecated
   private WavefrontJerseyReporter(WavefrontInternalReporter wfReporter,
@@ -46,7 +69,7 @@ public class WavefrontJerseyReporter implements SdkReporter {
                                   ApplicationTags applicationTags,
                                   String source) {
     this(wfReporter, reportingIntervalSeconds, wavefrontMetricSender, applicationTags, source,
-        null);
+        null, false);
   }
 
   private WavefrontJerseyReporter(WavefrontInternalReporter wfReporter,
@@ -54,35 +77,71 @@ public class WavefrontJerseyReporter implements SdkReporter {
                                   WavefrontMetricSender wavefrontMetricSender,
                                   ApplicationTags applicationTags,
                                   String source,
-                                  WavefrontInternalReporter sdkMetricsReporter) {
+                                  WavefrontInternalReporter sdkMetricsReporter,
+                                  boolean preAggregateCounters) {
     Preconditions.checkNotNull(wfReporter, "Invalid wfReporter");
     Preconditions.checkNotNull(wavefrontMetricSender, "Invalid wavefrontSender");
     Preconditions.checkNotNull(applicationTags, "Invalid ApplicationTags");
     this.wfReporter = wfReporter;
     this.reportingIntervalSeconds = reportingIntervalSeconds;
     this.sdkMetricsReporter = sdkMetricsReporter;
+    this.wavefrontMetricSender = wavefrontMetricSender;
+    this.stripedCounters = preAggregateCounters ? new StripedCounters(
+        wfReporter::newCounter, wfReporter::newDeltaCounter) : null;
     heartbeaterService = new HeartbeaterService(wavefrontMetricSender, applicationTags,
         Collections.singletonList(JERSEY_SERVER_COMPONENT), source);
   }
 
   @Override
   public void incrementCounter(MetricName metricName) {
-    wfReporter.newCounter(metricName).inc();
+    if (stripedCounters != null) {
+      stripedCounters.counter(metricName).inc();
+    } else {
+      wfReporter.newCounter(metricName).inc();
+    }
   }
 
   @Override
   public void incrementCounter(MetricName metricName, long n) {
-    wfReporter.newCounter(metricName).inc(n);
+    if (stripedCounters != null) {
+      stripedCounters.counter(metricName).inc(n);
+    } else {
+      wfReporter.newCounter(metricName).inc(n);
+    }
   }
 
   @Override
   public void incrementDeltaCounter(MetricName metricName) {
-    wfReporter.newDeltaCounter(metricName).inc();
+    if (stripedCounters != null) {
+      stripedCounters.deltaCounter(metricName).inc();
+    } else {
+      wfReporter.newDeltaCounter(metricName).inc();
+    }
   }
 
+  /**
+   * Register a gauge reporting the given value. Registering another value under the same name
+   * replaces the reported value, so that a gauge released by idle eviction can be registered
+   * again.
+   */
   @Override
   public void registerGauge(MetricName metricName, AtomicInteger value) {
-    wfReporter.newGauge(metricName, () -> (() -> (double) value.get()));
+    registerGauge(metricName, value::get);
+  }
+
+  /**
+   * Register a gauge reporting the value computed by the given supplier, which is called once
+   * per reporting interval. Registering another supplier under the same name replaces it.
+   *
+   * @param metricName name of the gauge.
+   * @param value      supplier of the gauge value.
+   */
+  public void registerGauge(MetricName metricName, DoubleSupplier value) {
+    gauges.computeIfAbsent(metricName, key -> {
+      AtomicReference<DoubleSupplier> gauge = new AtomicReference<>(value);
+      wfReporter.newGauge(key, () -> (() -> gauge.get().getAsDouble()));
+      return gauge;
+    }).set(value);
   }
 
   @Override
@@ -90,6 +149,88 @@ public class WavefrontJerseyReporter implements SdkReporter {
     wfReporter.newWavefrontHistogram(metricName).update(latencyMillis);
   }
 
+  /**
+   * Update the histogram with a value that stands for {@code count} identical observations, used
+   * for sampled measurements.
+   *
+   * @param metricName name of the histogram.
+   * @param value      observed value.
+   * @param count      number of observations the value stands for.
+   */
+  public void updateHistogram(MetricName metricName, long value, int count) {
+    update(wfReporter.newWavefrontHistogram(metricName), value, count);
+  }
+
+  /**
+   * Resolve a counter once so that it can be incremented without a registry lookup.
+   *
+   * @param metricName name of the counter.
+   * @return handle to the registered counter.
+   */
+  public CounterHandle newCounterHandle(MetricName metricName) {
+    if (stripedCounters != null) {
+      return stripedCounters.counter(metricName);
+    }
+    return counterHandle(wfReporter.newCounter(metricName));
+  }
+
+  /**
+   * Resolve a delta counter once so that it can be incremented without a registry lookup.
+   *
+   * @param metricName name of the delta counter.
+   * @return handle to the registered delta counter.
+   */
+  public CounterHandle newDeltaCounterHandle(MetricName metricName) {
+    if (stripedCounters != null) {
+      return stripedCounters.deltaCounter(metricName);
+    }
+    return counterHandle(wfReporter.newDeltaCounter(metricName));
+  }
+
+  /**
+   * Resolve a WavefrontHistogram once so that it can be updated without a registry lookup.
+   *
+   * @param metricName name of the histogram.
+   * @return handle to the registered histogram.
+   */
+  public HistogramHandle newHistogramHandle(MetricName metricName) {
+    WavefrontHistogramImpl histogram = wfReporter.newWavefrontHistogram(metricName);
+    return new HistogramHandle() {
+      @Override
+      public void update(long value) {
+        histogram.update(value);
+      }
+
+      @Override
+      public void update(long value, int count) {
+        WavefrontJerseyReporter.update(histogram, value, count);
+      }
+    };
+  }
+
+  private static CounterHandle counterHandle(Counter counter) {
+    return new CounterHandle() {
+      @Override
+      public void inc() {
+        counter.inc();
+      }
+
+      @Override
+      public void inc(long n) {
+        counter.inc(n);
+      }
+    };
+  }
+
+  private static void update(WavefrontHistogramImpl histogram, long value, int count) {
+    if (count == 1) {
+      histogram.update(value);
+    } else {
+      histogram.bulkUpdate(Collections.singletonList((double) value),
+          Collections.singletonList(count));
+    }
+  }
+
   public static class Builder {
     // Required parameters
     private final ApplicationTags applicationTags;
@@ -97,6 +238,7 @@ public class WavefrontJerseyReporter implements SdkReporter {
 
     // Optional parameters
     private int reportingIntervalSeconds = 60;
+    private boolean preAggregateCounters = false;
 
     @Nullable
     private String source;
@@ -134,6 +276,19 @@ public class WavefrontJerseyReporter implements SdkReporter {
       return this;
     }
 
+    /**
+     * Pre-aggregate counter and delta counter increments into per-thread striped cells that are
+     * merged into the reported counters right before each report. Reduces contention on hot
+     * counters on machines with many cores, the reported values are the same.
+     *
+     * @param preAggregateCounters true to pre-aggregate counter increments.
+     * @return {@code this}.
+     */
+    public Builder preAggregateCounters(boolean preAggregateCounters) {
+      this.preAggregateCounters = preAggregateCounters;
+      return this;
+    }
+
     /**
      * Build WavefrontJerseyReporter.
      *
@@ -168,24 +323,72 @@ public class WavefrontJerseyReporter implements SdkReporter {
           () -> (() -> sdkVersion));
 
       return new WavefrontJerseyReporter(wfReporter, reportingIntervalSeconds, wavefrontSender,
-              applicationTags, source, sdkMetricsReporter);
+              applicationTags, source, sdkMetricsReporter, preAggregateCounters);
     }
   }
 
   @Override
   public void start() {
-    wfReporter.start(reportingIntervalSeconds, TimeUnit.SECONDS);
+    if (stripedCounters != null) {
+      // Report from our own schedule so the striped cells are merged right before each report.
+      reportingExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "wavefront-jersey-reporter");
+        thread.setDaemon(true);
+        return thread;
+      });
+      reportingExecutor.scheduleAtFixedRate(this::flushAndReport, reportingIntervalSeconds,
+          reportingIntervalSeconds, TimeUnit.SECONDS);
+    } else {
+      wfReporter.start(reportingIntervalSeconds, TimeUnit.SECONDS);
+    }
     if (sdkMetricsReporter != null) {
       sdkMetricsReporter.start(1, TimeUnit.MINUTES);
     }
   }
 
+  private void flushAndReport() {
+    try {
+      stripedCounters.flush();
+      wfReporter.report();
+    } catch (Throwable t) {
+      logger.log(Level.WARNING, "Unable to report Jersey metrics to Wavefront", t);
+    }
+  }
+
   @Override
   public void stop() {
     heartbeaterService.close();
-    wfReporter.stop();
+    if (reportingExecutor != null) {
+      reportingExecutor.shutdown();
+      try {
+        // A scheduled report in progress completes before the final one, a report should not
+        // take longer than the interval.
+        if (!reportingExecutor.awaitTermination(reportingIntervalSeconds, TimeUnit.SECONDS)) {
+          logger.log(Level.WARNING, "Jersey metrics report still running after " +
+              reportingIntervalSeconds + " seconds, reporting anyway");
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      // Report whatever was recorded since the last scheduled report. The wfReporter was never
+      // started in this mode, so instead of stopping it, flush the sender it reported to.
+      flushAndReport();
+      flushSender();
+    } else {
+      wfReporter.stop();
+    }
     if (sdkMetricsReporter != null) {
       sdkMetricsReporter.stop();
     }
   }
+
+  private void flushSender() {
+    if (wavefrontMetricSender instanceof BufferFlusher) {
+      try {
+        ((BufferFlusher) wavefrontMetricSender).flush();
+      } catch (IOException e) {
+        logger.log(Level.WARNING, "Unable to flush Jersey metrics to Wavefront", e);
+      }
+    }
+  }
 }
@@ -0,0 +1,77 @@
+package com.wavefront.sdk.jersey;
+
+import com.wavefront.internal_reporter_java.io.dropwizard.metrics5.MetricName;
+import com.wavefront.sdk.jersey.app.SampleApp;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test class for the metrics of requests rejected by a {@link ConcurrencyLimitPolicy}.
+ */
+public class ConcurrencyLimitPolicyTest {
+
+  private final SampleApp sampleApp = new SampleApp(wfJerseyFilterBuilder ->
+      wfJerseyFilterBuilder.concurrencyLimitPolicy(new ConcurrencyLimitPolicy.Builder().
+          initialLimit(1).maxLimit(1).perRoute(true).build()));
+  private final ExecutorService executor = Executors.newFixedThreadPool(4);
+
+  @Before
+  public void setup() throws Exception {
+    sampleApp.run("server");
+  }
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void testRejectedRequests() throws Exception {
+    // The asynchronous requests hold the only permit for 50ms, so concurrent ones are rejected
+    int ok = 0;
+    int rejected = 0;
+    for (int attempt = 0; attempt < 20 && rejected == 0; attempt++) {
+      List<Future<Integer>> responses = new ArrayList<>();
+      for (int i = 0; i < 4; i++) {
+        responses.add(executor.submit(() -> sampleApp.invokeGetRequest("sample/foo/async")));
+      }
+      for (Future<Integer> response : responses) {
+        if (response.get() == 503) {
+          rejected++;
+        } else {
+          assertEquals(200, response.get().intValue());
+          ok++;
+        }
+      }
+    }
+    assertTrue(rejected > 0);
+    Map<String, String> tags = SampleApp.routeTags("asyncGet");
+
+    // Rejected requests are only counted as such, not as responses or errors of the route
+    assertEquals(rejected, sampleApp.reportedValue(new MetricName(
+        "request.sample.foo.async.GET.concurrency_limit.rejected", tags)));
+    assertFalse(sampleApp.isReported(new MetricName(
+        "response.sample.foo.async.GET.503.cumulative", tags)));
+    assertFalse(sampleApp.isReported(new MetricName(
+        "response.sample.foo.async.GET.errors", tags)));
+    assertFalse(sampleApp.isReported(new MetricName(
+        "response.errors.aggregated_per_source", SampleApp.sourceTags())));
+    assertEquals(ok, sampleApp.reportedValue(new MetricName(
+        "response.sample.foo.async.GET.200.cumulative", tags)));
+    assertEquals(ok, sampleApp.reportedValue(new MetricName(
+        "response.completed.aggregated_per_source", SampleApp.sourceTags())));
+  }
+}
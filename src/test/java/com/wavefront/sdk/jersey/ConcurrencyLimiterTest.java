@@ -0,0 +1,83 @@
+package com.wavefront.sdk.jersey;
+
+import com.wavefront.internal_reporter_java.io.dropwizard.metrics5.MetricName;
+
+import org.junit.Test;
+
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test class for the limit adjustments of {@link ConcurrencyLimiter}.
+ */
+public class ConcurrencyLimiterTest {
+
+  private static final long MIN_LATENCY_NANOS = 1_000_000;
+
+  @Test
+  public void testLimitIsEnforced() {
+    ConcurrencyLimiter limiter = limiter(2, 1, 10);
+    assertTrue(limiter.tryAcquire());
+    assertTrue(limiter.tryAcquire());
+    assertFalse(limiter.tryAcquire());
+    limiter.release(0);
+    assertTrue(limiter.tryAcquire());
+    assertEquals(2, limiter.getLimit().get());
+  }
+
+  @Test
+  public void testLimitIncreasesWhileNotQueuing() {
+    ConcurrencyLimiter limiter = limiter(10, 1, 100);
+    acquire(limiter, 10);
+    limiter.release(MIN_LATENCY_NANOS);
+    assertEquals(11, limiter.getLimit().get());
+
+    // Low latency far below the limit says nothing about the capacity
+    for (int i = 0; i < 7; i++) {
+      limiter.release(0);
+    }
+    limiter.release(MIN_LATENCY_NANOS);
+    assertEquals(11, limiter.getLimit().get());
+  }
+
+  @Test
+  public void testLimitDecreasesWhenQueuing() {
+    ConcurrencyLimiter limiter = limiter(20, 1, 100);
+    acquire(limiter, 2);
+    limiter.release(MIN_LATENCY_NANOS);
+    assertEquals(20, limiter.getLimit().get());
+    limiter.release(MIN_LATENCY_NANOS * 10);
+    assertEquals(19, limiter.getLimit().get());
+  }
+
+  @Test
+  public void testLimitIsClampedToMinAndMax() {
+    ConcurrencyLimiter atMax = limiter(10, 1, 10);
+    acquire(atMax, 10);
+    atMax.release(MIN_LATENCY_NANOS);
+    assertEquals(10, atMax.getLimit().get());
+
+    ConcurrencyLimiter atMin = limiter(10, 10, 100);
+    acquire(atMin, 2);
+    atMin.release(MIN_LATENCY_NANOS);
+    atMin.release(MIN_LATENCY_NANOS * 10);
+    assertEquals(10, atMin.getLimit().get());
+  }
+
+  private static void acquire(ConcurrencyLimiter limiter, int permits) {
+    for (int i = 0; i < permits; i++) {
+      assertTrue(limiter.tryAcquire());
+    }
+  }
+
+  private static ConcurrencyLimiter limiter(int initialLimit, int minLimit, int maxLimit) {
+    ConcurrencyLimitPolicy policy = new ConcurrencyLimitPolicy.Builder().
+        initialLimit(initialLimit).minLimit(minLimit).maxLimit(maxLimit).build();
+    return new ConcurrencyLimiter(policy, LazyCounter.counter(
+        new RouteDescriptorCacheTest.RecordingReporter(),
+        new MetricName("request.rejected", Collections.emptyMap())));
+  }
+}
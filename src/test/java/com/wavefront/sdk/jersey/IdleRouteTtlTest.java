@@ -0,0 +1,47 @@
+package com.wavefront.sdk.jersey;
+
+import com.wavefront.internal_reporter_java.io.dropwizard.metrics5.MetricName;
+import com.wavefront.sdk.jersey.app.SampleApp;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test class for the metrics of routes that can be evicted by the idle route TTL.
+ */
+public class IdleRouteTtlTest {
+
+  private final SampleApp sampleApp = new SampleApp(wfJerseyFilterBuilder ->
+      wfJerseyFilterBuilder.idleRouteTtl(1, TimeUnit.HOURS));
+
+  @Before
+  public void setup() throws Exception {
+    sampleApp.run("server");
+  }
+
+  @Test
+  public void testEvictableRoute() throws IOException {
+    assertEquals(200, sampleApp.invokeGetRequest("sample/foo/bar/1"));
+    Map<String, String> tags = SampleApp.routeTags("barGet");
+
+    // The reporter can't unregister gauges, so evictable routes don't register any
+    assertFalse(sampleApp.isReported(new MetricName(
+        "request.sample.foo.bar._id_.GET.inflight", tags)));
+    assertTrue(sampleApp.isReported(new MetricName("total_requests.inflight",
+        SampleApp.sourceTags())));
+
+    // Their counters and histograms are still reported
+    assertEquals(1, sampleApp.reportedValue(new MetricName(
+        "response.sample.foo.bar._id_.GET.200.cumulative", tags)));
+    assertEquals(1, sampleApp.reportedValue(new MetricName(
+        "response.sample.foo.bar._id_.GET.200.latency", tags)));
+  }
+}
@@ -0,0 +1,100 @@
+package com.wavefront.sdk.jersey;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test class for the peak and mean concurrency reported by {@link InflightTracker}. Only the
+ * WavefrontJerseyReporter reports them, so they are not covered by the application tests.
+ */
+public class InflightTrackerTest {
+
+  @Test
+  public void testPeakIsResetToTheCurrentValue() {
+    InflightTracker tracker = InflightTracker.timed();
+    tracker.increment(System.nanoTime());
+    tracker.increment(System.nanoTime());
+    tracker.increment(System.nanoTime());
+    tracker.decrement(System.nanoTime());
+    tracker.decrement(System.nanoTime());
+    assertEquals(1, tracker.getCurrent());
+    assertEquals(3, tracker.getAndResetPeak());
+    // the request still in flight is the peak of the next interval
+    assertEquals(1, tracker.getAndResetPeak());
+    // it was in flight during that interval too, not during the next one
+    tracker.decrement(System.nanoTime());
+    assertEquals(1, tracker.getAndResetPeak());
+    assertEquals(0, tracker.getAndResetPeak());
+  }
+
+  @Test
+  public void testMeanConcurrencyIsTheBusyTimeOverTheInterval() throws InterruptedException {
+    InflightTracker tracker = InflightTracker.timed();
+    tracker.getAndResetMeanConcurrency();
+    // two requests in flight for the whole interval
+    tracker.increment(System.nanoTime());
+    tracker.increment(System.nanoTime());
+    Thread.sleep(20);
+    tracker.decrement(System.nanoTime());
+    tracker.decrement(System.nanoTime());
+    double concurrency = tracker.getAndResetMeanConcurrency();
+    assertTrue(String.valueOf(concurrency), concurrency > 1 && concurrency <= 2);
+    assertEquals(0, tracker.getAndResetMeanConcurrency(), 0);
+  }
+
+  @Test
+  public void testMeanConcurrencyCountsRequestsStillInFlight() throws InterruptedException {
+    InflightTracker tracker = InflightTracker.timed();
+    tracker.increment(System.nanoTime());
+    tracker.getAndResetMeanConcurrency();
+    // the request spans the whole interval without completing
+    Thread.sleep(20);
+    double concurrency = tracker.getAndResetMeanConcurrency();
+    assertTrue(String.valueOf(concurrency), concurrency > 0.5 && concurrency <= 1);
+    // and keeps counting in the next one, where it completes on another thread
+    Thread thread = new Thread(() -> tracker.decrement(System.nanoTime()));
+    thread.start();
+    thread.join();
+    concurrency = tracker.getAndResetMeanConcurrency();
+    assertTrue(String.valueOf(concurrency), concurrency > 0 && concurrency <= 1);
+    assertEquals(0, tracker.getAndResetMeanConcurrency(), 0);
+  }
+
+  @Test
+  public void testConcurrentUpdates() throws InterruptedException {
+    InflightTracker tracker = InflightTracker.timed();
+    Thread[] threads = new Thread[4];
+    for (int i = 0; i < threads.length; i++) {
+      threads[i] = new Thread(() -> {
+        for (int j = 0; j < 100_000; j++) {
+          tracker.increment(System.nanoTime());
+          tracker.decrement(System.nanoTime());
+        }
+      });
+      threads[i].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertEquals(0, tracker.getCurrent());
+    long peak = tracker.getAndResetPeak();
+    assertTrue(String.valueOf(peak), peak >= 1 && peak <= threads.length);
+    double concurrency = tracker.getAndResetMeanConcurrency();
+    assertTrue(String.valueOf(concurrency), concurrency >= 0 && concurrency <= threads.length);
+  }
+
+  @Test
+  public void testExactTrackerUpdatesTheGauge() {
+    AtomicInteger gauge = new AtomicInteger();
+    InflightTracker tracker = InflightTracker.exact(gauge);
+    tracker.increment(System.nanoTime());
+    tracker.increment(System.nanoTime());
+    assertEquals(2, gauge.get());
+    tracker.decrement(System.nanoTime());
+    assertEquals(1, gauge.get());
+  }
+}
@@ -16,22 +16,15 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 
-import javax.annotation.Nullable;
-
-import okhttp3.HttpUrl;
-import okhttp3.MediaType;
-import okhttp3.OkHttpClient;
-import okhttp3.Request;
-import okhttp3.RequestBody;
-import okhttp3.Response;
-import okio.BufferedSink;
 
 import static com.wavefront.sdk.common.Constants.CLUSTER_TAG_KEY;
 import static com.wavefront.sdk.common.Constants.SERVICE_TAG_KEY;
 import static com.wavefront.sdk.common.Constants.SHARD_TAG_KEY;
 import static com.wavefront.sdk.common.Constants.WAVEFRONT_PROVIDED_SOURCE;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
 
 /**
  * Test class to test reported metric/histogram for Dropwizard (Jersey) apps requests/responses
@@ -41,36 +34,45 @@ import static org.junit.Assert.assertNotNull;
 public class JerseyAppReporterTest {
 
   private final SampleApp sampleApp = new SampleApp();
-  private int httpPort;
 
   @Before
   public void setup() throws Exception {
     sampleApp.run("server");
-    httpPort = sampleApp.getHttpPort();
   }
 
   @Test
   public void testCRUD() throws URISyntaxException, IOException {
+    testPreRegisteredRoutes();
     testCreate();
     testRead();
     testUpdate();
     testDelete();
     testGetAll();
     testError();
+    testAsync();
+    testStream();
+    testChunked();
+    testQueueTime();
     testOverallAggregatedMetrics();
   }
 
+  private void testPreRegisteredRoutes() {
+    // Inflight gauges are registered when the application is initialized, before any request
+    assertTrue(sampleApp.isReported(new MetricName(
+        "request.sample.foo.bar._id_.GET.inflight", SampleApp.routeTags("barGet"))));
+    assertTrue(sampleApp.isReported(new MetricName(
+        "request.sample.foo.async.GET.inflight", SampleApp.routeTags("asyncGet"))));
+    // So are the response counters of the pre-registered statuses, with a zero value
+    MetricName cumulative = new MetricName("response.sample.foo.bar._id_.GET.200.cumulative",
+        SampleApp.routeTags("barGet"));
+    assertTrue(sampleApp.isReported(cumulative));
+    assertEquals(0, sampleApp.reportedValue(cumulative));
+  }
+
   private void testCreate() throws IOException {
-    assertEquals(204, invokePostRequest("sample/foo/bar"));
+    assertEquals(204, sampleApp.invokePostRequest("sample/foo/bar"));
 
-    Map<String, String> tags = new HashMap<String, String>() {{
-      put(CLUSTER_TAG_KEY, SampleApp.CLUSTER);
-      put(SERVICE_TAG_KEY, SampleApp.SERVICE);
-      put(SHARD_TAG_KEY, SampleApp.SHARD);
-      put("jersey.resource.class", SampleApp.SampleResource.class.getCanonicalName());
-      put("jersey.resource.method", "barCreate");
-      put("operationName", "SampleResource.barCreate");
-    }};
+    Map<String, String> tags = SampleApp.routeTags("barCreate");
     // Request gauge
     assertEquals(0, sampleApp.reportedValue(new MetricName(
         "request.sample.foo.bar.POST.inflight", tags)));
@@ -124,6 +126,18 @@ public class JerseyAppReporterTest {
     assertEquals(1, sampleApp.reportedValue(new MetricName(
         "response.sample.foo.bar.POST.204.cpu_ns", tags)));
 
+    // Request entity histograms
+    assertEquals(1, sampleApp.reportedValue(new MetricName(
+        "request.sample.foo.bar.POST.read_ns", tags)));
+    assertEquals(1, sampleApp.reportedValue(new MetricName(
+        "request.sample.foo.bar.POST.request_bytes", tags)));
+
+    // Per-phase histograms
+    assertEquals(1, sampleApp.reportedValue(new MetricName(
+        "response.sample.foo.bar.POST.204.resource_method_ns", tags)));
+    assertEquals(1, sampleApp.reportedValue(new MetricName(
+        "response.sample.foo.bar.POST.204.response_filters_ns", tags)));
+
     // Tracing Span
     WavefrontSpan span = sampleApp.reportedSpan("SampleResource.barCreate");
     assertNotNull(span);
@@ -147,16 +161,9 @@ public class JerseyAppReporterTest {
   }
 
   private void testRead() throws IOException {
-    assertEquals(200, invokeGetRequest("sample/foo/bar/123"));
+    assertEquals(200, sampleApp.invokeGetRequest("sample/foo/bar/123"));
 
-    Map<String, String> tags = new HashMap<String, String>() {{
-      put(CLUSTER_TAG_KEY, SampleApp.CLUSTER);
-      put(SERVICE_TAG_KEY, SampleApp.SERVICE);
-      put(SHARD_TAG_KEY, SampleApp.SHARD);
-      put("jersey.resource.class", SampleApp.SampleResource.class.getCanonicalName());
-      put("jersey.resource.method", "barGet");
-      put("operationName", "SampleResource.barGet");
-    }};
+    Map<String, String> tags = SampleApp.routeTags("barGet");
     // Request gauge
     assertEquals(0, sampleApp.reportedValue(new MetricName(
         "request.sample.foo.bar._id_.GET.inflight", tags)));
@@ -211,6 +218,22 @@ public class JerseyAppReporterTest {
     assertEquals(1, sampleApp.reportedValue(new MetricName(
         "response.sample.foo.bar._id_.GET.200.cpu_ns", tags)));
 
+    // Thread contention histograms
+    assertEquals(1, sampleApp.reportedValue(new MetricName(
+        "response.sample.foo.bar._id_.GET.200.blocked_ns", tags)));
+    assertEquals(1, sampleApp.reportedValue(new MetricName(
+        "response.sample.foo.bar._id_.GET.200.waited_ns", tags)));
+
+    // Allocation histogram
+    assertEquals(1, sampleApp.reportedValue(new MetricName(
+        "response.sample.foo.bar._id_.GET.200.allocated_bytes", tags)));
+
+    // Response entity histograms
+    assertEquals(1, sampleApp.reportedValue(new MetricName(
+        "response.sample.foo.bar._id_.GET.write_ns", tags)));
+    assertEquals(1, sampleApp.reportedValue(new MetricName(
+        "response.sample.foo.bar._id_.GET.response_bytes", tags)));
+
     // Tracing Span
     WavefrontSpan span = sampleApp.reportedSpan("SampleResource.barGet");
     assertNotNull(span);
@@ -234,16 +257,9 @@ public class JerseyAppReporterTest {
   }
 
   private void testUpdate() throws IOException {
-    assertEquals(204, invokePutRequest("sample/foo/bar/123"));
+    assertEquals(204, sampleApp.invokePutRequest("sample/foo/bar/123"));
 
-    Map<String, String> tags = new HashMap<String, String>() {{
-      put(CLUSTER_TAG_KEY, SampleApp.CLUSTER);
-      put(SERVICE_TAG_KEY, SampleApp.SERVICE);
-      put(SHARD_TAG_KEY, SampleApp.SHARD);
-      put("jersey.resource.class", SampleApp.SampleResource.class.getCanonicalName());
-      put("jersey.resource.method", "barUpdate");
-      put("operationName", "SampleResource.barUpdate");
-    }};
+    Map<String, String> tags = SampleApp.routeTags("barUpdate");
     // Request gauge
     assertEquals(0, sampleApp.reportedValue(new MetricName(
         "request.sample.foo.bar._id_.PUT.inflight", tags)));
@@ -321,16 +337,9 @@ public class JerseyAppReporterTest {
   }
 
   private void testDelete() throws IOException {
-    assertEquals(204, invokeDeleteRequest("sample/foo/bar/123"));
+    assertEquals(204, sampleApp.invokeDeleteRequest("sample/foo/bar/123"));
 
-    Map<String, String> tags = new HashMap<String, String>() {{
-      put(CLUSTER_TAG_KEY, SampleApp.CLUSTER);
-      put(SERVICE_TAG_KEY, SampleApp.SERVICE);
-      put(SHARD_TAG_KEY, SampleApp.SHARD);
-      put("jersey.resource.class", SampleApp.SampleResource.class.getCanonicalName());
-      put("jersey.resource.method", "barDelete");
-      put("operationName", "SampleResource.barDelete");
-    }};
+    Map<String, String> tags = SampleApp.routeTags("barDelete");
     // Request gauge
     assertEquals(0, sampleApp.reportedValue(new MetricName(
         "request.sample.foo.bar._id_.DELETE.inflight", tags)));
@@ -408,16 +417,9 @@ public class JerseyAppReporterTest {
   }
 
   private void testGetAll() throws IOException {
-    assertEquals(200, invokeGetRequest("sample/foo/bar"));
+    assertEquals(200, sampleApp.invokeGetRequest("sample/foo/bar"));
 
-    Map<String, String> tags = new HashMap<String, String>() {{
-      put(CLUSTER_TAG_KEY, SampleApp.CLUSTER);
-      put(SERVICE_TAG_KEY, SampleApp.SERVICE);
-      put(SHARD_TAG_KEY, SampleApp.SHARD);
-      put("jersey.resource.class", SampleApp.SampleResource.class.getCanonicalName());
-      put("jersey.resource.method", "getAll");
-      put("operationName", "SampleResource.getAll");
-    }};
+    Map<String, String> tags = SampleApp.routeTags("getAll");
     // Request gauge
     assertEquals(0, sampleApp.reportedValue(new MetricName(
         "request.sample.foo.bar.GET.inflight", tags)));
@@ -494,111 +496,108 @@ public class JerseyAppReporterTest {
   }
 
   private void testError() throws IOException {
-    invokeGetRequest("sample/foo/bar/error");
-    Map<String, String> tags = new HashMap<String, String>() {{
-      put(CLUSTER_TAG_KEY, SampleApp.CLUSTER);
-      put(SERVICE_TAG_KEY, SampleApp.SERVICE);
-      put(SHARD_TAG_KEY, SampleApp.SHARD);
-      put("jersey.resource.class", SampleApp.SampleResource.class.getCanonicalName());
-      put("jersey.resource.method", "barGet");
-      put("operationName", "SampleResource.barGet");
-    }};
+    sampleApp.invokeGetRequest("sample/foo/bar/error");
+    Map<String, String> tags = SampleApp.routeTags("barGet");
     // Response counter metric
     assertEquals(1, sampleApp.reportedValue(new MetricName(
         "response.sample.foo.bar._id_.GET.errors", tags)));
   }
 
-  private int invokePostRequest(String pathSegments) throws IOException {
-    HttpUrl url = new HttpUrl.Builder().scheme("http").host("localhost").port(httpPort).
-        addPathSegments(pathSegments).build();
-    Request request = new Request.Builder().url(url).
-        post(new RequestBody() {
-          @Nullable
-          @Override
-          public MediaType contentType() {
-            return null;
-          }
-
-          @Override
-          public void writeTo(BufferedSink sink) throws IOException {
-
-          }
-        }).build();
-    OkHttpClient okHttpClient = new OkHttpClient().newBuilder().build();
-    Response response = okHttpClient.newCall(request).execute();
-    return response.code();
+  private void testAsync() throws IOException {
+    assertEquals(200, sampleApp.invokeGetRequest("sample/foo/async"));
+    Map<String, String> tags = SampleApp.routeTags("asyncGet");
+    // Request gauge is decremented on the resuming thread
+    assertEquals(0, sampleApp.reportedValue(new MetricName(
+        "request.sample.foo.async.GET.inflight", tags)));
+
+    // Response counter metric and latency histogram
+    assertEquals(1, sampleApp.reportedValue(new MetricName(
+        "response.sample.foo.async.GET.200.cumulative", tags)));
+    assertEquals(1, sampleApp.reportedValue(new MetricName(
+        "response.sample.foo.async.GET.200.latency", tags)));
+
+    // Tracing Span
+    assertNotNull(sampleApp.reportedSpan("SampleResource.asyncGet"));
   }
 
-  private int invokeGetRequest(String pathSegments) throws IOException {
-    HttpUrl url = new HttpUrl.Builder().scheme("http").host("localhost").port(httpPort).
-        addPathSegments(pathSegments).build();
-    Request.Builder requestBuilder = new Request.Builder().url(url);
-    OkHttpClient okHttpClient = new OkHttpClient().newBuilder().build();
-    Request request = requestBuilder.build();
-    Response response = okHttpClient.newCall(request).execute();
-    return response.code();
+  private void testStream() throws IOException {
+    assertEquals(200, sampleApp.invokeGetRequest("sample/foo/stream"));
+
+    Map<String, String> tags = SampleApp.routeTags("stream");
+    // The latency ends with the response filters, the stream is timed until it is closed
+    assertEquals(1, sampleApp.reportedValue(new MetricName(
+        "response.sample.foo.stream.GET.200.latency", tags)));
+    assertEquals(1, sampleApp.reportedValue(new MetricName(
+        "response.sample.foo.stream.GET.200.time_to_first_byte", tags)));
+    // The stream is closed by the container once the client may already have the response
+    MetricName timeToLastByte = new MetricName(
+        "response.sample.foo.stream.GET.200.time_to_last_byte", tags);
+    for (int i = 0; i < 100 && sampleApp.reportedValue(timeToLastByte) == 0; i++) {
+      sleep(10);
+    }
+    assertEquals(1, sampleApp.reportedValue(timeToLastByte));
+
+    // Streaming gauges
+    assertEquals(0, sampleApp.reportedValue(new MetricName(
+        "request.sample.foo.stream.GET.streaming.inflight", tags)));
+    assertEquals(0, sampleApp.reportedValue(new MetricName(
+        "total_streams.inflight", SampleApp.sourceTags())));
   }
 
-  private int invokePutRequest(String pathSegments) throws IOException {
-    HttpUrl url = new HttpUrl.Builder().scheme("http").host("localhost").port(httpPort).
-        addPathSegments(pathSegments).build();
-    Request request = new Request.Builder().url(url).
-        put(new RequestBody() {
-          @Nullable
-          @Override
-          public MediaType contentType() {
-            return null;
-          }
-
-          @Override
-          public void writeTo(BufferedSink sink) throws IOException {
-
-          }
-        }).build();
-    OkHttpClient okHttpClient = new OkHttpClient().newBuilder().build();
-    Response response = okHttpClient.newCall(request).execute();
-    return response.code();
+  private void testChunked() throws IOException {
+    assertEquals(200, sampleApp.invokeGetRequest("sample/foo/chunked"));
+
+    Map<String, String> tags = SampleApp.routeTags("chunked");
+    MetricName timeToLastByte = new MetricName(
+        "response.sample.foo.chunked.GET.200.time_to_last_byte", tags);
+    for (int i = 0; i < 100 && sampleApp.reportedValue(timeToLastByte) == 0; i++) {
+      sleep(10);
+    }
+    assertEquals(1, sampleApp.reportedValue(timeToLastByte));
+    assertEquals(1, sampleApp.reportedValue(new MetricName(
+        "response.sample.foo.chunked.GET.200.time_to_first_byte", tags)));
+    // Chunks are not measured as entities
+    assertFalse(sampleApp.isReported(new MetricName(
+        "response.sample.foo.chunked.GET.write_ns", tags)));
+    assertFalse(sampleApp.isReported(new MetricName(
+        "response.sample.foo.chunked.GET.response_bytes", tags)));
   }
 
-  private int invokeDeleteRequest(String pathSegments) throws IOException {
-    HttpUrl url = new HttpUrl.Builder().scheme("http").host("localhost").port(httpPort).
-        addPathSegments(pathSegments).build();
-    Request request = new Request.Builder().url(url).
-        delete(new RequestBody() {
-          @Nullable
-          @Override
-          public MediaType contentType() {
-            return null;
-          }
-
-          @Override
-          public void writeTo(BufferedSink sink) throws IOException {
-
-          }
-        }).build();
-    OkHttpClient okHttpClient = new OkHttpClient().newBuilder().build();
-    Response response = okHttpClient.newCall(request).execute();
-    return response.code();
+  private void testQueueTime() throws IOException {
+    assertEquals(200, sampleApp.invokeGetRequest("sample/foo/bar",
+        "t=" + System.currentTimeMillis()));
+    assertEquals(200, sampleApp.invokeGetRequest("sample/foo/bar", "yesterday"));
+
+    Map<String, String> tags = SampleApp.routeTags("getAll");
+        // Queue time histograms, only for the request with a valid start time
+    assertEquals(1, sampleApp.reportedValue(new MetricName(
+        "request.sample.foo.bar.GET.queue_time", tags)));
+    assertEquals(1, sampleApp.reportedValue(new MetricName(
+        "total_requests.queue_time", SampleApp.sourceTags())));
+
+    // Invalid start time counter
+    assertEquals(1, sampleApp.reportedValue(new MetricName(
+        "queue_time.invalid", SampleApp.sourceTags())));
+  }
+
+  private static void sleep(long millis) {
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
   }
 
   private void testOverallAggregatedMetrics() {
     // jersey.server.total_requests.inflight gauge should be 0
     assertEquals(0, sampleApp.reportedValue(new MetricName(
-        "request.inflight", new HashMap<String, String>() {{
-          put(CLUSTER_TAG_KEY, SampleApp.CLUSTER);
-          put(SERVICE_TAG_KEY, SampleApp.SERVICE);
-          put(SHARD_TAG_KEY, SampleApp.SHARD);
-    }})));
+        "total_requests.inflight", SampleApp.sourceTags())));
 
-    assertEquals(6, sampleApp.reportedValue(new MetricName(
+    assertEquals(10, sampleApp.reportedValue(new MetricName(
         "response.completed.aggregated_per_source",
-        new HashMap<String, String>() {{
-          put(CLUSTER_TAG_KEY, SampleApp.CLUSTER);
-          put(SERVICE_TAG_KEY, SampleApp.SERVICE);
-          put(SHARD_TAG_KEY, SampleApp.SHARD);
-    }})));
+        SampleApp.sourceTags())));
 
-    assertEquals(6, sampleApp.reportedValue(new MetricName(
+    assertEquals(10, sampleApp.reportedValue(new MetricName(
         "response.completed.aggregated_per_shard",
         new HashMap<String, String>() {{
           put(CLUSTER_TAG_KEY, SampleApp.CLUSTER);
@@ -607,7 +606,7 @@ public class JerseyAppReporterTest {
           put("source", WAVEFRONT_PROVIDED_SOURCE);
         }})));
 
-    assertEquals(6, sampleApp.reportedValue(new MetricName(
+    assertEquals(10, sampleApp.reportedValue(new MetricName(
         "response.completed.aggregated_per_service",
         new HashMap<String, String>() {{
           put(CLUSTER_TAG_KEY, SampleApp.CLUSTER);
@@ -615,14 +614,14 @@ public class JerseyAppReporterTest {
           put("source", WAVEFRONT_PROVIDED_SOURCE);
         }})));
 
-    assertEquals(6, sampleApp.reportedValue(new MetricName(
+    assertEquals(10, sampleApp.reportedValue(new MetricName(
         "response.completed.aggregated_per_cluster",
         new HashMap<String, String>() {{
           put(CLUSTER_TAG_KEY, SampleApp.CLUSTER);
           put("source", WAVEFRONT_PROVIDED_SOURCE);
         }})));
 
-    assertEquals(6, sampleApp.reportedValue(new MetricName(
+    assertEquals(10, sampleApp.reportedValue(new MetricName(
         "response.completed.aggregated_per_application",
         new HashMap<String, String>() {{
           put("source", WAVEFRONT_PROVIDED_SOURCE);
@@ -630,11 +629,7 @@ public class JerseyAppReporterTest {
 
     assertEquals(1, sampleApp.reportedValue(new MetricName(
         "response.errors.aggregated_per_source",
-        new HashMap<String, String>() {{
-          put(CLUSTER_TAG_KEY, SampleApp.CLUSTER);
-          put(SERVICE_TAG_KEY, SampleApp.SERVICE);
-          put(SHARD_TAG_KEY, SampleApp.SHARD);
-        }})));
+        SampleApp.sourceTags())));
 
     assertEquals(1, sampleApp.reportedValue(new MetricName(
         "response.errors.aggregated_per_shard",
@@ -0,0 +1,39 @@
+package com.wavefront.sdk.jersey;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test class for the sampling decisions of {@link MeasurementPolicy}.
+ */
+public class MeasurementPolicyTest {
+
+  @Test
+  public void testOffAndAlways() {
+    for (int i = 0; i < 10; i++) {
+      assertFalse(MeasurementPolicy.sample(MeasurementPolicy.off().getSampleRate()));
+      assertTrue(MeasurementPolicy.sample(MeasurementPolicy.always().getSampleRate()));
+    }
+  }
+
+  @Test
+  public void testSampledOneInRateOnAverage() {
+    int sampleRate = MeasurementPolicy.sampled(4).getSampleRate();
+    int samples = 0;
+    for (int i = 0; i < 40000; i++) {
+      if (MeasurementPolicy.sample(sampleRate)) {
+        samples++;
+      }
+    }
+    // 10000 expected, with a standard deviation of about 87
+    assertTrue("Unexpected number of samples " + samples, Math.abs(samples - 10000) < 1000);
+  }
+
+  @Test
+  public void testSampledOneIsAlways() {
+    assertEquals(MeasurementPolicy.always(), MeasurementPolicy.sampled(1));
+  }
+}
@@ -0,0 +1,33 @@
+package com.wavefront.sdk.jersey;
+
+import org.junit.Test;
+
+import static com.wavefront.sdk.jersey.MetricNameUtils.sanitize;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Test class for the metric friendly paths of {@link MetricNameUtils}.
+ */
+public class MetricNameUtilsTest {
+
+  @Test
+  public void testPlainPaths() {
+    assertEquals("inventory.orders.fulfilled", sanitize("inventory/orders/fulfilled"));
+    assertEquals("inventory.orders._id_.items", sanitize("inventory/orders/{id}/items"));
+    assertEquals("orders._year__month_", sanitize("orders/{year}{month}"));
+  }
+
+  @Test
+  public void testRegexTemplatesDropTheExpression() {
+    assertEquals("users._id_.x", sanitize("users/{id: [0-9]+}/x"));
+    assertEquals("users._id_.x", sanitize("users/{id:[0-9]+}/x"));
+    // swagger-ui route
+    assertEquals("api-docs._route_", sanitize("api-docs/{route: .+}"));
+  }
+
+  @Test
+  public void testNestedBracesInExpressions() {
+    assertEquals("a._id_.b", sanitize("a/{id: \\d{3}}/b"));
+    assertEquals("a._id_.b._code_", sanitize("a/{id: [a-z]{2,4}}/b/{code: \\d{1}-\\d{2}}"));
+  }
+}
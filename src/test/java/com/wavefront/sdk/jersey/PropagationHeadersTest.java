@@ -0,0 +1,69 @@
+package com.wavefront.sdk.jersey;
+
+import com.wavefront.opentracing.WavefrontSpanContext;
+import com.wavefront.opentracing.propagation.HTTPPropagator;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.UUID;
+
+import javax.ws.rs.core.MultivaluedHashMap;
+import javax.ws.rs.core.MultivaluedMap;
+
+import io.opentracing.propagation.TextMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test class for the span context extraction of {@link PropagationHeaders}.
+ */
+public class PropagationHeadersTest {
+
+  @Test
+  public void testWavefrontHeaders() {
+    WavefrontSpanContext spanContext = new WavefrontSpanContext(UUID.randomUUID(),
+        UUID.randomUUID(), Collections.singletonMap("tenant", "acme"), false);
+    MultivaluedMap<String, String> headers = new MultivaluedHashMap<>();
+    new HTTPPropagator().inject(spanContext, new TextMap() {
+      @Override
+      public Iterator<Map.Entry<String, String>> iterator() {
+        throw new UnsupportedOperationException();
+      }
+
+      @Override
+      public void put(String key, String value) {
+        headers.add(key, value);
+      }
+    });
+    headers.add("accept", "application/json");
+    headers.add("uber-trace-id", "1:2:0:1");
+
+    TextMap textMap = PropagationHeaders.wavefront(true).extractTextMap(headers);
+    int entries = 0;
+    for (Map.Entry<String, String> entry : textMap) {
+      assertTrue(entry.getKey().startsWith("wf-ot-"));
+      entries++;
+    }
+    // trace id, span id, sampling decision and the baggage item
+    assertEquals(4, entries);
+
+    WavefrontSpanContext extracted = new HTTPPropagator().extract(textMap);
+    assertEquals(spanContext.getTraceId(), extracted.getTraceId());
+    assertEquals(spanContext.getSpanId(), extracted.getSpanId());
+    assertEquals(Boolean.FALSE, extracted.getSamplingDecision());
+    assertEquals("acme", extracted.getBaggageItem("tenant"));
+
+    // without the baggage, only the headers looked up by name
+    entries = 0;
+    for (Map.Entry<String, String> entry : PropagationHeaders.wavefront(false).
+        extractTextMap(headers)) {
+      assertTrue(entry.getKey().startsWith("wf-ot-"));
+      entries++;
+    }
+    assertEquals(3, entries);
+  }
+}
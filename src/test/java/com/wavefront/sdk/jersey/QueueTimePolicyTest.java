@@ -0,0 +1,69 @@
+package com.wavefront.sdk.jersey;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static com.wavefront.sdk.jersey.QueueTimePolicy.INVALID;
+import static com.wavefront.sdk.jersey.QueueTimePolicy.parseEpochMillis;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test class for the parsing of upstream start times and the queue times of
+ * {@link QueueTimePolicy}.
+ */
+public class QueueTimePolicyTest {
+
+  private static final long START_MILLIS = 1_700_000_000_500L;
+
+  private final QueueTimePolicy policy = new QueueTimePolicy.Builder().
+      header("X-Request-Start").maxQueueTime(10, TimeUnit.SECONDS).
+      maxClockSkew(100, TimeUnit.MILLISECONDS).build();
+
+  @Test
+  public void testUnitIsInferredFromTheMagnitude() {
+    assertEquals(START_MILLIS, parseEpochMillis("1700000000.5"), 0.001);
+    assertEquals(START_MILLIS, parseEpochMillis("t=1700000000.5"), 0.001);
+    assertEquals(START_MILLIS, parseEpochMillis("1700000000500"), 0.001);
+    assertEquals(START_MILLIS, parseEpochMillis("t=1700000000500000"), 0.001);
+    assertEquals(START_MILLIS, parseEpochMillis(" 1700000000500000000 "), 1);
+  }
+
+  @Test
+  public void testUnitSuffixOverridesTheMagnitude() {
+    assertEquals(START_MILLIS, parseEpochMillis("1700000000.5s"), 0.001);
+    assertEquals(START_MILLIS, parseEpochMillis("t=1700000000500ms"), 0.001);
+    assertEquals(START_MILLIS, parseEpochMillis("1700000000500000us"), 0.001);
+    assertEquals(START_MILLIS, parseEpochMillis("1700000000500000000ns"), 1);
+    // a small value in milliseconds would otherwise be taken as seconds
+    assertEquals(1500, parseEpochMillis("1500ms"), 0.001);
+    assertEquals(1500000, parseEpochMillis("1500"), 0.001);
+  }
+
+  @Test
+  public void testMalformedStartTimesAreInvalid() {
+    for (String value : new String[]{"", "t=", "abc", "12:00", "ms", "-1700000000500", "0",
+        "NaN", "Infinity", "1700000000500h"}) {
+      assertTrue(value, Double.isNaN(parseEpochMillis(value)));
+      assertEquals(value, INVALID, policy.queueTimeMillis(parseEpochMillis(value),
+          START_MILLIS));
+    }
+  }
+
+  @Test
+  public void testQueueTime() {
+    assertEquals(0, policy.queueTimeMillis(START_MILLIS, START_MILLIS));
+    assertEquals(250, policy.queueTimeMillis(START_MILLIS, START_MILLIS + 250));
+    assertEquals(10_000, policy.queueTimeMillis(START_MILLIS, START_MILLIS + 10_000));
+    assertEquals(INVALID, policy.queueTimeMillis(START_MILLIS, START_MILLIS + 10_001));
+  }
+
+  @Test
+  public void testFutureStartTimes() {
+    // within the tolerated clock skew
+    assertEquals(0, policy.queueTimeMillis(START_MILLIS + 100, START_MILLIS));
+    assertEquals(INVALID, policy.queueTimeMillis(START_MILLIS + 101, START_MILLIS));
+    assertEquals(INVALID, policy.queueTimeMillis(START_MILLIS + 60_000, START_MILLIS));
+  }
+}
@@ -0,0 +1,101 @@
+package com.wavefront.sdk.jersey;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test class for the ring buffer of the asynchronous {@link RecordingPolicy}.
+ */
+public class RecordingBufferTest {
+
+  @Test
+  public void testEventsAreRecordedInPublicationOrder() {
+    List<Long> latencies = Collections.synchronizedList(new ArrayList<>());
+    RecordingBuffer buffer = new RecordingBuffer(8, true,
+        (status, error, redFromTracer, latencyMillis, cpuNanos, blockedNanos, waitedNanos,
+         allocatedBytes) -> latencies.add(latencyMillis));
+    List<Long> expected = new ArrayList<>();
+    for (long i = 0; i < 1000; i++) {
+      assertTrue(buffer.publish(null, false, false, i, 0, 0, 0, 0));
+      expected.add(i);
+    }
+    buffer.close();
+    assertEquals(expected, latencies);
+  }
+
+  @Test
+  public void testEventsAreDroppedWhenFull() throws InterruptedException {
+    CountDownLatch recording = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    List<Long> latencies = Collections.synchronizedList(new ArrayList<>());
+    RecordingBuffer buffer = new RecordingBuffer(4, false,
+        (status, error, redFromTracer, latencyMillis, cpuNanos, blockedNanos, waitedNanos,
+         allocatedBytes) -> {
+          recording.countDown();
+          try {
+            release.await();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+          latencies.add(latencyMillis);
+        });
+    // the consumer takes the first event and blocks, the next 4 fill the buffer
+    assertTrue(buffer.publish(null, false, false, 0, 0, 0, 0, 0));
+    assertTrue(recording.await(5, TimeUnit.SECONDS));
+    for (long i = 1; i <= 4; i++) {
+      assertTrue(buffer.publish(null, false, false, i, 0, 0, 0, 0));
+    }
+    int dropped = 0;
+    for (long i = 5; i < 10; i++) {
+      if (!buffer.publish(null, false, false, i, 0, 0, 0, 0)) {
+        dropped++;
+      }
+    }
+    assertEquals(5, dropped);
+
+    release.countDown();
+    buffer.close();
+    assertEquals(5, latencies.size());
+  }
+
+  @Test
+  public void testIdleConsumerIsSignalledAndStoppedByClose() throws InterruptedException {
+    CountDownLatch first = new CountDownLatch(1);
+    CountDownLatch signalled = new CountDownLatch(2);
+    // The consumer never wakes up on its own, only a signal can get the next events recorded.
+    RecordingBuffer buffer = new RecordingBuffer(16, false,
+        (status, error, redFromTracer, latencyMillis, cpuNanos, blockedNanos, waitedNanos,
+         allocatedBytes) -> {
+          if (latencyMillis == 0) {
+            first.countDown();
+          } else {
+            signalled.countDown();
+          }
+        }, Long.MAX_VALUE);
+    Thread consumer = buffer.getConsumer();
+    assertTrue(consumer.isAlive());
+    assertTrue(consumer.isDaemon());
+    assertTrue(buffer.publish(null, false, false, 0, 0, 0, 0, 0));
+    assertTrue(first.await(5, TimeUnit.SECONDS));
+    // let the consumer back off to waiting for a signal
+    while (!buffer.isConsumerWaiting()) {
+      Thread.yield();
+    }
+    assertTrue(buffer.publish(null, false, false, 1, 0, 0, 0, 0));
+    assertTrue(buffer.publish(null, false, false, 2, 0, 0, 0, 0));
+    assertTrue(signalled.await(5, TimeUnit.SECONDS));
+
+    buffer.close();
+    assertFalse(buffer.publish(null, false, false, 3, 0, 0, 0, 0));
+    assertFalse(consumer.isAlive());
+  }
+}
@@ -0,0 +1,326 @@
+package com.wavefront.sdk.jersey;
+
+import com.wavefront.internal.reporter.SdkReporter;
+import com.wavefront.internal_reporter_java.io.dropwizard.metrics5.MetricName;
+import com.wavefront.sdk.common.application.ApplicationTags;
+
+import org.glassfish.jersey.internal.MapPropertiesDelegate;
+import org.glassfish.jersey.server.ContainerRequest;
+import org.glassfish.jersey.server.ExtendedUriInfo;
+import org.glassfish.jersey.server.internal.routing.RoutingContext;
+import org.glassfish.jersey.server.model.Resource;
+import org.glassfish.jersey.server.model.ResourceMethod;
+import org.junit.Test;
+
+import java.lang.reflect.Proxy;
+import java.net.URI;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.wavefront.sdk.common.Constants.CLUSTER_TAG_KEY;
+import static com.wavefront.sdk.common.Constants.NULL_TAG_VAL;
+import static com.wavefront.sdk.common.Constants.SERVICE_TAG_KEY;
+import static com.wavefront.sdk.common.Constants.SHARD_TAG_KEY;
+import static com.wavefront.sdk.jersey.CardinalityGuard.OVERFLOW_ROUTE;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test class for the cardinality limits enforced by {@link RouteDescriptorCache}.
+ */
+public class RouteDescriptorCacheTest {
+
+  private final ApplicationTags applicationTags =
+      new ApplicationTags.Builder("wavefront", "jersey").build();
+  private final RecordingReporter reporter = new RecordingReporter();
+
+  @Test
+  public void testRoutesOverLimitOnlyReportOverflowSeries() {
+    RouteDescriptorCache routes = new RouteDescriptorCache(applicationTags, reporter,
+        CardinalityLimits.of(1, 10), true, 0, route -> true);
+
+    RouteDescriptor admitted = routes.preRegister(resourceMethod("sample/admitted"));
+    assertNotNull(admitted);
+    assertFalse(admitted.isOverflow());
+    recordEverySeries(admitted);
+    assertTrue(reporter.metricNames.stream().allMatch(
+        metricName -> !metricName.getKey().contains(OVERFLOW_ROUTE)));
+
+    reporter.metricNames.clear();
+    RouteDescriptor first = routes.preRegister(resourceMethod("sample/first"));
+    RouteDescriptor second = routes.preRegister(resourceMethod("sample/second"));
+    assertNotNull(first);
+    assertNotNull(second);
+    assertTrue(first.isOverflow());
+    assertTrue(second.isOverflow());
+    recordEverySeries(first);
+    recordEverySeries(second);
+
+    assertTrue(first.getInflight().getKey().contains(OVERFLOW_ROUTE));
+    assertTrue(first.getStreamingInflight().getKey().contains(OVERFLOW_ROUTE));
+    assertEquals(first.getInflight(), second.getInflight());
+    // only the rejection counter and the series of the overflow route
+    for (MetricName metricName : reporter.metricNames) {
+      if (metricName.getKey().equals("cardinality.rejected")) {
+        continue;
+      }
+      assertFalse(metricName.toString(), metricName.getKey().contains("sample"));
+      assertEquals(OVERFLOW_ROUTE, metricName.getTags().get("jersey.resource.class"));
+      assertEquals(OVERFLOW_ROUTE, metricName.getTags().get("operationName"));
+    }
+    assertEquals(2, reporter.counters.get(new MetricName("cardinality.rejected",
+        rejectedTags("route"))).get());
+  }
+
+  @Test
+  public void testEvictedRouteKeepsItsSlot() {
+    long idleTtlNanos = TimeUnit.MILLISECONDS.toNanos(1);
+    RouteDescriptorCache routes = new RouteDescriptorCache(applicationTags, reporter,
+        CardinalityLimits.of(1, 1), true, idleTtlNanos, route -> true);
+    ResourceMethod evicted = resourceMethod("sample/evicted");
+
+    RouteDescriptor route = routes.preRegister(evicted);
+    assertNotNull(route);
+    assertFalse(route.isOverflow());
+    recordEverySeries(route);
+    route.forStatus(500).getLatency().update(1);
+    int registered = reporter.metricNames.size();
+
+    routes.evictIdle(System.nanoTime() + idleTtlNanos * 2);
+    RouteDescriptor rebuilt = routes.preRegister(evicted);
+    assertNotNull(rebuilt);
+    assertNotSame(route, rebuilt);
+    assertFalse(rebuilt.isOverflow());
+    recordEverySeries(rebuilt);
+    rebuilt.forStatus(500).getLatency().update(1);
+    // the rebuilt route reuses its series, and the status slot taken by 200
+    assertEquals(registered, reporter.metricNames.size());
+
+    routes.evictIdle(System.nanoTime() + idleTtlNanos * 4);
+    RouteDescriptor other = routes.preRegister(resourceMethod("sample/other"));
+    assertNotNull(other);
+    assertTrue(other.isOverflow());
+  }
+
+  @Test
+  public void testPinnedRouteIsNotEvicted() {
+    long idleTtlNanos = TimeUnit.MILLISECONDS.toNanos(1);
+    RouteDescriptorCache routes = new RouteDescriptorCache(applicationTags, reporter,
+        CardinalityLimits.of(10, 10), true, idleTtlNanos, route -> true);
+    ResourceMethod pinned = resourceMethod("sample/pinned");
+    ResourceMethod idle = resourceMethod("sample/idle");
+
+    RouteDescriptor pinnedRoute = routes.preRegister(pinned);
+    assertNotNull(pinnedRoute);
+    pinnedRoute.pin();
+    RouteDescriptor idleRoute = routes.preRegister(idle);
+
+    routes.evictIdle(System.nanoTime() + idleTtlNanos * 2);
+    assertSame(pinnedRoute, routes.preRegister(pinned));
+    assertNotSame(idleRoute, routes.preRegister(idle));
+  }
+
+  @Test
+  public void testUnmatchedRoutesAreBounded() {
+    RouteDescriptorCache routes = new RouteDescriptorCache(applicationTags, reporter,
+        CardinalityLimits.of(2, 10), true, 0, route -> true);
+    Resource resource = resourceMethod("sample/unmatched").getParent();
+
+    RouteDescriptor first = routes.get(unmatchedRequest(resource, "M0"));
+    assertNotNull(first);
+    assertFalse(first.isOverflow());
+    assertSame(first, routes.get(unmatchedRequest(resource, "M0")));
+    RouteDescriptor second = routes.get(unmatchedRequest(resource, "M1"));
+    assertNotNull(second);
+    assertFalse(second.isOverflow());
+
+    RouteDescriptor overflow = routes.get(unmatchedRequest(resource, "M2"));
+    assertNotNull(overflow);
+    assertTrue(overflow.isOverflow());
+    for (int i = 3; i < 1000; i++) {
+      RouteDescriptor route = routes.get(unmatchedRequest(resource, "M" + i));
+      assertSame(overflow, route);
+      recordEverySeries(route);
+    }
+    for (MetricName metricName : reporter.metricNames) {
+      assertFalse(metricName.toString(), metricName.getKey().contains("sample"));
+    }
+    assertEquals(998, reporter.counters.get(new MetricName("cardinality.rejected",
+        rejectedTags("route"))).get());
+  }
+
+  @Test
+  public void testSubResourceMethodsResolveLikePreRegisteredOnes() {
+    // The GET method of the sub-resource returned by the locator of sample/locator, handled by
+    // another class than the one declaring the locator
+    Resource.Builder builder = Resource.builder("sample/locator");
+    try {
+      builder.addMethod("GET").handledBy(SampleResource.class,
+          SampleResource.class.getMethod("get"));
+    } catch (NoSuchMethodException e) {
+      throw new IllegalStateException(e);
+    }
+    Resource subResource = builder.build();
+    ResourceMethod subResourceMethod = subResource.getResourceMethods().get(0);
+
+    RouteDescriptor preRegistered = new RouteDescriptorCache(applicationTags, reporter,
+        CardinalityLimits.unlimited(), true, 0, route -> true).preRegister(subResourceMethod);
+    RouteDescriptor matched = new RouteDescriptorCache(applicationTags, reporter,
+        CardinalityLimits.unlimited(), true, 0, route -> true).get(
+            matchedRequest(subResource, subResourceMethod));
+    assertNotNull(preRegistered);
+    assertNotNull(matched);
+    assertEquals(SampleResource.class.getCanonicalName(), matched.getClassName());
+    assertEquals("get", matched.getMethodName());
+    assertEquals(preRegistered.getClassName(), matched.getClassName());
+    assertEquals(preRegistered.getMethodName(), matched.getMethodName());
+    assertEquals(preRegistered.getInflight(), matched.getInflight());
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testStatusesOfRouteNotAdmitted() {
+    CardinalityGuard guard = new CardinalityGuard(CardinalityLimits.of(1, 1), applicationTags,
+        reporter, false);
+    guard.statusesOf("sample.unmatched.M0");
+  }
+
+  private static void recordEverySeries(RouteDescriptor route) {
+    route.getErrors().inc();
+    route.getOverallErrors().inc();
+    route.getQueueTime().update(1);
+    route.getReadNs().update(1);
+    route.getRequestBytes().update(1);
+    route.getWriteNs().update(1);
+    route.getResponseBytes().update(1);
+    RouteDescriptor.StatusDescriptor status = route.forStatus(200);
+    status.getCumulative().inc();
+    status.getAggregatedPerService().inc();
+    status.getAggregatedPerApplication().inc();
+    status.getLatency().update(1);
+    status.getCpuNs().update(1);
+    status.getTimeToFirstByte().update(1);
+    status.getTotalTime().inc(1);
+  }
+
+  private Map<String, String> rejectedTags(String family) {
+    Map<String, String> tags = new HashMap<>();
+    tags.put(CLUSTER_TAG_KEY, NULL_TAG_VAL);
+    tags.put(SERVICE_TAG_KEY, "jersey");
+    tags.put(SHARD_TAG_KEY, NULL_TAG_VAL);
+    tags.put("family", family);
+    return tags;
+  }
+
+  static ResourceMethod resourceMethod(String path) {
+    Resource.Builder builder = Resource.builder(path);
+    try {
+      builder.addMethod("GET").handledBy(SampleResource.class,
+          SampleResource.class.getMethod("get"));
+    } catch (NoSuchMethodException e) {
+      throw new IllegalStateException(e);
+    }
+    return builder.build().getResourceMethods().get(0);
+  }
+
+  /**
+   * @return a request whose path matched the given resource, but none of its resource methods.
+   */
+  private static ContainerRequest unmatchedRequest(Resource resource, String httpMethod) {
+    ExtendedUriInfo uriInfo = (ExtendedUriInfo) Proxy.newProxyInstance(
+        RouteDescriptorCacheTest.class.getClassLoader(),
+        new Class<?>[]{ExtendedUriInfo.class, RoutingContext.class},
+        (proxy, method, args) ->
+            method.getName().equals("getMatchedModelResource") ? resource : null);
+    URI baseUri = URI.create("http://localhost:8080/");
+    return new ContainerRequest(baseUri, baseUri.resolve(resource.getPath()), httpMethod, null,
+        new MapPropertiesDelegate()) {
+      @Override
+      public ExtendedUriInfo getUriInfo() {
+        return uriInfo;
+      }
+    };
+  }
+
+  /**
+   * @return a request that matched the given resource method of the given resource, whose
+   * RoutingContext resolves nothing else, e.g. no resource class.
+   */
+  private static ContainerRequest matchedRequest(Resource resource,
+                                                 ResourceMethod resourceMethod) {
+    ExtendedUriInfo uriInfo = (ExtendedUriInfo) Proxy.newProxyInstance(
+        RouteDescriptorCacheTest.class.getClassLoader(),
+        new Class<?>[]{ExtendedUriInfo.class, RoutingContext.class},
+        (proxy, method, args) -> {
+          if (method.getName().equals("getMatchedModelResource")) {
+            return resource;
+          } else if (method.getName().equals("getMatchedResourceMethod")) {
+            return resourceMethod;
+          }
+          return null;
+        });
+    URI baseUri = URI.create("http://localhost:8080/");
+    return new ContainerRequest(baseUri, baseUri.resolve(resource.getPath()), "GET", null,
+        new MapPropertiesDelegate()) {
+      @Override
+      public ExtendedUriInfo getUriInfo() {
+        return uriInfo;
+      }
+    };
+  }
+
+  public static class SampleResource {
+    public String get() {
+      return "";
+    }
+  }
+
+  /**
+   * Records the name of every series the SDK updates.
+   */
+  static final class RecordingReporter implements SdkReporter {
+    final Set<MetricName> metricNames = ConcurrentHashMap.newKeySet();
+    final ConcurrentHashMap<MetricName, AtomicInteger> counters = new ConcurrentHashMap<>();
+
+    @Override
+    public void incrementCounter(MetricName metricName) {
+      incrementCounter(metricName, 1);
+    }
+
+    @Override
+    public void incrementCounter(MetricName metricName, long n) {
+      metricNames.add(metricName);
+      counters.computeIfAbsent(metricName, key -> new AtomicInteger()).addAndGet((int) n);
+    }
+
+    @Override
+    public void incrementDeltaCounter(MetricName metricName) {
+      incrementCounter(metricName, 1);
+    }
+
+    @Override
+    public void registerGauge(MetricName metricName, AtomicInteger value) {
+      metricNames.add(metricName);
+    }
+
+    @Override
+    public void updateHistogram(MetricName metricName, long latencyMillis) {
+      metricNames.add(metricName);
+    }
+
+    @Override
+    public void start() {
+    }
+
+    @Override
+    public void stop() {
+    }
+  }
+}
@@ -0,0 +1,177 @@
+package com.wavefront.sdk.jersey;
+
+import com.wavefront.internal.reporter.SdkReporter;
+import com.wavefront.internal_reporter_java.io.dropwizard.metrics5.MetricName;
+import com.wavefront.opentracing.WavefrontSpan;
+import com.wavefront.opentracing.WavefrontTracer;
+import com.wavefront.opentracing.reporting.Reporter;
+import com.wavefront.sdk.common.application.ApplicationTags;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.opentracing.Span;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test class for {@link TailSpanRetention}.
+ */
+public class TailSpanRetentionTest {
+
+  private final ApplicationTags applicationTags =
+      new ApplicationTags.Builder("wavefront", "jersey").build();
+
+  private final Reporter spanReporter = new Reporter() {
+    @Override
+    public void report(WavefrontSpan span) {
+      // no-op
+    }
+
+    @Override
+    public int getFailureCount() {
+      return 0;
+    }
+
+    @Override
+    public void close() {
+      // no-op
+    }
+
+    @Override
+    public void flush() {
+      // no-op
+    }
+  };
+
+  private final SdkReporter sdkReporter = new SdkReporter() {
+    @Override
+    public void incrementCounter(MetricName metricName) {
+    }
+
+    @Override
+    public void incrementCounter(MetricName metricName, long n) {
+    }
+
+    @Override
+    public void incrementDeltaCounter(MetricName metricName) {
+    }
+
+    @Override
+    public void registerGauge(MetricName metricName, AtomicInteger value) {
+    }
+
+    @Override
+    public void updateHistogram(MetricName metricName, long latencyMillis) {
+    }
+
+    @Override
+    public void start() {
+    }
+
+    @Override
+    public void stop() {
+    }
+  };
+
+  @Test
+  public void testPendingTracesExpireWhenStartingNewOnes() {
+    TailSpanRetention retention = new TailSpanRetention.Builder(spanReporter).
+        latencyThreshold(100, TimeUnit.MILLISECONDS).build();
+    long startNanos = System.nanoTime();
+    assertTrue(retention.begin("never-completed", "server", startNanos));
+    assertFalse(retention.begin("never-completed", "server", startNanos + 1));
+
+    // pending for longer than the 1 minute timeout
+    long laterNanos = startNanos + TimeUnit.MINUTES.toNanos(2);
+    assertTrue(retention.begin("other", "server", laterNanos));
+    assertTrue(retention.begin("never-completed", "server", laterNanos));
+  }
+
+  @Test
+  public void testCompletedTracesAreNoLongerPending() {
+    TailSpanRetention retention = new TailSpanRetention.Builder(spanReporter).build();
+    long startNanos = System.nanoTime();
+    assertTrue(retention.begin("trace", "server", startNanos));
+    retention.complete("trace", "server", "SampleResource.barGet", 1, false);
+    assertTrue(retention.begin("trace", "server", startNanos + 2));
+  }
+
+  @Test
+  public void testConcurrentRequestsOfTheSameTrace() {
+    List<WavefrontSpan> forwarded = new ArrayList<>();
+    TailSpanRetention retention = new TailSpanRetention.Builder(new Reporter() {
+      @Override
+      public void report(WavefrontSpan span) {
+        forwarded.add(span);
+      }
+
+      @Override
+      public int getFailureCount() {
+        return 0;
+      }
+
+      @Override
+      public void close() {
+        // no-op
+      }
+
+      @Override
+      public void flush() {
+        // no-op
+      }
+    }).build();
+    WavefrontTracer tracer = new WavefrontTracer.Builder(retention, applicationTags).build();
+    // Two requests of the same trace, e.g. a service calling itself twice
+    Span caller = tracer.buildSpan("caller").start();
+    Span failed = tracer.buildSpan("failed").asChildOf(caller).start();
+    Span succeeded = tracer.buildSpan("succeeded").asChildOf(caller).start();
+    long nowNanos = System.nanoTime();
+    String traceId = failed.context().toTraceId();
+    assertTrue(retention.begin(traceId, failed.context().toSpanId(), nowNanos));
+    assertTrue(retention.begin(traceId, succeeded.context().toSpanId(), nowNanos));
+
+    Span call = tracer.buildSpan("call").asChildOf(failed).start();
+    Span query = tracer.buildSpan("query").asChildOf(call).start();
+    Span other = tracer.buildSpan("other").asChildOf(succeeded).start();
+    query.finish();
+    call.finish();
+    other.finish();
+    failed.finish();
+    succeeded.finish();
+
+    // Only the spans of the failed request are forwarded
+    retention.complete(traceId, failed.context().toSpanId(), "failed", 1, true);
+    assertEquals(3, forwarded.size());
+    for (WavefrontSpan span : forwarded) {
+      assertTrue(Arrays.asList("failed", "call", "query").contains(span.getOperationName()));
+    }
+    retention.complete(traceId, succeeded.context().toSpanId(), "succeeded", 1, false);
+    assertEquals(3, forwarded.size());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testTracerRedMetricsModeIsRefused() {
+    // The tracer doesn't derive RED metrics from the spans of a TailSpanRetention reporter, the
+    // filter must report them.
+    TailSpanRetention retention = new TailSpanRetention.Builder(spanReporter).build();
+    new WavefrontJerseyFilter.Builder(sdkReporter, applicationTags).
+        withTracer(new WavefrontTracer.Builder(retention, applicationTags).build()).
+        tailSpanRetention(retention).redMetricsMode(RedMetricsMode.TRACER).build();
+  }
+
+  @Test
+  public void testFilterAndTracerRedMetricsModeIsAccepted() {
+    TailSpanRetention retention = new TailSpanRetention.Builder(spanReporter).build();
+    new WavefrontJerseyFilter.Builder(sdkReporter, applicationTags).
+        withTracer(new WavefrontTracer.Builder(retention, applicationTags).build()).
+        tailSpanRetention(retention).build().close();
+  }
+}
@@ -0,0 +1,56 @@
+package com.wavefront.sdk.jersey;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test class for the head based sampling decisions of {@link TraceSamplingPolicy}.
+ */
+public class TraceSamplingPolicyTest {
+
+  @Test
+  public void testRequestsWithParentFollowTheParent() {
+    TraceSamplingPolicy policy = new TraceSamplingPolicy.Builder().rate(0).
+        routeRate("SampleResource.getAll", 0).maxTracesPerSecond(1).build();
+    for (int i = 0; i < 10; i++) {
+      assertTrue(policy.sample("SampleResource.getAll", true));
+      assertTrue(policy.sample("SampleResource.barGet", true));
+    }
+    TraceSamplingPolicy always = TraceSamplingPolicy.always();
+    for (int i = 0; i < 10; i++) {
+      assertFalse(always.sample("SampleResource.getAll", false));
+      assertFalse(always.sample("SampleResource.barGet", false));
+    }
+  }
+
+  @Test
+  public void testRequestsWithoutParentFollowTheRate() {
+    TraceSamplingPolicy never = new TraceSamplingPolicy.Builder().rate(0).build();
+    TraceSamplingPolicy always = TraceSamplingPolicy.always();
+    for (int i = 0; i < 10; i++) {
+      assertFalse(never.sample("SampleResource.getAll", null));
+      assertTrue(always.sample("SampleResource.getAll", null));
+    }
+  }
+
+  @Test
+  public void testRouteRateOverridesTheRate() {
+    TraceSamplingPolicy policy = new TraceSamplingPolicy.Builder().rate(0).
+        routeRate("SampleResource.barGet", 1).build();
+    for (int i = 0; i < 10; i++) {
+      assertTrue(policy.sample("SampleResource.barGet", null));
+      assertFalse(policy.sample("SampleResource.getAll", null));
+    }
+  }
+
+  @Test
+  public void testMaxTracesPerSecond() {
+    TraceSamplingPolicy policy = new TraceSamplingPolicy.Builder().maxTracesPerSecond(1).build();
+    assertTrue(policy.sample("SampleResource.getAll", null));
+    assertFalse(policy.sample("SampleResource.getAll", null));
+    // the cap only applies to the requests that start a trace
+    assertTrue(policy.sample("SampleResource.getAll", true));
+  }
+}
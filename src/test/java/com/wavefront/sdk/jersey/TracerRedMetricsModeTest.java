@@ -0,0 +1,83 @@
+package com.wavefront.sdk.jersey;
+
+import com.wavefront.internal_reporter_java.io.dropwizard.metrics5.MetricName;
+import com.wavefront.sdk.jersey.app.SampleApp;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Test class for the filter metrics of traced and unsampled requests with
+ * {@link RedMetricsMode#TRACER}.
+ */
+public class TracerRedMetricsModeTest {
+
+  private final SampleApp sampleApp = new SampleApp(wfJerseyFilterBuilder ->
+      wfJerseyFilterBuilder.redMetricsMode(RedMetricsMode.TRACER).traceSamplingPolicy(
+          new TraceSamplingPolicy.Builder().routeRate("SampleResource.getAll", 0).build()));
+
+  @Before
+  public void setup() throws Exception {
+    sampleApp.run("server");
+  }
+
+  @Test
+  public void testTracedRequests() throws IOException {
+    assertEquals(200, sampleApp.invokeGetRequest("sample/foo/bar/1"));
+    assertEquals(500, sampleApp.invokeGetRequest("sample/foo/bar/error"));
+    Map<String, String> tags = SampleApp.routeTags("barGet");
+
+    // The tracer reports the RED metrics of traced requests
+    assertFalse(sampleApp.isReported(new MetricName(
+        "response.sample.foo.bar._id_.GET.200.latency", tags)));
+    assertFalse(sampleApp.isReported(new MetricName(
+        "response.sample.foo.bar._id_.GET.200.total_time", tags)));
+    assertFalse(sampleApp.isReported(new MetricName(
+        "response.sample.foo.bar._id_.GET.500.latency", tags)));
+    assertFalse(sampleApp.isReported(new MetricName(
+        "response.sample.foo.bar._id_.GET.errors", tags)));
+    assertFalse(sampleApp.isReported(new MetricName("response.errors", tags)));
+    assertFalse(sampleApp.isReported(new MetricName(
+        "response.sample.foo.bar._id_.GET.200.cumulative", tags)));
+    assertFalse(sampleApp.isReported(new MetricName(
+        "response.sample.foo.bar._id_.GET.500.cumulative", tags)));
+    assertFalse(sampleApp.isReported(new MetricName(
+        "response.completed.aggregated_per_source", SampleApp.sourceTags())));
+    assertFalse(sampleApp.isReported(new MetricName(
+        "response.errors.aggregated_per_source", SampleApp.sourceTags())));
+
+    // The filter still reports what the tracer doesn't: cpu_ns and the inflight gauges
+    assertEquals(1, sampleApp.reportedValue(new MetricName(
+        "response.sample.foo.bar._id_.GET.200.cpu_ns", tags)));
+    assertEquals(0, sampleApp.reportedValue(new MetricName(
+        "request.sample.foo.bar._id_.GET.inflight", tags)));
+
+    assertNotNull(sampleApp.reportedSpan("SampleResource.barGet"));
+  }
+
+  @Test
+  public void testUnsampledRequests() throws IOException {
+    assertEquals(200, sampleApp.invokeGetRequest("sample/foo/bar"));
+    Map<String, String> tags = SampleApp.routeTags("getAll");
+
+    // The tracer derives the RED metrics from the unreported span of unsampled requests too
+    assertFalse(sampleApp.isReported(new MetricName(
+        "response.sample.foo.bar.GET.200.latency", tags)));
+    assertFalse(sampleApp.isReported(new MetricName(
+        "response.sample.foo.bar.GET.200.total_time", tags)));
+    assertFalse(sampleApp.isReported(new MetricName(
+        "response.sample.foo.bar.GET.200.cumulative", tags)));
+    assertFalse(sampleApp.isReported(new MetricName(
+        "response.completed.aggregated_per_source", SampleApp.sourceTags())));
+
+    assertNull(sampleApp.reportedSpan("SampleResource.getAll"));
+  }
+}
@@ -8,15 +8,26 @@ import com.wavefront.opentracing.WavefrontSpan;
 import com.wavefront.opentracing.WavefrontTracer;
 import com.wavefront.opentracing.reporting.Reporter;
 import com.wavefront.sdk.common.application.ApplicationTags;
+import com.wavefront.sdk.jersey.MeasurementPolicy;
+import com.wavefront.sdk.jersey.QueueTimePolicy;
+import com.wavefront.sdk.jersey.WavefrontJerseyEventListener;
 import com.wavefront.sdk.jersey.WavefrontJerseyFilter;
 
 import org.eclipse.jetty.server.ServerConnector;
+import org.glassfish.jersey.server.ChunkedOutput;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
+import javax.annotation.Nullable;
 import javax.ws.rs.DELETE;
 import javax.ws.rs.GET;
 import javax.ws.rs.POST;
@@ -24,23 +35,55 @@ import javax.ws.rs.PUT;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.StreamingOutput;
 
 import io.dropwizard.Application;
 import io.dropwizard.Configuration;
 import io.dropwizard.jetty.HttpConnectorFactory;
 import io.dropwizard.server.DefaultServerFactory;
 import io.dropwizard.setup.Environment;
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okio.BufferedSink;
+
+import static com.wavefront.sdk.common.Constants.CLUSTER_TAG_KEY;
+import static com.wavefront.sdk.common.Constants.SERVICE_TAG_KEY;
+import static com.wavefront.sdk.common.Constants.SHARD_TAG_KEY;
 
 public class SampleApp extends Application<Configuration> {
   private static final String APPLICATION = "wavefront";
   public static final String CLUSTER = "prod";
   public static final String SERVICE = "alerting";
   public static final String SHARD = "secondary";
+  public static final String REQUEST_START_HEADER = "X-Request-Start";
   private int httpPort;
 
   private final ConcurrentMap<MetricName, AtomicInteger> cache = new ConcurrentHashMap<>();
   private final ConcurrentMap<String, WavefrontSpan> spanCache = new ConcurrentHashMap<>();
+  private final Consumer<WavefrontJerseyFilter.Builder> filterOptions;
+
+  /**
+   * Runs the application with the optional measurements of the filter enabled.
+   */
+  public SampleApp() {
+    this(wfJerseyFilterBuilder -> wfJerseyFilterBuilder.threadContention(true).
+        allocationPolicy(MeasurementPolicy.always()).
+        preRegisterRoutes(Collections.singleton(200)).
+        queueTimePolicy(new QueueTimePolicy.Builder().header(REQUEST_START_HEADER).build()));
+  }
+
+  /**
+   * @param filterOptions sets the options under test on the filter builder.
+   */
+  public SampleApp(Consumer<WavefrontJerseyFilter.Builder> filterOptions) {
+    this.filterOptions = filterOptions;
+  }
 
   private AtomicInteger computeIfAbsent(MetricName metricName) {
     return cache.computeIfAbsent(metricName, key -> new AtomicInteger());
@@ -66,7 +109,7 @@ public class SampleApp extends Application<Configuration> {
     });
     environment.jersey().register(new SampleResource());
     environment.getApplicationContext().setContextPath("/");
-    environment.jersey().register(new WavefrontJerseyFilter.Builder(new SdkReporter() {
+    SdkReporter sdkReporter = new SdkReporter() {
       @Override
       public void incrementCounter(MetricName metricName) {
         computeIfAbsent(metricName).incrementAndGet();
@@ -89,7 +132,7 @@ public class SampleApp extends Application<Configuration> {
 
       @Override
       public void registerGauge(MetricName metricName, AtomicInteger value) {
-        computeIfAbsent(metricName);
+        cache.putIfAbsent(metricName, value);
       }
 
       @Override
@@ -101,7 +144,11 @@ public class SampleApp extends Application<Configuration> {
       public void stop() {
         // no-op
       }
-    }, applicationTags).withTracer(new WavefrontTracer.Builder(new Reporter() {
+    };
+    environment.jersey().register(new WavefrontJerseyEventListener.Builder(sdkReporter,
+        applicationTags).build());
+    WavefrontJerseyFilter.Builder wfJerseyFilterBuilder = new WavefrontJerseyFilter.Builder(
+        sdkReporter, applicationTags).withTracer(new WavefrontTracer.Builder(new Reporter() {
       @Override
       public void report(WavefrontSpan span) {
         spanCache.putIfAbsent(span.getOperationName(), span);
@@ -121,13 +168,24 @@ public class SampleApp extends Application<Configuration> {
       public void flush() {
         spanCache.clear();
       }
-    }, applicationTags).build()).build());
+    }, applicationTags).build());
+    filterOptions.accept(wfJerseyFilterBuilder);
+    WavefrontJerseyFilter wfJerseyFilter = wfJerseyFilterBuilder.build();
+    environment.jersey().register(wfJerseyFilter);
+    environment.jersey().register(wfJerseyFilter.getEntityInterceptor());
   }
 
   public int reportedValue(MetricName metricName) {
     return computeIfAbsent(metricName).get();
   }
 
+  /**
+   * @return true if the metric was ever updated or registered, even with a 0 value.
+   */
+  public boolean isReported(MetricName metricName) {
+    return cache.containsKey(metricName);
+  }
+
   public WavefrontSpan reportedSpan(String operationName) {
     return spanCache.get(operationName);
   }
@@ -141,7 +199,7 @@ public class SampleApp extends Application<Configuration> {
     // C => create
     @POST
     @Path("/bar")
-    public void barCreate() {
+    public void barCreate(String bar) {
       // no-op
     }
 
@@ -175,9 +233,137 @@ public class SampleApp extends Application<Configuration> {
     public void barDelete() {
       // no-op
     }
+
+    // Asynchronous read, response is resumed on another thread
+    @GET
+    @Path("/async")
+    public void asyncGet(@Suspended AsyncResponse asyncResponse) {
+      new Thread(() -> {
+        try {
+          Thread.sleep(50);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        asyncResponse.resume("don't care");
+      }).start();
+    }
+
+    // Streamed read, the entity is written once the response filters ran
+    @GET
+    @Path("/stream")
+    public StreamingOutput stream() {
+      return outputStream -> {
+        outputStream.write("don't care".getBytes(StandardCharsets.UTF_8));
+        outputStream.flush();
+      };
+    }
+
+    // Chunked read, every chunk is written through the entity interceptors
+    @GET
+    @Path("/chunked")
+    public ChunkedOutput<String> chunked() {
+      ChunkedOutput<String> output = new ChunkedOutput<>(String.class);
+      new Thread(() -> {
+        try {
+          output.write("don't ");
+          output.write("care");
+          output.close();
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      }).start();
+      return output;
+    }
   }
 
   public int getHttpPort() {
     return httpPort;
   }
+
+  /**
+   * @return tags of the series of the given method of {@link SampleResource}.
+   */
+  public static Map<String, String> routeTags(String methodName) {
+    return new HashMap<String, String>() {{
+      put(CLUSTER_TAG_KEY, CLUSTER);
+      put(SERVICE_TAG_KEY, SERVICE);
+      put(SHARD_TAG_KEY, SHARD);
+      put("jersey.resource.class", SampleResource.class.getCanonicalName());
+      put("jersey.resource.method", methodName);
+      put("operationName", "SampleResource." + methodName);
+    }};
+  }
+
+  /**
+   * @return tags of the series aggregated per source.
+   */
+  public static Map<String, String> sourceTags() {
+    return new HashMap<String, String>() {{
+      put(CLUSTER_TAG_KEY, CLUSTER);
+      put(SERVICE_TAG_KEY, SERVICE);
+      put(SHARD_TAG_KEY, SHARD);
+    }};
+  }
+
+  public int invokePostRequest(String pathSegments) throws IOException {
+    return invokeRequest(pathSegments, null, "POST", new RequestBody() {
+      @Nullable
+      @Override
+      public okhttp3.MediaType contentType() {
+        return okhttp3.MediaType.parse("text/plain");
+      }
+
+      @Override
+      public void writeTo(BufferedSink sink) throws IOException {
+        sink.writeUtf8("bar");
+      }
+    });
+  }
+
+  public int invokeGetRequest(String pathSegments) throws IOException {
+    return invokeGetRequest(pathSegments, null);
+  }
+
+  /**
+   * @param requestStart value of the {@link #REQUEST_START_HEADER}, null to leave it out.
+   */
+  public int invokeGetRequest(String pathSegments, @Nullable String requestStart)
+      throws IOException {
+    return invokeRequest(pathSegments, requestStart, "GET", null);
+  }
+
+  public int invokePutRequest(String pathSegments) throws IOException {
+    return invokeRequest(pathSegments, null, "PUT", emptyBody());
+  }
+
+  public int invokeDeleteRequest(String pathSegments) throws IOException {
+    return invokeRequest(pathSegments, null, "DELETE", emptyBody());
+  }
+
+  private int invokeRequest(String pathSegments, @Nullable String requestStart, String method,
+                            @Nullable RequestBody body) throws IOException {
+    HttpUrl url = new HttpUrl.Builder().scheme("http").host("localhost").port(httpPort).
+        addPathSegments(pathSegments).build();
+    Request.Builder requestBuilder = new Request.Builder().url(url).method(method, body);
+    if (requestStart != null) {
+      requestBuilder.header(REQUEST_START_HEADER, requestStart);
+    }
+    OkHttpClient okHttpClient = new OkHttpClient().newBuilder().build();
+    Response response = okHttpClient.newCall(requestBuilder.build()).execute();
+    return response.code();
+  }
+
+  private static RequestBody emptyBody() {
+    return new RequestBody() {
+      @Nullable
+      @Override
+      public okhttp3.MediaType contentType() {
+        return null;
+      }
+
+      @Override
+      public void writeTo(BufferedSink sink) {
+      }
+    };
+  }
 }
\ No newline at end of file
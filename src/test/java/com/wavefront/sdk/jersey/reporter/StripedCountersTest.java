@@ -0,0 +1,91 @@
+package com.wavefront.sdk.jersey.reporter;
+
+import com.wavefront.internal_reporter_java.io.dropwizard.metrics5.Counter;
+import com.wavefront.internal_reporter_java.io.dropwizard.metrics5.MetricName;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Test class for the counters pre-aggregated by {@link StripedCounters}.
+ */
+public class StripedCountersTest {
+
+  private static final int THREADS = 4;
+  private static final int INCREMENTS = 200_000;
+
+  private final ConcurrentMap<MetricName, Counter> registry = new ConcurrentHashMap<>();
+  private final StripedCounters stripedCounters = new StripedCounters(
+      key -> registry.computeIfAbsent(key, name -> new Counter()),
+      key -> registry.computeIfAbsent(key, name -> new Counter()));
+
+  @Test
+  public void testFlushMergesIncrementsOnce() {
+    MetricName metricName = new MetricName("counter", Collections.emptyMap());
+    CounterHandle counter = stripedCounters.counter(metricName);
+    counter.inc();
+    counter.inc(4);
+    assertEquals(0, registry.get(metricName).getCount());
+
+    stripedCounters.flush();
+    assertEquals(5, registry.get(metricName).getCount());
+    stripedCounters.flush();
+    assertEquals(5, registry.get(metricName).getCount());
+
+    counter.inc();
+    stripedCounters.flush();
+    assertEquals(6, registry.get(metricName).getCount());
+  }
+
+  @Test
+  public void testConcurrentIncrementsAndFlushesLoseNoCount() throws InterruptedException {
+    MetricName metricName = new MetricName("counter", Collections.emptyMap());
+    MetricName deltaMetricName = new MetricName("delta.counter", Collections.emptyMap());
+    CounterHandle counter = stripedCounters.counter(metricName);
+    CounterHandle deltaCounter = stripedCounters.deltaCounter(deltaMetricName);
+    CountDownLatch start = new CountDownLatch(1);
+    List<Thread> threads = new ArrayList<>();
+    for (int i = 0; i < THREADS; i++) {
+      Thread thread = new Thread(() -> {
+        try {
+          start.await();
+        } catch (InterruptedException e) {
+          return;
+        }
+        for (int j = 0; j < INCREMENTS; j++) {
+          counter.inc();
+          deltaCounter.inc(2);
+        }
+      });
+      thread.start();
+      threads.add(thread);
+    }
+    AtomicBoolean done = new AtomicBoolean();
+    Thread flusher = new Thread(() -> {
+      while (!done.get()) {
+        stripedCounters.flush();
+      }
+    });
+    flusher.start();
+
+    start.countDown();
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    done.set(true);
+    flusher.join();
+    stripedCounters.flush();
+
+    assertEquals(THREADS * INCREMENTS, registry.get(metricName).getCount());
+    assertEquals(2L * THREADS * INCREMENTS, registry.get(deltaMetricName).getCount());
+  }
+}